@@ -0,0 +1,125 @@
+/*
+ * Copyright (c) 2018 - present Fidesmo AB
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.fidesmo.fdsm;
+
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.databind.SerializerProvider;
+import com.fasterxml.jackson.databind.annotation.JsonSerialize;
+import com.fasterxml.jackson.databind.ser.std.StdSerializer;
+
+import java.io.IOException;
+import java.util.List;
+
+// Hex transport of APDU-s in the JSON of the delivery protocols, without intermediate strings:
+// commands are decoded from the characters held by the parser, responses are encoded into
+// one buffer per batch and handed to the generator. A card channel takes exactly sized arrays,
+// so every command is decoded into an array of its own.
+final class ApduCodec {
+    private static final char[] DIGITS = "0123456789ABCDEF".toCharArray();
+
+    private ApduCodec() {
+    }
+
+    // The current string token of the parser
+    static byte[] read(JsonParser p) throws IOException {
+        return decode(p.getTextCharacters(), p.getTextOffset(), p.getTextLength());
+    }
+
+    static byte[] decode(CharSequence hex) {
+        byte[] result = new byte[length(hex.length())];
+        for (int i = 0; i < result.length; i++) {
+            result[i] = (byte) (digit(hex.charAt(2 * i)) << 4 | digit(hex.charAt(2 * i + 1)));
+        }
+        return result;
+    }
+
+    static byte[] decode(char[] hex, int offset, int length) {
+        byte[] result = new byte[length(length)];
+        for (int i = 0; i < result.length; i++) {
+            result[i] = (byte) (digit(hex[offset + 2 * i]) << 4 | digit(hex[offset + 2 * i + 1]));
+        }
+        return result;
+    }
+
+    private static int length(int digits) {
+        if ((digits & 1) != 0) {
+            throw new IllegalArgumentException("Odd number of hex digits: " + digits);
+        }
+        return digits / 2;
+    }
+
+    private static int digit(char c) {
+        if (c >= '0' && c <= '9') {
+            return c - '0';
+        } else if (c >= 'A' && c <= 'F') {
+            return c - 'A' + 10;
+        } else if (c >= 'a' && c <= 'f') {
+            return c - 'a' + 10;
+        }
+        throw new IllegalArgumentException("Not a hex digit: " + c);
+    }
+
+    // Uppercase hex of bytes into out at offset, as chars; returns the offset after
+    static int encode(byte[] bytes, char[] out, int offset) {
+        for (byte b : bytes) {
+            out[offset++] = DIGITS[(b >> 4) & 0xF];
+            out[offset++] = DIGITS[b & 0xF];
+        }
+        return offset;
+    }
+
+    // Same as ASCII bytes, for bodies that are written without a generator
+    static int encode(byte[] bytes, byte[] out, int offset) {
+        for (byte b : bytes) {
+            out[offset++] = (byte) DIGITS[(b >> 4) & 0xF];
+            out[offset++] = (byte) DIGITS[b & 0xF];
+        }
+        return offset;
+    }
+
+    // APDU-s that serialize as an array of hex strings, to be put into request trees as a POJO node
+    @JsonSerialize(using = HexArray.Encoder.class)
+    record HexArray(List<byte[]> apdus) {
+        static class Encoder extends StdSerializer<HexArray> {
+            private static final long serialVersionUID = 1L;
+
+            Encoder() {
+                super(HexArray.class);
+            }
+
+            @Override
+            public void serialize(HexArray value, JsonGenerator g, SerializerProvider provider) throws IOException {
+                int longest = 0;
+                for (byte[] apdu : value.apdus()) {
+                    longest = Math.max(longest, apdu.length);
+                }
+                char[] buffer = new char[longest * 2];
+                g.writeStartArray();
+                for (byte[] apdu : value.apdus()) {
+                    g.writeString(buffer, 0, encode(apdu, buffer, 0));
+                }
+                g.writeEndArray();
+            }
+        }
+    }
+}
@@ -0,0 +1,83 @@
+/*
+ * Copyright (c) 2018 - present Fidesmo AB
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.fidesmo.fdsm;
+
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+// Binary WebSocket frames of APDU batches, used instead of the JSON messages with hex strings when
+// the server answers the handshake with the framing header. A frame is a type byte and a
+// big-endian two byte count, followed by that many APDU-s, each prefixed with a two byte length.
+final class ApduFrame {
+    static final String HEADER = "Fidesmo-Apdu-Framing";
+    static final String BINARY = "binary";
+    static final byte COMMANDS = 1;
+    static final byte RESPONSES = 2;
+    private static final int MAX = 0xFFFF;
+
+    private ApduFrame() {
+    }
+
+    static List<byte[]> read(ByteBuffer frame, byte type) {
+        try {
+            if (frame.get() != type) {
+                throw new IllegalArgumentException("Unexpected frame type " + frame.get(frame.position() - 1));
+            }
+            int count = Short.toUnsignedInt(frame.getShort());
+            List<byte[]> apdus = new ArrayList<>(count);
+            for (int i = 0; i < count; i++) {
+                byte[] apdu = new byte[Short.toUnsignedInt(frame.getShort())];
+                frame.get(apdu);
+                apdus.add(apdu);
+            }
+            if (frame.hasRemaining()) {
+                throw new IllegalArgumentException("Trailing bytes in frame: " + frame.remaining());
+            }
+            return apdus;
+        } catch (BufferUnderflowException e) {
+            throw new IllegalArgumentException("Truncated frame", e);
+        }
+    }
+
+    static ByteBuffer write(byte type, List<byte[]> apdus) {
+        if (apdus.size() > MAX) {
+            throw new IllegalArgumentException("Too many APDU-s for a frame: " + apdus.size());
+        }
+        int length = 3;
+        for (byte[] apdu : apdus) {
+            if (apdu.length > MAX) {
+                throw new IllegalArgumentException("APDU too long for a frame: " + apdu.length);
+            }
+            length += 2 + apdu.length;
+        }
+        ByteBuffer frame = ByteBuffer.allocate(length);
+        frame.put(type);
+        frame.putShort((short) apdus.size());
+        for (byte[] apdu : apdus) {
+            frame.putShort((short) apdu.length);
+            frame.put(apdu);
+        }
+        return frame.flip();
+    }
+}
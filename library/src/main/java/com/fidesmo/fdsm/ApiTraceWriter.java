@@ -0,0 +1,339 @@
+/*
+ * Copyright (c) 2018 - present Fidesmo AB
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.fidesmo.fdsm;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.net.URI;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+// Writes the API trace of FidesmoApiClient on a background thread. Callers only queue
+// the raw message bytes; pretty printing and output happen off the request path.
+// When the queue is full, events are dropped according to the drop policy and the
+// number of dropped events is noted in the trace. Only trace events count towards the
+// capacity and are dropped, never the markers of flush() and close().
+public final class ApiTraceWriter implements Closeable {
+    public static final int DEFAULT_CAPACITY = 4096;
+    private static final long WAIT_SECONDS = 5;
+
+    public enum DropPolicy {
+        DROP_NEWEST, DROP_OLDEST
+    }
+
+    private static final class Event {
+        final String line;
+        final byte[] body;
+        final CountDownLatch written;
+
+        Event(String line, byte[] body, CountDownLatch written) {
+            this.line = line;
+            this.body = body;
+            this.written = written;
+        }
+
+        boolean isTrace() {
+            return line != null;
+        }
+    }
+
+    private static final Event CLOSE = new Event(null, null, null);
+
+    private final BlockingQueue<Event> queue = new LinkedBlockingQueue<>();
+    private final AtomicInteger queued = new AtomicInteger(); // Trace events in the queue
+    private final int capacity;
+    private final DropPolicy policy;
+    private final OutputStream out;
+    private final boolean ownsStream;
+    private final LongAdder dropped = new LongAdder();
+    private final Thread writer = new Thread(this::run, "fdsm-api-trace");
+    private final Thread shutdown = new Thread(this::drain, "fdsm-api-trace-shutdown");
+    private long reported;
+    private volatile boolean closed;
+    private volatile boolean stopped; // Writer thread has exited
+
+    private ApiTraceWriter(OutputStream out, boolean ownsStream, int capacity, DropPolicy policy) {
+        if (capacity < 1) {
+            throw new IllegalArgumentException("Capacity must be positive");
+        }
+        this.capacity = capacity;
+        this.policy = policy;
+        this.out = out;
+        this.ownsStream = ownsStream;
+    }
+
+    public static ApiTraceWriter forStream(OutputStream out) {
+        return forStream(out, DEFAULT_CAPACITY, DropPolicy.DROP_NEWEST);
+    }
+
+    // The stream is flushed, but not closed, by close()
+    public static ApiTraceWriter forStream(OutputStream out, int capacity, DropPolicy policy) {
+        return new ApiTraceWriter(out, false, capacity, policy).start();
+    }
+
+    // Writes to file, which is renamed to file.1 (and older ones to file.2 ...) when it grows beyond maxBytes
+    public static ApiTraceWriter forFile(Path file, long maxBytes, int maxFiles, int capacity, DropPolicy policy) throws IOException {
+        return new ApiTraceWriter(new RotatingFile(file, maxBytes, maxFiles), true, capacity, policy).start();
+    }
+
+    private ApiTraceWriter start() {
+        writer.setDaemon(true);
+        writer.start();
+        // Do not lose the tail of the trace when the process exits
+        Runtime.getRuntime().addShutdownHook(shutdown);
+        return this;
+    }
+
+    void request(String method, URI uri, byte[] body) {
+        enqueue(new Event(method + ": " + uri, body, null));
+    }
+
+    void response(String status, byte[] body) {
+        enqueue(new Event("RECV: " + status, body, null));
+    }
+
+    void message(String line) {
+        enqueue(new Event(line, null, null));
+    }
+
+    private void enqueue(Event event) {
+        if (closed) {
+            return;
+        }
+        if (queued.incrementAndGet() > capacity) {
+            if (policy == DropPolicy.DROP_NEWEST) {
+                queued.decrementAndGet();
+                dropped.increment();
+                return;
+            } else if (evictOldest()) {
+                dropped.increment();
+            }
+        }
+        queue.add(event);
+    }
+
+    // Makes room for a trace event, passing over markers
+    private boolean evictOldest() {
+        for (Event event : queue) {
+            // Not removed if the writer took it meanwhile
+            if (event.isTrace() && queue.remove(event)) {
+                queued.decrementAndGet();
+                return true;
+            }
+        }
+        return false;
+    }
+
+    public long getDropped() {
+        return dropped.sum();
+    }
+
+    // Waits until everything queued so far has been written out, for a few seconds at most
+    public void flush() throws InterruptedIOException {
+        flush(WAIT_SECONDS, TimeUnit.SECONDS);
+    }
+
+    // Whether everything queued so far was written out in time; false once the writer has stopped
+    boolean flush(long timeout, TimeUnit unit) throws InterruptedIOException {
+        CountDownLatch written = new CountDownLatch(1);
+        Event marker = new Event(null, null, written);
+        queue.add(marker);
+        if (stopped) {
+            // Nothing more is written, and the writer may not have seen the marker
+            queue.remove(marker);
+            return false;
+        }
+        try {
+            return written.await(timeout, unit) && !stopped;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted");
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        try {
+            Runtime.getRuntime().removeShutdownHook(shutdown);
+        } catch (IllegalStateException e) {
+            // Already shutting down, the hook drains the queue
+            return;
+        }
+        drain();
+        if (ownsStream) {
+            out.close();
+        }
+    }
+
+    private void drain() {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        queue.add(CLOSE);
+        try {
+            writer.join(TimeUnit.SECONDS.toMillis(WAIT_SECONDS));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void run() {
+        ByteArrayOutputStream batch = new ByteArrayOutputStream();
+        try {
+            while (true) {
+                Event event = queue.take();
+                // Write out everything that is queued in one go
+                do {
+                    if (event == CLOSE) {
+                        write(batch);
+                        return;
+                    } else if (event.written != null) {
+                        write(batch);
+                        event.written.countDown();
+                    } else {
+                        queued.decrementAndGet();
+                        format(event, batch);
+                    }
+                } while ((event = queue.poll()) != null);
+                write(batch);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            // Flushes waiting now, or racing with close(), have nothing more to wait for
+            stopped = true;
+            for (Event event : queue) {
+                if (event.written != null) {
+                    event.written.countDown();
+                }
+            }
+        }
+    }
+
+    private void format(Event event, ByteArrayOutputStream batch) {
+        batch.writeBytes(event.line.getBytes(StandardCharsets.UTF_8));
+        batch.write('\n');
+        if (event.body != null && event.body.length > 0) {
+            try {
+                batch.writeBytes(FidesmoApiClient.mapper.writer(FidesmoApiClient.printer).writeValueAsBytes(FidesmoApiClient.mapper.readTree(event.body)));
+            } catch (IOException e) {
+                // Not JSON, trace as is
+                batch.writeBytes(event.body);
+            }
+            batch.write('\n');
+        }
+    }
+
+    private void write(ByteArrayOutputStream batch) {
+        long lost = dropped.sum();
+        if (lost > reported) {
+            batch.writeBytes(String.format("# %d trace events dropped%n", lost - reported).getBytes(StandardCharsets.UTF_8));
+            reported = lost;
+        }
+        if (batch.size() == 0) {
+            return;
+        }
+        try {
+            batch.writeTo(out);
+            out.flush();
+        } catch (IOException e) {
+            // Tracing must never break the client
+        }
+        batch.reset();
+    }
+
+    private static final class RotatingFile extends OutputStream {
+        private final Path file;
+        private final long maxBytes;
+        private final int maxFiles;
+        private OutputStream out;
+        private long written;
+
+        RotatingFile(Path file, long maxBytes, int maxFiles) throws IOException {
+            this.file = file;
+            this.maxBytes = maxBytes;
+            this.maxFiles = maxFiles;
+            open();
+        }
+
+        private void open() throws IOException {
+            out = new BufferedOutputStream(Files.newOutputStream(file, StandardOpenOption.CREATE, StandardOpenOption.APPEND));
+            written = Files.size(file);
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            out.write(b);
+            written++;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            out.write(b, off, len);
+            written += len;
+        }
+
+        // Rotates between batches, so that an event is never split between files
+        @Override
+        public void flush() throws IOException {
+            out.flush();
+            if (written >= maxBytes) {
+                out.close();
+                for (int i = maxFiles - 1; i > 0; i--) {
+                    Path older = archive(i);
+                    if (Files.exists(older)) {
+                        Files.move(older, archive(i + 1), StandardCopyOption.REPLACE_EXISTING);
+                    }
+                }
+                if (maxFiles > 0) {
+                    Files.move(file, archive(1), StandardCopyOption.REPLACE_EXISTING);
+                } else {
+                    Files.delete(file);
+                }
+                open();
+            }
+        }
+
+        private Path archive(int n) {
+            return Path.of(file + "." + n);
+        }
+
+        @Override
+        public void close() throws IOException {
+            out.close();
+        }
+    }
+}
@@ -36,8 +36,8 @@ import java.util.Optional;
 
 public class AuthenticatedFidesmoApiClient extends FidesmoApiClient {
 
-    private AuthenticatedFidesmoApiClient(String url, ClientAuthentication auth, PrintStream apidump, ClientInfo info) {
-        super(url, auth, apidump, info);
+    private AuthenticatedFidesmoApiClient(String url, ClientAuthentication auth, PrintStream apidump, ClientInfo info, ConnectionSettings settings) {
+        super(url, auth, apidump, info, settings);
     }
 
     public static AuthenticatedFidesmoApiClient getInstance(String url, ClientAuthentication auth, PrintStream apidump) throws IllegalArgumentException {
@@ -45,7 +45,11 @@ public class AuthenticatedFidesmoApiClient extends FidesmoApiClient {
     }
 
     public static AuthenticatedFidesmoApiClient getInstance(String url, ClientAuthentication auth, PrintStream apidump, ClientInfo info) throws IllegalArgumentException {
-        return new AuthenticatedFidesmoApiClient(url, auth, apidump, info);
+        return getInstance(url, auth, apidump, info, ConnectionSettings.defaults());
+    }
+
+    public static AuthenticatedFidesmoApiClient getInstance(String url, ClientAuthentication auth, PrintStream apidump, ClientInfo info, ConnectionSettings settings) throws IllegalArgumentException {
+        return new AuthenticatedFidesmoApiClient(url, auth, apidump, info, settings);
     }
 
     // Upload a CAP file
@@ -77,7 +81,7 @@ public class AuthenticatedFidesmoApiClient extends FidesmoApiClient {
         ByteArrayOutputStream bos = new ByteArrayOutputStream();
         cap.store(bos);
         post.setEntity(new ByteArrayEntity(bos.toByteArray()));
-        transmit(post);
+        transmit(post).close();
     }
 
     private static boolean isJCOPX(CAPFile cap, String version) {
@@ -0,0 +1,110 @@
+/*
+ * Copyright (c) 2018 - present Fidesmo AB
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.fidesmo.fdsm;
+
+import java.time.Duration;
+
+// Connection pooling and circuit breaker parameters of FidesmoApiClient. A single
+// client is safe to share between many concurrent delivery sessions. The circuit
+// breaker is off unless enabled with withCircuitBreaker().
+public class ConnectionSettings {
+    private final static ConnectionSettings defaults = new ConnectionSettings(64, 32, Duration.ofSeconds(30), Duration.ofSeconds(30), 0, Duration.ofSeconds(30));
+
+    private final int maxConnections;
+    private final int maxConnectionsPerRoute;
+    private final Duration keepAlive;
+    private final Duration idleTimeout;
+    private final int failureThreshold;
+    private final Duration openDuration;
+
+    private ConnectionSettings(int maxConnections, int maxConnectionsPerRoute, Duration keepAlive, Duration idleTimeout, int failureThreshold, Duration openDuration) {
+        this.maxConnections = maxConnections;
+        this.maxConnectionsPerRoute = maxConnectionsPerRoute;
+        this.keepAlive = keepAlive;
+        this.idleTimeout = idleTimeout;
+        this.failureThreshold = failureThreshold;
+        this.openDuration = openDuration;
+    }
+
+    public static ConnectionSettings defaults() {
+        return defaults;
+    }
+
+    public int getMaxConnections() {
+        return maxConnections;
+    }
+
+    public int getMaxConnectionsPerRoute() {
+        return maxConnectionsPerRoute;
+    }
+
+    // Used when the server does not announce a keep-alive timeout
+    public Duration getKeepAlive() {
+        return keepAlive;
+    }
+
+    // Pooled connections idle for longer are closed in the background
+    public Duration getIdleTimeout() {
+        return idleTimeout;
+    }
+
+    // Consecutive failures of an endpoint after which its calls fail fast, 0 when off
+    public int getFailureThreshold() {
+        return failureThreshold;
+    }
+
+    // How long calls fail fast before a probe is let through
+    public Duration getOpenDuration() {
+        return openDuration;
+    }
+
+    public ConnectionSettings withMaxConnections(int maxConnections) {
+        requirePositive(maxConnections);
+        return new ConnectionSettings(maxConnections, this.maxConnectionsPerRoute, this.keepAlive, this.idleTimeout, this.failureThreshold, this.openDuration);
+    }
+
+    public ConnectionSettings withMaxConnectionsPerRoute(int maxConnectionsPerRoute) {
+        requirePositive(maxConnectionsPerRoute);
+        return new ConnectionSettings(this.maxConnections, maxConnectionsPerRoute, this.keepAlive, this.idleTimeout, this.failureThreshold, this.openDuration);
+    }
+
+    public ConnectionSettings withKeepAlive(Duration keepAlive) {
+        return new ConnectionSettings(this.maxConnections, this.maxConnectionsPerRoute, keepAlive, this.idleTimeout, this.failureThreshold, this.openDuration);
+    }
+
+    public ConnectionSettings withIdleTimeout(Duration idleTimeout) {
+        return new ConnectionSettings(this.maxConnections, this.maxConnectionsPerRoute, this.keepAlive, idleTimeout, this.failureThreshold, this.openDuration);
+    }
+
+    public ConnectionSettings withCircuitBreaker(int failureThreshold, Duration openDuration) {
+        if (failureThreshold < 1) {
+            throw new IllegalArgumentException("Failure threshold must be positive");
+        }
+        return new ConnectionSettings(this.maxConnections, this.maxConnectionsPerRoute, this.keepAlive, this.idleTimeout, failureThreshold, openDuration);
+    }
+
+    private static void requirePositive(int limit) {
+        if (limit < 1) {
+            throw new IllegalArgumentException("Connection limits must be positive");
+        }
+    }
+}
@@ -0,0 +1,91 @@
+/*
+ * Copyright (c) 2018 - present Fidesmo AB
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.fidesmo.fdsm;
+
+import apdu4j.core.HexUtils;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import com.fasterxml.jackson.databind.DeserializationContext;
+import com.fasterxml.jackson.databind.JsonMappingException;
+import com.fasterxml.jackson.databind.ObjectReader;
+import com.fasterxml.jackson.databind.annotation.JsonDeserialize;
+import com.fasterxml.jackson.databind.deser.std.StdDeserializer;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.stream.Collectors;
+
+// Response of connector/json: next batch of APDU-s to send to the card, empty when done
+@JsonDeserialize(using = ConnectorCommands.Decoder.class)
+public record ConnectorCommands(List<byte[]> apdus) {
+    public static final ObjectReader READER = FidesmoApiClient.readerFor(ConnectorCommands.class);
+
+    public ConnectorCommands {
+        apdus = List.copyOf(apdus);
+    }
+
+    // As hex, like in the protocol
+    public List<String> commands() {
+        return apdus.stream().map(HexUtils::bin2hex).collect(Collectors.toList());
+    }
+
+    // Exchanged for every batch of APDU-s, so decoded straight from the token stream
+    static class Decoder extends StdDeserializer<ConnectorCommands> {
+        private static final long serialVersionUID = 1L;
+
+        Decoder() {
+            super(ConnectorCommands.class);
+        }
+
+        @Override
+        public ConnectorCommands deserialize(JsonParser p, DeserializationContext ctxt) throws IOException {
+            List<byte[]> apdus = null;
+            for (String name = p.nextFieldName(); name != null; name = p.nextFieldName()) {
+                JsonToken token = p.nextToken();
+                if (!name.equals("commands")) {
+                    p.skipChildren();
+                    continue;
+                }
+                if (token != JsonToken.START_ARRAY) {
+                    throw JsonMappingException.from(p, "Expected an array of commands, got " + token);
+                }
+                apdus = new ArrayList<>();
+                for (token = p.nextToken(); token != JsonToken.END_ARRAY; token = p.nextToken()) {
+                    if (token != JsonToken.VALUE_STRING) {
+                        throw JsonMappingException.from(p, "Expected an APDU in hex, got " + token);
+                    }
+                    try {
+                        apdus.add(ApduCodec.read(p));
+                    } catch (IllegalArgumentException e) {
+                        throw ctxt.weirdStringException(p.getText(), byte[].class, e.getMessage());
+                    }
+                }
+            }
+            // An empty batch ends the operation, so a malformed response must not pass for one
+            if (apdus == null) {
+                throw JsonMappingException.from(p, "Missing commands");
+            }
+            return new ConnectorCommands(apdus);
+        }
+    }
+}
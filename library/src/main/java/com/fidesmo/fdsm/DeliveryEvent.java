@@ -0,0 +1,49 @@
+/*
+ * Copyright (c) 2018 - present Fidesmo AB
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.fidesmo.fdsm;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.util.Optional;
+
+// A finished phase of a delivery, as seen by the session: when it ended, how long it took, and
+// the APDU-s exchanged with the card in it. COMPLETED and FAILED carry the totals of the delivery.
+public record DeliveryEvent(Phase phase, String sessionId, Instant time, Duration duration, int apdus, long bytesSent, long bytesReceived) {
+
+    public enum Phase {
+        IDENTIFY, // Device metadata; overlaps the card reset and SERVICE_LOOKUP
+        SERVICE_LOOKUP,
+        DELIVER, // Starting the delivery session
+        FETCH, // Waiting for the next operation
+        TRANSCEIVE, // A batch of APDU-s on the card
+        CONNECTOR, // Sending card responses, getting the next batch
+        USER_INTERACTION, // Waiting for the user to fill in a form
+        ACTION, // Waiting for the user to act
+        COMPLETED, // Delivered successfully
+        FAILED // Delivery unsuccessful or interrupted by an error
+    }
+
+    // Not known before the delivery has been started
+    public Optional<String> getSessionId() {
+        return Optional.ofNullable(sessionId);
+    }
+}
@@ -0,0 +1,114 @@
+/*
+ * Copyright (c) 2018 - present Fidesmo AB
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.fidesmo.fdsm;
+
+import apdu4j.core.HexUtils;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Optional;
+
+// Metadata of devices, by CIN and batch, shared by the card operations and delivery sessions
+// of a client, so that the steps of a flow on one card do not look the device up again.
+// Entries are dropped after a TTL, and should be invalidated when the device is batched.
+public final class DeviceCache {
+    private final Map<Key, Entry> entries;
+    private final Duration ttl;
+
+    private record Key(String cin, int batchId) {
+    }
+
+    // Either part is null until looked up
+    private record Entry(DeviceInfo info, Batching batching, Instant expires) {
+    }
+
+    // Batching state of a device, as told by devices/identify; url is null if nothing is to be done
+    public record Batching(DeliveryUrl url) {
+        public Optional<DeliveryUrl> getUrl() {
+            return Optional.ofNullable(url);
+        }
+    }
+
+    public DeviceCache(int maxEntries, Duration ttl) {
+        if (maxEntries < 1) {
+            throw new IllegalArgumentException("Cache size must be positive");
+        }
+        this.ttl = ttl;
+        this.entries = new LinkedHashMap<>(16, 0.75f, true) {
+            private static final long serialVersionUID = 1L;
+
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Key, Entry> eldest) {
+                return size() > maxEntries;
+            }
+        };
+    }
+
+    public synchronized Optional<DeviceInfo> getDeviceInfo(byte[] cin, int batchId) {
+        return entry(cin, batchId).map(Entry::info);
+    }
+
+    public synchronized void putDeviceInfo(byte[] cin, int batchId, DeviceInfo info) {
+        Entry entry = entry(cin, batchId).orElse(null);
+        entries.put(key(cin, batchId), new Entry(info, entry == null ? null : entry.batching(), Instant.now().plus(ttl)));
+    }
+
+    public synchronized Optional<Batching> getBatching(byte[] cin, int batchId) {
+        return entry(cin, batchId).map(Entry::batching);
+    }
+
+    public synchronized void putBatching(byte[] cin, int batchId, DeliveryUrl url) {
+        Entry entry = entry(cin, batchId).orElse(null);
+        entries.put(key(cin, batchId), new Entry(entry == null ? null : entry.info(), new Batching(url), Instant.now().plus(ttl)));
+    }
+
+    // Drops everything known about the device, in all batches. Batching changes the batch
+    // of a device, and may change its capabilities.
+    public synchronized void invalidate(byte[] cin) {
+        String hex = HexUtils.bin2hex(cin);
+        entries.keySet().removeIf(key -> key.cin().equals(hex));
+    }
+
+    public synchronized void clear() {
+        entries.clear();
+    }
+
+    public synchronized int size() {
+        return entries.size();
+    }
+
+    private Optional<Entry> entry(byte[] cin, int batchId) {
+        Key key = key(cin, batchId);
+        Entry entry = entries.get(key);
+        if (entry != null && !Instant.now().isBefore(entry.expires())) {
+            entries.remove(key);
+            return Optional.empty();
+        }
+        return Optional.ofNullable(entry);
+    }
+
+    private static Key key(byte[] cin, int batchId) {
+        return new Key(HexUtils.bin2hex(cin), batchId);
+    }
+}
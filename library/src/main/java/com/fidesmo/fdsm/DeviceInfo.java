@@ -0,0 +1,45 @@
+/*
+ * Copyright (c) 2018 - present Fidesmo AB
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.fidesmo.fdsm;
+
+import com.fasterxml.jackson.databind.ObjectReader;
+
+import java.util.Optional;
+
+// Response of devices/:cin?batchId=:batchId
+public record DeviceInfo(String iin, Description description) {
+    public static final ObjectReader READER = FidesmoApiClient.readerFor(DeviceInfo.class);
+
+    public record Description(Capabilities capabilities) {
+    }
+
+    public record Capabilities(int platformVersion, String osTypeVersionName) {
+    }
+
+    public int platformVersion() {
+        return description.capabilities().platformVersion();
+    }
+
+    public Optional<String> osTypeVersionName() {
+        return Optional.ofNullable(description.capabilities().osTypeVersionName());
+    }
+}
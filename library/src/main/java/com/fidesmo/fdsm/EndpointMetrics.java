@@ -0,0 +1,113 @@
+/*
+ * Copyright (c) 2018 - present Fidesmo AB
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.fidesmo.fdsm;
+
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+// Request statistics of a single API endpoint
+public final class EndpointMetrics {
+    private final LatencyHistogram latency = new LatencyHistogram();
+    private final Map<Integer, LongAdder> statuses = new ConcurrentHashMap<>();
+    private final LongAdder failures = new LongAdder();
+    private final LongAdder rejections = new LongAdder();
+    private final LongAdder retries = new LongAdder();
+    private final LongAdder bytesSent = new LongAdder();
+    private final LongAdder bytesReceived = new LongAdder();
+
+    EndpointMetrics() {
+    }
+
+    void response(int status, long nanos) {
+        latency.record(nanos);
+        LongAdder count = statuses.get(status);
+        if (count == null) {
+            count = statuses.computeIfAbsent(status, s -> new LongAdder());
+        }
+        count.increment();
+    }
+
+    void failed(long nanos) {
+        latency.record(nanos);
+        failures.increment();
+    }
+
+    void rejected() {
+        rejections.increment();
+    }
+
+    void retried() {
+        retries.increment();
+    }
+
+    void sent(long bytes) {
+        bytesSent.add(bytes);
+    }
+
+    void received(long bytes) {
+        bytesReceived.add(bytes);
+    }
+
+    // Time until the response status (blocking requests) or the complete response (asynchronous requests)
+    public LatencyHistogram getLatency() {
+        return latency;
+    }
+
+    // Responses by HTTP status code
+    public Map<Integer, Long> getStatusCounts() {
+        Map<Integer, Long> counts = new TreeMap<>();
+        statuses.forEach((status, count) -> counts.put(status, count.sum()));
+        return counts;
+    }
+
+    // Requests that got no response at all
+    public long getFailures() {
+        return failures.sum();
+    }
+
+    // Requests not sent because the circuit of the endpoint was open
+    public long getRejections() {
+        return rejections.sum();
+    }
+
+    public long getRetries() {
+        return retries.sum();
+    }
+
+    public long getBytesSent() {
+        return bytesSent.sum();
+    }
+
+    public long getBytesReceived() {
+        return bytesReceived.sum();
+    }
+
+    @Override
+    public String toString() {
+        return String.format("count=%d p50=%dms p90=%dms p99=%dms max=%dms status=%s failures=%d rejections=%d retries=%d sent=%d received=%d",
+                latency.getCount(), latency.getPercentile(50).toMillis(), latency.getPercentile(90).toMillis(),
+                latency.getPercentile(99).toMillis(), latency.getMax().toMillis(), getStatusCounts(),
+                getFailures(), getRejections(), getRetries(), getBytesSent(), getBytesReceived());
+    }
+}
@@ -0,0 +1,93 @@
+/*
+ * Copyright (c) 2018 - present Fidesmo AB
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.fidesmo.fdsm;
+
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Pattern;
+
+// Maps request URI-s back to the API endpoint templates of FidesmoApiClient,
+// to keep per-endpoint state and statistics independent of identifiers in the path
+final class Endpoints {
+    static final String OTHER = "other";
+
+    private static final Map<String, Pattern> templates = new LinkedHashMap<>();
+
+    static {
+        List<String> all = new ArrayList<>(List.of(
+                FidesmoApiClient.APPS_URL,
+                FidesmoApiClient.APP_INFO_URL,
+                FidesmoApiClient.APP_SERVICES_URL,
+                FidesmoApiClient.SERVICE_URL,
+                FidesmoApiClient.SERVICE_RECIPE_URL,
+                FidesmoApiClient.RECIPE_SERVICES_URL,
+                FidesmoApiClient.CAPFILES_URL,
+                FidesmoApiClient.CAPFILES_ID_URL,
+                FidesmoApiClient.SERVICE_DELIVER_URL,
+                FidesmoApiClient.SERVICE_FETCH_URL,
+                FidesmoApiClient.SERVICE_DELIVERY_ERROR_URL,
+                FidesmoApiClient.CONNECTOR_URL,
+                FidesmoApiClient.DEVICE_IDENTIFY_URL,
+                FidesmoApiClient.DEVICES_URL));
+        // Fixed paths take precedence over parameters: devices/identify is not devices/%s
+        all.sort(Comparator.comparingInt(t -> path(t).split("%s", -1).length));
+        for (String template : all) {
+            String[] parts = path(template).split("%s", -1);
+            StringBuilder regex = new StringBuilder();
+            for (int i = 0; i < parts.length; i++) {
+                if (i > 0) {
+                    regex.append("[^/]*");
+                }
+                regex.append(Pattern.quote(parts[i]));
+            }
+            templates.put(template, Pattern.compile(regex.toString()));
+        }
+    }
+
+    private Endpoints() {
+    }
+
+    // Query parameters do not tell endpoints apart
+    private static String path(String template) {
+        int query = template.indexOf('?');
+        return query < 0 ? template : template.substring(0, query);
+    }
+
+    // Template of the endpoint, or OTHER for URI-s outside of the API
+    static String of(String apiurl, URI uri) {
+        String url = uri.toString();
+        if (!url.startsWith(apiurl)) {
+            return OTHER;
+        }
+        String path = path(url.substring(apiurl.length()));
+        for (Map.Entry<String, Pattern> template : templates.entrySet()) {
+            if (template.getValue().matcher(path).matches()) {
+                return template.getKey();
+            }
+        }
+        return OTHER;
+    }
+}
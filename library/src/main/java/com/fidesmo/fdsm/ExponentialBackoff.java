@@ -0,0 +1,105 @@
+/*
+ * Copyright (c) 2018 - present Fidesmo AB
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.fidesmo.fdsm;
+
+import java.time.Duration;
+import java.util.Optional;
+import java.util.concurrent.ThreadLocalRandom;
+
+// Delays grow exponentially up to a limit. Jitter spreads the retries of
+// many clients that failed at the same moment.
+public final class ExponentialBackoff implements RetryPolicy {
+    private final static ExponentialBackoff defaults = new ExponentialBackoff(10, Duration.ofMillis(250), Duration.ofSeconds(30), 2.0, 0.5, 0.2);
+
+    private final int maxRetries;
+    private final Duration initialDelay;
+    private final Duration maxDelay;
+    private final double multiplier;
+    private final double jitter;
+    private final double budget;
+
+    private ExponentialBackoff(int maxRetries, Duration initialDelay, Duration maxDelay, double multiplier, double jitter, double budget) {
+        this.maxRetries = maxRetries;
+        this.initialDelay = initialDelay;
+        this.maxDelay = maxDelay;
+        this.multiplier = multiplier;
+        this.jitter = jitter;
+        this.budget = budget;
+    }
+
+    public static ExponentialBackoff defaults() {
+        return defaults;
+    }
+
+    @Override
+    public Optional<Duration> nextDelay(int retry) {
+        if (retry > maxRetries) {
+            return Optional.empty();
+        }
+        double delay = Math.min(initialDelay.toMillis() * Math.pow(multiplier, retry - 1), maxDelay.toMillis());
+        // Randomly shortened by up to the jitter fraction
+        delay -= delay * jitter * ThreadLocalRandom.current().nextDouble();
+        return Optional.of(Duration.ofMillis(Math.round(delay)));
+    }
+
+    @Override
+    public double getBudget() {
+        return budget;
+    }
+
+    public int getMaxRetries() {
+        return maxRetries;
+    }
+
+    public ExponentialBackoff withMaxRetries(int maxRetries) {
+        if (maxRetries < 0) {
+            throw new IllegalArgumentException("Retries must not be negative");
+        }
+        return new ExponentialBackoff(maxRetries, initialDelay, maxDelay, multiplier, jitter, budget);
+    }
+
+    public ExponentialBackoff withDelays(Duration initialDelay, Duration maxDelay) {
+        return new ExponentialBackoff(maxRetries, initialDelay, maxDelay, multiplier, jitter, budget);
+    }
+
+    public ExponentialBackoff withMultiplier(double multiplier) {
+        if (multiplier < 1.0) {
+            throw new IllegalArgumentException("Multiplier must be at least 1");
+        }
+        return new ExponentialBackoff(maxRetries, initialDelay, maxDelay, multiplier, jitter, budget);
+    }
+
+    // 0 for fixed delays, 1 for "full jitter"
+    public ExponentialBackoff withJitter(double jitter) {
+        if (jitter < 0.0 || jitter > 1.0) {
+            throw new IllegalArgumentException("Jitter must be between 0 and 1");
+        }
+        return new ExponentialBackoff(maxRetries, initialDelay, maxDelay, multiplier, jitter, budget);
+    }
+
+    public ExponentialBackoff withBudget(double budget) {
+        if (budget < 0.0) {
+            throw new IllegalArgumentException("Budget must not be negative");
+        }
+        return new ExponentialBackoff(maxRetries, initialDelay, maxDelay, multiplier, jitter, budget);
+    }
+}
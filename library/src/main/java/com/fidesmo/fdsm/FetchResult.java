@@ -0,0 +1,72 @@
+/*
+ * Copyright (c) 2018 - present Fidesmo AB
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.fidesmo.fdsm;
+
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.databind.DeserializationContext;
+import com.fasterxml.jackson.databind.JsonMappingException;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectReader;
+import com.fasterxml.jackson.databind.annotation.JsonDeserialize;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import com.fasterxml.jackson.databind.deser.std.StdDeserializer;
+
+import java.io.IOException;
+
+// Response of service/fetch: either the next operation to perform or the final status of the delivery.
+// The response is also kept as received, fields not decoded here included, for the extension points
+// of ServiceDeliverySession.
+@JsonDeserialize(using = FetchResult.Decoder.class)
+public record FetchResult(boolean completed, Status status, String operationType, String operationId,
+                          boolean encrypted, JsonNode fields, JsonNode actions, ObjectNode operation) {
+    public static final ObjectReader READER = FidesmoApiClient.readerFor(FetchResult.class);
+
+    // Messages are kept as JSON, as they may be multilingual
+    public record Status(boolean success, JsonNode message, JsonNode scriptStatus) {
+    }
+
+    static class Decoder extends StdDeserializer<FetchResult> {
+        private static final long serialVersionUID = 1L;
+
+        Decoder() {
+            super(FetchResult.class);
+        }
+
+        @Override
+        public FetchResult deserialize(JsonParser p, DeserializationContext ctxt) throws IOException {
+            JsonNode tree = p.readValueAsTree();
+            if (!(tree instanceof ObjectNode operation)) {
+                throw JsonMappingException.from(p, "Expected an object");
+            }
+            JsonNode status = operation.get("status");
+            return new FetchResult(operation.path("completed").booleanValue(),
+                    status != null && status.isObject() ? new Status(status.path("success").booleanValue(), status.get("message"), status.get("scriptStatus")) : null,
+                    text(operation, "operationType"), text(operation, "operationId"), operation.path("encrypted").booleanValue(),
+                    operation.get("fields"), operation.get("actions"), operation);
+        }
+
+        private static String text(JsonNode node, String name) {
+            JsonNode value = node.get(name);
+            return value == null || !value.isValueNode() || value.isNull() ? null : value.asText();
+        }
+    }
+}
@@ -24,37 +24,68 @@ package com.fidesmo.fdsm;
 import com.fasterxml.jackson.core.type.TypeReference;
 import com.fasterxml.jackson.core.util.DefaultIndenter;
 import com.fasterxml.jackson.core.util.DefaultPrettyPrinter;
+import com.fasterxml.jackson.databind.DeserializationFeature;
 import com.fasterxml.jackson.databind.JsonNode;
 import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.ObjectReader;
 import com.fasterxml.jackson.databind.node.ObjectNode;
+import com.fidesmo.fdsm.exceptions.ApiResponseException;
+import com.fidesmo.fdsm.exceptions.CircuitOpenException;
 
 import org.apache.commons.io.IOUtils;
+import org.apache.http.Header;
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpEntityEnclosingRequest;
 import org.apache.http.HttpHeaders;
 import org.apache.http.client.HttpResponseException;
+import org.apache.http.client.config.RequestConfig;
 import org.apache.http.client.methods.CloseableHttpResponse;
 import org.apache.http.client.methods.HttpDelete;
 import org.apache.http.client.methods.HttpGet;
 import org.apache.http.client.methods.HttpPost;
 import org.apache.http.client.methods.HttpPut;
 import org.apache.http.client.methods.HttpRequestBase;
-import org.apache.http.client.protocol.HttpClientContext;
+import org.apache.http.entity.BufferedHttpEntity;
 import org.apache.http.entity.ByteArrayEntity;
 import org.apache.http.entity.ContentType;
-import org.apache.http.entity.StringEntity;
+import org.apache.http.entity.HttpEntityWrapper;
 import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.impl.client.DefaultConnectionKeepAliveStrategy;
 import org.apache.http.impl.client.HttpClientBuilder;
 import org.apache.http.message.BasicHeader;
 
 import java.io.*;
+import java.net.ConnectException;
+import java.net.ProxySelector;
 import java.net.URI;
 import java.net.URISyntaxException;
+import java.net.UnknownHostException;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.ByteBuffer;
 import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.time.Instant;
 import java.util.Arrays;
+import java.util.List;
 import java.util.Locale;
 import java.util.Map;
+import java.util.Objects;
+import java.util.Optional;
+import java.util.TreeMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Flow;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.LongAdder;
 import java.util.regex.Pattern;
+import java.util.stream.Collectors;
 
-public class FidesmoApiClient {
+public class FidesmoApiClient implements Closeable {
     public static final String APIv3 = "https://api.fidesmo.com/v3/";
 
     public static final String APPS_URL = "apps%s";
@@ -79,12 +110,36 @@ public class FidesmoApiClient {
     public static final String DEVICE_IDENTIFY_URL = "devices/identify?cplc=%s";
     public static final String DEVICE_IDENTIFY_WITH_UID_URL = "devices/identify?cplc=%s&uid=%s";
 
-    private PrintStream apidump;
+    private static final String PREFER = "Prefer";
+    private static final String PREFERENCE_APPLIED = "Preference-Applied";
+    private static final long LONG_POLL_GRACE_SECONDS = 30;
+    private static final int DEVICE_CACHE_SIZE = 1024;
+    private static final Duration DEVICE_CACHE_TTL = Duration.ofMinutes(10);
+    // Response headers that change how the client acts on a response, kept in recordings
+    private static final List<String> RECORDED_HEADERS = List.of(HttpHeaders.CONTENT_TYPE, HttpHeaders.CACHE_CONTROL, HttpHeaders.ETAG, HttpHeaders.RETRY_AFTER, PREFERENCE_APPLIED);
+
+    private final ApiTraceWriter ownTrace; // Created for the apidump stream, closed with the client
+    private ApiTraceWriter stdoutTrace; // Created by setTrace(true) without apidump stream, guarded by this
+    private final AtomicReference<ApiTraceWriter> trace;
+    private final AtomicReference<SessionRecorder> recorder = new AtomicReference<>();
     private final CloseableHttpClient http;
-    private final HttpClientContext context = HttpClientContext.create();
+    private HttpClient asyncHttp; // Created on first asynchronous request
+    private final AsyncPermits asyncPermits; // Bounds the connections of asyncHttp
     private final String apiurl;
     private final ClientInfo info;
     protected final ClientAuthentication authentication;
+    private final AtomicReference<ResponseCache> cache = new AtomicReference<>(); // GET responses, when enabled
+    private final AtomicReference<DeviceCache> deviceCache = new AtomicReference<>(new DeviceCache(DEVICE_CACHE_SIZE, DEVICE_CACHE_TTL));
+    private final CacheStatistics cacheStatistics = new CacheStatistics();
+    private final Map<URI, CompletableFuture<String>> inflight = new ConcurrentHashMap<>(); // GET requests
+    private final LongAdder coalesced = new LongAdder();
+    private final AtomicReference<RetryPolicy> retryPolicy = new AtomicReference<>(ExponentialBackoff.defaults());
+    private final Map<String, RetryBudget> retryBudgets = new ConcurrentHashMap<>(); // By endpoint template
+    private final Map<String, CircuitBreaker> circuits = new ConcurrentHashMap<>(); // By endpoint template
+    private final Map<String, RateLimiter> rateLimits = new ConcurrentHashMap<>(); // By endpoint template, when enabled
+    private final AtomicReference<ApiMetrics> metrics = new AtomicReference<>(new ApiMetrics());
+    private final int failureThreshold;
+    private final Duration openDuration;
 
     static DefaultPrettyPrinter printer = new DefaultPrettyPrinter();
     static ObjectMapper mapper = new ObjectMapper();
@@ -110,72 +165,121 @@ public class FidesmoApiClient {
     }
 
     public FidesmoApiClient(String url, ClientAuthentication authentication, OutputStream apidump, ClientInfo info) {
+        this(url, authentication, apidump, info, ConnectionSettings.defaults());
+    }
+
+    public FidesmoApiClient(String url, ClientAuthentication authentication, OutputStream apidump, ClientInfo info, ConnectionSettings settings) {
         this.apiurl = url.endsWith("/") ? url : url + "/";
         this.authentication = authentication;
         this.info = info;
+        this.failureThreshold = settings.getFailureThreshold();
+        this.openDuration = settings.getOpenDuration();
+        this.asyncPermits = new AsyncPermits(settings.getMaxConnectionsPerRoute());
 
+        // Explicit pool limits, as the default allows only 2 connections per route
         this.http = HttpClientBuilder
                 .create()
                 .useSystemProperties()
+                .setMaxConnTotal(settings.getMaxConnections())
+                .setMaxConnPerRoute(settings.getMaxConnectionsPerRoute())
+                .setKeepAliveStrategy((response, context) -> {
+                    long keepAlive = DefaultConnectionKeepAliveStrategy.INSTANCE.getKeepAliveDuration(response, context);
+                    return keepAlive > 0 ? keepAlive : settings.getKeepAlive().toMillis();
+                })
+                .evictExpiredConnections()
+                .evictIdleConnections(settings.getIdleTimeout().toMillis(), TimeUnit.MILLISECONDS)
                 .setUserAgent("fdsm/" + ClientInfo.getBuildVersion())
                 .setDefaultHeaders(info.asHeaders())
                 .build();
-        this.apidump = apidump == null ? null : new PrintStream(apidump, true, StandardCharsets.UTF_8);
+        this.ownTrace = apidump == null ? null : ApiTraceWriter.forStream(apidump);
+        this.trace = new AtomicReference<>(ownTrace);
     }
 
 
     public CloseableHttpResponse get(URI uri) throws IOException {
         HttpGet get = new HttpGet(uri);
-        if (apidump != null) {
-            apidump.println(get.getMethod() + ": " + get.getURI());
-        }
-        
+        traceRequest(get.getMethod(), get.getURI(), null);
         return transmit(get);
     }
 
     public CloseableHttpResponse put(URI uri, ObjectNode json) throws IOException {
         HttpPut put = new HttpPut(uri);
-        put.setEntity(new StringEntity(RecipeGenerator.mapper.writeValueAsString(json), ContentType.APPLICATION_JSON));
-        
-        if (apidump != null) {
-            apidump.println(put.getMethod() + ": " + put.getURI());
-            apidump.println(mapper.writer(printer).writeValueAsString(json));
-        }
-
+        byte[] body = RecipeGenerator.mapper.writeValueAsBytes(json);
+        put.setEntity(new ByteArrayEntity(body, ContentType.APPLICATION_JSON));
+        traceRequest(put.getMethod(), put.getURI(), body);
         return transmit(put);
     }
 
     public CloseableHttpResponse post(URI uri, ObjectNode json) throws IOException {
         HttpPost post = new HttpPost(uri);
-        post.setEntity(new StringEntity(RecipeGenerator.mapper.writeValueAsString(json), ContentType.APPLICATION_JSON));
-        
-        if (apidump != null) {
-            apidump.println(post.getMethod() + ": " + post.getURI());  
-            apidump.println(mapper.writer(printer).writeValueAsString(json));            
-        }
-
+        byte[] body = RecipeGenerator.mapper.writeValueAsBytes(json);
+        post.setEntity(new ByteArrayEntity(body, ContentType.APPLICATION_JSON));
+        traceRequest(post.getMethod(), post.getURI(), body);
         return transmit(post);
     }
 
     public void delete(URI uri) throws IOException {
         HttpDelete delete = new HttpDelete(uri);
-        if (apidump != null) {
-            apidump.println(delete.getMethod() + ": " + delete.getURI());           
-        }
+        traceRequest(delete.getMethod(), delete.getURI(), null);
         transmit(delete).close();
     }
 
+    // Throws CircuitOpenException without sending the request when the endpoint has been failing
     public CloseableHttpResponse transmit(HttpRequestBase request) throws IOException {
         if (authentication != null) {
             request.addHeader(new BasicHeader(HttpHeaders.AUTHORIZATION, authentication.toAuthenticationHeader()));
         }
+        invalidate(request.getMethod(), request.getURI());
+
+        String endpoint = Endpoints.of(apiurl, request.getURI());
+        long throttle = throttle(endpoint);
+        if (throttle > 0) {
+            try {
+                TimeUnit.NANOSECONDS.sleep(throttle);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted");
+            }
+        }
+        EndpointMetrics stats = metrics.get().endpoint(endpoint);
+        CircuitBreaker breaker = circuit(endpoint);
+        if (breaker != null && !breaker.tryAcquire()) {
+            stats.rejected();
+            throw new CircuitOpenException(endpoint, breaker.remaining());
+        }
+        if (request instanceof HttpEntityEnclosingRequest) {
+            HttpEntity entity = ((HttpEntityEnclosingRequest) request).getEntity();
+            if (entity != null && entity.getContentLength() > 0) {
+                stats.sent(entity.getContentLength());
+            }
+        }
 
-        CloseableHttpResponse response = http.execute(request, context);
+        // Safe to call from many threads: the client keeps no per-request state
+        long start = System.nanoTime();
+        final CloseableHttpResponse response;
+        try {
+            response = http.execute(request);
+        } catch (IOException | RuntimeException e) {
+            stats.failed(System.nanoTime() - start);
+            record(breaker, endpoint, -1);
+            throw e;
+        }
+        long elapsed = System.nanoTime() - start;
         int responseCode = response.getStatusLine().getStatusCode();
-        if (responseCode < 200 || responseCode > 299) {
+        stats.response(responseCode, elapsed);
+        record(breaker, endpoint, responseCode);
+        if (response.getEntity() != null) {
+            response.setEntity(new CountingEntity(response.getEntity(), stats));
+        }
+        SessionRecorder recorder = this.recorder.get();
+        if (recorder != null) {
+            recordExchange(recorder, request, response, elapsed);
+        }
+        if (!isSuccess(responseCode, request.containsHeader(HttpHeaders.IF_NONE_MATCH))) {
             String message = response.getStatusLine() + "\n" + IOUtils.toString(response.getEntity().getContent(), StandardCharsets.UTF_8);
+            Header retryAfter = response.getFirstHeader(HttpHeaders.RETRY_AFTER);
             response.close();
-            throw new HttpResponseException(responseCode, message);
+            throw new ApiResponseException(responseCode, message, ApiResponseException.parseRetryAfter(retryAfter == null ? null : retryAfter.getValue()));
         }
         return response;
     }
@@ -185,37 +289,769 @@ public class FidesmoApiClient {
     }
 
     public JsonNode rpc(URI uri, JsonNode request) throws IOException {
+        if (request == null) {
+            String body = await(sharedGet(uri));
+            return body == null ? null : mapper.readTree(body);
+        }
+        try (CloseableHttpResponse response = transmit(rpcRequest(uri, request))) {
+            if (response.getStatusLine().getStatusCode() == 204) {
+                // Empty response
+                traceResponse(response, null);
+                return null;
+            } else if (trace.get() != null) {
+                byte[] body = IOUtils.toByteArray(response.getEntity().getContent());
+                traceResponse(response, body);
+                return mapper.readTree(body);
+            } else {
+                // getContent will throw if bad response
+                return mapper.readTree(response.getEntity().getContent());
+            }
+        }
+    }
+
+    // Decodes the response with a pre-built reader straight into a typed value,
+    // without building an intermediate JSON tree
+    public <T> T rpc(URI uri, JsonNode request, ObjectReader reader) throws IOException {
+        if (request == null) {
+            String body = await(sharedGet(uri));
+            return body == null ? null : reader.readValue(body);
+        }
+        try (CloseableHttpResponse response = transmit(rpcRequest(uri, request))) {
+            return decode(response, reader);
+        }
+    }
+
+    // Long-polling variant of rpc() for endpoints that answer 204 until they have a result:
+    // asks the server to hold the request for up to wait (RFC 7240 "Prefer: wait") and polls
+    // again right away while it does. Returns null if the server answers 204 without holding
+    // the request, so that callers fall back to polling with backoff.
+    public <T> T longPoll(URI uri, JsonNode request, ObjectReader reader, Duration wait, Instant deadline) throws IOException {
+        while (true) {
+            long seconds = Math.min(wait.toSeconds(), Duration.between(Instant.now(), deadline).toSeconds());
+            if (seconds < 1) {
+                return null;
+            }
+            HttpRequestBase req = rpcRequest(uri, request);
+            req.setHeader(PREFER, "wait=" + seconds);
+            // Notice a lost connection soon after the server should have answered
+            req.setConfig(RequestConfig.custom().setSocketTimeout((int) Math.min(Integer.MAX_VALUE, TimeUnit.SECONDS.toMillis(seconds + LONG_POLL_GRACE_SECONDS))).build());
+            try (CloseableHttpResponse response = transmit(req)) {
+                T result = decode(response, reader);
+                Header applied = response.getFirstHeader(PREFERENCE_APPLIED);
+                if (result != null || applied == null || !applied.getValue().toLowerCase(Locale.ROOT).contains("wait")) {
+                    return result;
+                }
+            }
+            if (Thread.currentThread().isInterrupted()) {
+                throw new InterruptedIOException("Interrupted");
+            }
+        }
+    }
+
+    private <T> T decode(CloseableHttpResponse response, ObjectReader reader) throws IOException {
+        if (response.getStatusLine().getStatusCode() == 204) {
+            // Empty response
+            traceResponse(response, null);
+            return null;
+        } else if (trace.get() != null) {
+            byte[] body = IOUtils.toByteArray(response.getEntity().getContent());
+            traceResponse(response, body);
+            return reader.readValue(body);
+        } else {
+            return reader.readValue(response.getEntity().getContent());
+        }
+    }
+
+    private HttpRequestBase rpcRequest(URI uri, JsonNode request) throws IOException {
         final HttpRequestBase req;
+        final byte[] body;
         if (request != null) {
             HttpPost post = new HttpPost(uri);
-            post.setEntity(new ByteArrayEntity(mapper.writeValueAsBytes(request)));
+            body = mapper.writeValueAsBytes(request);
+            post.setEntity(new ByteArrayEntity(body));
             req = post;
         } else {
             req = new HttpGet(uri);
+            body = null;
         }
+        traceRequest(req.getMethod(), req.getURI(), body);
+        return req;
+    }
 
-        if (apidump != null) {
-            apidump.println(req.getMethod() + ": " + req.getURI());
-            if (req.getMethod().equals("POST"))
-                apidump.println(mapper.writer(printer).writeValueAsString(request));
+    // Concurrent identical GET requests share a single network call. Every caller
+    // gets the body to decode on its own, as JSON trees are mutable.
+    private CompletableFuture<String> sharedGet(URI uri) {
+        CompletableFuture<String> shared = new CompletableFuture<>();
+        CompletableFuture<String> running = inflight.putIfAbsent(uri, shared);
+        if (running != null) {
+            coalesced.increment();
+            return running.copy(); // Cancelling a copy does not affect the other callers
+        }
+        try {
+            shared.complete(fetch(uri, responseCache()));
+        } catch (IOException | RuntimeException e) {
+            shared.completeExceptionally(e);
+        } finally {
+            inflight.remove(uri, shared);
         }
+        return shared.copy();
+    }
 
-        try (CloseableHttpResponse response = transmit(req)) {
-            if (apidump != null) {
-                apidump.println("RECV: " + response.getStatusLine().getStatusCode() + " " + response.getStatusLine().getReasonPhrase());
+    private CompletableFuture<String> sharedGetAsync(URI uri) {
+        CompletableFuture<String> shared = new CompletableFuture<>();
+        CompletableFuture<String> running = inflight.putIfAbsent(uri, shared);
+        if (running != null) {
+            coalesced.increment();
+            return running.copy();
+        }
+        fetchAsync(uri, responseCache()).whenComplete((body, e) -> {
+            inflight.remove(uri, shared);
+            if (e != null) {
+                shared.completeExceptionally(e instanceof CompletionException && e.getCause() != null ? e.getCause() : e);
+            } else {
+                shared.complete(body);
             }
-            if (response.getStatusLine().getStatusCode() == 204) {
+        });
+        return shared.copy();
+    }
+
+    // A ResponseCache may be shared between clients and kept on disk, so it only holds what any
+    // client may get: requests with credentials neither use nor fill it
+    private ResponseCache responseCache() {
+        return authentication == null ? cache.get() : null;
+    }
+
+    // With a cache, fresh entries are served without a request and stale ones are revalidated with If-None-Match
+    private String fetch(URI uri, ResponseCache cache) throws IOException {
+        Optional<ResponseCache.Entry> cached = cache == null ? Optional.empty() : cache.get(uri);
+        if (cached.isPresent() && cached.get().isFresh(Instant.now())) {
+            cacheStatistics.hit();
+            traceMessage("CACHED: " + uri);
+            return cached.get().body();
+        }
+
+        HttpGet get = new HttpGet(uri);
+        cached.filter(ResponseCache.Entry::canRevalidate).ifPresent(entry -> get.setHeader(HttpHeaders.IF_NONE_MATCH, entry.etag()));
+        traceRequest(get.getMethod(), get.getURI(), null);
+        final CloseableHttpResponse transmitted;
+        try {
+            transmitted = transmit(get);
+        } catch (CircuitOpenException e) {
+            return stale(uri, cached, e);
+        }
+        try (CloseableHttpResponse response = transmitted) {
+            int responseCode = response.getStatusLine().getStatusCode();
+            List<String> cacheControl = Arrays.stream(response.getHeaders(HttpHeaders.CACHE_CONTROL)).map(Header::getValue).collect(Collectors.toList());
+            Header etag = response.getFirstHeader(HttpHeaders.ETAG);
+            final String body;
+            if (responseCode == 304 && cached.isPresent()) {
+                cacheStatistics.revalidated();
+                traceResponse(response, null);
+                body = cached.get().body();
+            } else {
+                if (cache != null) {
+                    cacheStatistics.miss();
+                }
+                if (responseCode == 204) {
+                    traceResponse(response, null);
+                    return null;
+                }
+                byte[] raw = IOUtils.toByteArray(response.getEntity().getContent());
+                traceResponse(response, raw);
+                body = new String(raw, StandardCharsets.UTF_8);
+            }
+            store(cache, uri, body, etag == null ? cached.map(ResponseCache.Entry::etag).orElse(null) : etag.getValue(), cacheControl);
+            return body;
+        }
+    }
+
+    private CompletableFuture<String> fetchAsync(URI uri, ResponseCache cache) {
+        Optional<ResponseCache.Entry> cached = cache == null ? Optional.empty() : cache.get(uri);
+        if (cached.isPresent() && cached.get().isFresh(Instant.now())) {
+            cacheStatistics.hit();
+            traceMessage("CACHED: " + uri);
+            return CompletableFuture.completedFuture(cached.get().body());
+        }
+
+        HttpRequest.Builder builder = asyncRequest(uri).GET();
+        cached.filter(ResponseCache.Entry::canRevalidate).ifPresent(entry -> builder.header(HttpHeaders.IF_NONE_MATCH, entry.etag()));
+        HttpRequest get = builder.build();
+        traceRequest(get.method(), get.uri(), null);
+        return transmitAsync(get).thenApply(response -> {
+            final String body;
+            if (response.statusCode() == 304 && cached.isPresent()) {
+                cacheStatistics.revalidated();
+                traceResponse(response.statusCode(), null);
+                body = cached.get().body();
+            } else {
+                if (cache != null) {
+                    cacheStatistics.miss();
+                }
+                traceResponse(response.statusCode(), response.body());
+                if (response.statusCode() == 204) {
+                    return null;
+                }
+                body = new String(response.body(), StandardCharsets.UTF_8);
+            }
+            String etag = response.headers().firstValue(HttpHeaders.ETAG).orElse(cached.map(ResponseCache.Entry::etag).orElse(null));
+            store(cache, uri, body, etag, response.headers().allValues(HttpHeaders.CACHE_CONTROL));
+            return body;
+        }).exceptionallyCompose(e -> {
+            Throwable cause = e instanceof CompletionException && e.getCause() != null ? e.getCause() : e;
+            if (cause instanceof CircuitOpenException) {
+                try {
+                    return CompletableFuture.completedFuture(stale(uri, cached, (CircuitOpenException) cause));
+                } catch (CircuitOpenException open) {
+                    return CompletableFuture.failedFuture(open);
+                }
+            }
+            return CompletableFuture.failedFuture(cause);
+        });
+    }
+
+    // While the endpoint is failing, an outdated copy is better than nothing
+    private String stale(URI uri, Optional<ResponseCache.Entry> cached, CircuitOpenException e) throws CircuitOpenException {
+        if (cached.isEmpty()) {
+            throw e;
+        }
+        cacheStatistics.hit();
+        traceMessage("STALE: " + uri);
+        return cached.get().body();
+    }
+
+    private void store(ResponseCache cache, URI uri, String body, String etag, List<String> cacheControl) {
+        if (cache == null) {
+            return;
+        }
+        Instant now = Instant.now();
+        Duration maxAge = cache.getDefaultTtl();
+        for (String directive : String.join(",", cacheControl).split(",")) {
+            String d = directive.trim().toLowerCase(Locale.ROOT);
+            if (d.equals("no-store") || d.equals("private")) {
+                cache.remove(uri);
+                return;
+            } else if (d.equals("no-cache")) {
+                maxAge = Duration.ZERO;
+                break;
+            } else if (d.startsWith("max-age=")) {
+                try {
+                    maxAge = Duration.ofSeconds(Long.parseLong(d.substring("max-age=".length())));
+                } catch (NumberFormatException e) {
+                    maxAge = Duration.ZERO;
+                }
+            }
+        }
+        if (maxAge.isZero() && etag == null) {
+            // Could only be used after asking the server again anyway
+            cache.remove(uri);
+        } else {
+            cache.put(uri, new ResponseCache.Entry(body, etag, now.plus(maxAge)));
+        }
+    }
+
+    // Changes to a resource make the cached copy of it obsolete
+    private void invalidate(String method, URI uri) {
+        ResponseCache cache = this.cache.get();
+        if (cache != null && !method.equals("GET")) {
+            cache.remove(uri);
+        }
+    }
+
+    // The response entity is buffered, so that the caller can still read it
+    private void recordExchange(SessionRecorder recorder, HttpRequestBase request, CloseableHttpResponse response, long nanos) throws IOException {
+        byte[] sent = null;
+        if (request instanceof HttpEntityEnclosingRequest) {
+            HttpEntity entity = ((HttpEntityEnclosingRequest) request).getEntity();
+            if (entity != null && entity.isRepeatable()) {
+                sent = IOUtils.toByteArray(entity.getContent());
+            }
+        }
+        byte[] received = null;
+        if (response.getEntity() != null) {
+            BufferedHttpEntity buffered = new BufferedHttpEntity(response.getEntity());
+            response.setEntity(buffered);
+            received = IOUtils.toByteArray(buffered.getContent());
+        }
+        Map<String, String> headers = new TreeMap<>();
+        for (String name : RECORDED_HEADERS) {
+            Header header = response.getFirstHeader(name);
+            if (header != null) {
+                headers.put(name, header.getValue());
+            }
+        }
+        recorder.api(request.getMethod(), path(request.getURI()), sent, response.getStatusLine().getStatusCode(), headers, received, nanos);
+    }
+
+    // Relative to the API URL, for recordings that can be replayed from any address
+    private String path(URI uri) {
+        String s = uri.toString();
+        return s.startsWith(apiurl) ? s.substring(apiurl.length()) : s;
+    }
+
+    // Tracing only queues the raw bytes, formatting happens on the trace writer thread
+    private void traceRequest(String method, URI uri, byte[] body) {
+        ApiTraceWriter trace = this.trace.get();
+        if (trace != null) {
+            trace.request(method, uri, body);
+        }
+    }
+
+    private void traceResponse(CloseableHttpResponse response, byte[] body) {
+        ApiTraceWriter trace = this.trace.get();
+        if (trace != null) {
+            trace.response(response.getStatusLine().getStatusCode() + " " + response.getStatusLine().getReasonPhrase(), body);
+        }
+    }
+
+    private void traceResponse(int statusCode, byte[] body) {
+        ApiTraceWriter trace = this.trace.get();
+        if (trace != null) {
+            trace.response(String.valueOf(statusCode), body);
+        }
+    }
+
+    private void traceMessage(String line) {
+        ApiTraceWriter trace = this.trace.get();
+        if (trace != null) {
+            trace.message(line);
+        }
+    }
+
+    // 304 is expected when revalidating a cached response
+    private static boolean isSuccess(int responseCode, boolean conditional) {
+        return (responseCode >= 200 && responseCode <= 299) || (conditional && responseCode == 304);
+    }
+
+    // Reader for typed responses, tolerating fields added to the API later
+    static ObjectReader readerFor(Class<?> type) {
+        return mapper.readerFor(type).without(DeserializationFeature.FAIL_ON_UNKNOWN_PROPERTIES);
+    }
+
+    // Asynchronous counterparts of the above. These run on a non-blocking HTTP engine,
+    // so that many requests can be in flight without a waiting thread per request.
+    public CompletableFuture<HttpResponse<byte[]>> getAsync(URI uri) {
+        HttpRequest get = asyncRequest(uri).GET().build();
+        traceRequest(get.method(), get.uri(), null);
+        return transmitAsync(get);
+    }
+
+    public CompletableFuture<HttpResponse<byte[]>> putAsync(URI uri, ObjectNode json) {
+        try {
+            byte[] body = mapper.writeValueAsBytes(json);
+            HttpRequest put = asyncRequest(uri).PUT(HttpRequest.BodyPublishers.ofByteArray(body)).build();
+            traceRequest(put.method(), put.uri(), body);
+            return transmitAsync(put);
+        } catch (IOException e) {
+            return CompletableFuture.failedFuture(e);
+        }
+    }
+
+    public CompletableFuture<HttpResponse<byte[]>> postAsync(URI uri, ObjectNode json) {
+        try {
+            byte[] body = mapper.writeValueAsBytes(json);
+            HttpRequest post = asyncRequest(uri).POST(HttpRequest.BodyPublishers.ofByteArray(body)).build();
+            traceRequest(post.method(), post.uri(), body);
+            return transmitAsync(post);
+        } catch (IOException e) {
+            return CompletableFuture.failedFuture(e);
+        }
+    }
+
+    public CompletableFuture<Void> deleteAsync(URI uri) {
+        HttpRequest delete = asyncRequest(uri).DELETE().build();
+        traceRequest(delete.method(), delete.uri(), null);
+        return transmitAsync(delete).thenApply(response -> null);
+    }
+
+    // Completes exceptionally with ApiResponseException on non-2XX responses, like transmit() throws
+    public CompletableFuture<HttpResponse<byte[]>> transmitAsync(HttpRequest request) {
+        invalidate(request.method(), request.uri());
+        String endpoint = Endpoints.of(apiurl, request.uri());
+        long throttle = throttle(endpoint);
+        CompletableFuture<Void> ready = throttle > 0
+                ? CompletableFuture.runAsync(() -> {}, CompletableFuture.delayedExecutor(throttle, TimeUnit.NANOSECONDS))
+                : CompletableFuture.completedFuture(null);
+        EndpointMetrics stats = metrics.get().endpoint(endpoint);
+        SessionRecorder recorder = this.recorder.get();
+        byte[] sent = recorder == null ? null : SessionRecorder.body(request);
+        return ready.thenCompose(v -> asyncPermits.acquire()).thenCompose(v -> {
+            CircuitBreaker breaker = circuit(endpoint);
+            if (breaker != null && !breaker.tryAcquire()) {
+                asyncPermits.release();
+                stats.rejected();
+                return CompletableFuture.<HttpResponse<byte[]>>failedFuture(new CircuitOpenException(endpoint, breaker.remaining()));
+            }
+            request.bodyPublisher().map(HttpRequest.BodyPublisher::contentLength).filter(length -> length > 0).ifPresent(stats::sent);
+            long start = System.nanoTime();
+            return asyncHttp().sendAsync(request, HttpResponse.BodyHandlers.ofByteArray())
+                    .whenComplete((response, e) -> {
+                        asyncPermits.release();
+                        if (response == null) {
+                            stats.failed(System.nanoTime() - start);
+                            record(breaker, endpoint, -1);
+                        } else {
+                            long elapsed = System.nanoTime() - start;
+                            stats.response(response.statusCode(), elapsed);
+                            stats.received(response.body().length);
+                            record(breaker, endpoint, response.statusCode());
+                            if (recorder != null) {
+                                Map<String, String> headers = new TreeMap<>();
+                                for (String name : RECORDED_HEADERS) {
+                                    response.headers().firstValue(name).ifPresent(value -> headers.put(name, value));
+                                }
+                                recorder.api(request.method(), path(request.uri()), sent, response.statusCode(), headers, response.body(), elapsed);
+                            }
+                        }
+                    });
+        }).thenApply(response -> {
+            int responseCode = response.statusCode();
+            if (!isSuccess(responseCode, request.headers().firstValue(HttpHeaders.IF_NONE_MATCH).isPresent())) {
+                String message = "HTTP " + responseCode + "\n" + new String(response.body(), StandardCharsets.UTF_8);
+                Duration retryAfter = ApiResponseException.parseRetryAfter(response.headers().firstValue(HttpHeaders.RETRY_AFTER).orElse(null));
+                throw new CompletionException(new ApiResponseException(responseCode, message, retryAfter));
+            }
+            return response;
+        });
+    }
+
+    public CompletableFuture<JsonNode> rpcAsync(URI uri) {
+        return rpcAsync(uri, null);
+    }
+
+    public CompletableFuture<JsonNode> rpcAsync(URI uri, JsonNode request) {
+        if (request == null) {
+            return sharedGetAsync(uri).thenApply(body -> decode(body, mapper.readerFor(JsonNode.class)));
+        }
+        final HttpRequest req;
+        try {
+            req = rpcAsyncRequest(uri, request);
+        } catch (IOException e) {
+            return CompletableFuture.failedFuture(e);
+        }
+
+        return transmitAsync(req).thenApply(response -> {
+            traceResponse(response.statusCode(), response.body());
+            if (response.statusCode() == 204) {
                 // Empty response
                 return null;
-            } else {
-                // getContent will throw if bad response
-                JsonNode json = mapper.readTree(response.getEntity().getContent());
-                if (apidump != null) {
-                    apidump.println(mapper.writer(printer).writeValueAsString(json));
+            }
+            try {
+                return mapper.readTree(response.body());
+            } catch (IOException e) {
+                throw new CompletionException(e);
+            }
+        });
+    }
+
+    public <T> CompletableFuture<T> rpcAsync(URI uri, JsonNode request, ObjectReader reader) {
+        if (request == null) {
+            return sharedGetAsync(uri).thenApply(body -> decode(body, reader));
+        }
+        final HttpRequest req;
+        try {
+            req = rpcAsyncRequest(uri, request);
+        } catch (IOException e) {
+            return CompletableFuture.failedFuture(e);
+        }
+
+        return transmitAsync(req).thenApply(response -> decode(response, reader));
+    }
+
+    // POST of a body that is still being produced, e.g. by a SubmissionPublisher: the request
+    // is already on its way while the rest of the body is computed
+    public <T> CompletableFuture<T> rpcStreamAsync(URI uri, Flow.Publisher<ByteBuffer> body, ObjectReader reader) {
+        HttpRequest req = asyncRequest(uri).POST(HttpRequest.BodyPublishers.fromPublisher(body)).build();
+        traceMessage(req.method() + ": " + req.uri() + " (streamed)");
+        return transmitAsync(req).thenApply(response -> decode(response, reader));
+    }
+
+    private <T> T decode(HttpResponse<byte[]> response, ObjectReader reader) {
+        traceResponse(response.statusCode(), response.body());
+        if (response.statusCode() == 204) {
+            // Empty response
+            return null;
+        }
+        try {
+            return reader.readValue(response.body());
+        } catch (IOException e) {
+            throw new CompletionException(e);
+        }
+    }
+
+    private static <T> T decode(String body, ObjectReader reader) {
+        try {
+            return body == null ? null : reader.readValue(body);
+        } catch (IOException e) {
+            throw new CompletionException(e);
+        }
+    }
+
+    private HttpRequest rpcAsyncRequest(URI uri, JsonNode request) throws IOException {
+        final HttpRequest req;
+        final byte[] body;
+        if (request != null) {
+            body = mapper.writeValueAsBytes(request);
+            req = asyncRequest(uri).POST(HttpRequest.BodyPublishers.ofByteArray(body)).build();
+        } else {
+            body = null;
+            req = asyncRequest(uri).GET().build();
+        }
+        traceRequest(req.method(), req.uri(), body);
+        return req;
+    }
+
+    public interface ApiCall<T> {
+        T call() throws IOException;
+    }
+
+    public <T> T retry(String endpoint, boolean idempotent, ApiCall<T> call) throws IOException {
+        return retry(endpoint, Instant.MAX, idempotent, call);
+    }
+
+    // Runs the call until it returns a value, retrying failures according to the retry policy.
+    // An empty (null) result means "not ready yet" and is retried as well, as for service/fetch polling:
+    // calls where an empty answer is an error must fail instead of returning null. Only failures where
+    // the server did not act on the request are retried for calls that are not idempotent.
+    // Gives up when the next attempt would start after the deadline. Without a deadline it also
+    // gives up when the policy has no more delays or retries of the endpoint have used up their
+    // budget; with one, it keeps backing off at the longest delay of the policy until the deadline.
+    public <T> T retry(String endpoint, Instant deadline, boolean idempotent, ApiCall<T> call) throws IOException {
+        RetryPolicy policy = retryPolicy.get();
+        RetryBudget budget = retryBudgets.computeIfAbsent(endpoint, e -> new RetryBudget());
+        budget.deposit(policy.getBudget());
+        boolean bounded = deadline.isBefore(Instant.MAX);
+        Duration longest = null;
+        for (int retry = 1; ; retry++) {
+            IOException failure = null;
+            try {
+                T result = call.call();
+                if (result != null) {
+                    return result;
+                }
+            } catch (IOException e) {
+                if (!isRetryable(e, idempotent)) {
+                    throw e;
                 }
-                return json;
+                failure = e;
+            }
+
+            Optional<Duration> backoff = policy.nextDelay(retry);
+            if (backoff.isPresent() && (longest == null || backoff.get().compareTo(longest) > 0)) {
+                longest = backoff.get();
             }
+            // Requests stopped by an open circuit were not sent, so they do not spend the budget
+            boolean exhausted = backoff.isEmpty()
+                    || (failure != null && !(failure instanceof CircuitOpenException) && !budget.withdraw());
+            if (exhausted && (!bounded || longest == null)) {
+                throw failure != null ? failure : new IOException("No response from " + endpoint + " after " + retry + " attempts");
+            }
+            Duration delay = exhausted ? longest : backoff.get();
+            // Never earlier than the server asked for, or before the circuit lets a probe through
+            Optional<Duration> retryAfter = failure instanceof ApiResponseException ? ((ApiResponseException) failure).getRetryAfter()
+                    : failure instanceof CircuitOpenException ? ((CircuitOpenException) failure).getRetryAfter() : Optional.empty();
+            if (retryAfter.isPresent() && retryAfter.get().compareTo(delay) > 0) {
+                delay = retryAfter.get();
+            }
+            if (bounded && Instant.now().plus(delay).isAfter(deadline)) {
+                throw failure != null ? failure : new IOException("No response from " + endpoint + " before deadline");
+            }
+            metrics.get().endpoint(endpoint).retried();
+            try {
+                Thread.sleep(delay.toMillis());
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted");
+            }
+        }
+    }
+
+    // Overload and unavailability are answered before the request is processed, other
+    // errors and broken connections may have happened after the server acted on it. An
+    // open circuit did not send the request at all.
+    private static boolean isRetryable(IOException e, boolean idempotent) {
+        if (e instanceof InterruptedIOException) {
+            return false;
+        } else if (e instanceof CircuitOpenException) {
+            return true;
+        } else if (e instanceof HttpResponseException) {
+            int status = ((HttpResponseException) e).getStatusCode();
+            return status == 429 || status == 503 || (idempotent && (status == 502 || status == 504));
+        } else if (e instanceof ConnectException || e instanceof UnknownHostException) {
+            return true;
+        }
+        return idempotent;
+    }
+
+    // Server errors, overload and broken connections count against the endpoint, other answers prove it is alive.
+    // service/fetch answers 503 while the backend is still working on the session, which is no failure.
+    private static void record(CircuitBreaker breaker, String endpoint, int responseCode) {
+        if (breaker == null) {
+            return;
+        }
+        boolean pending = responseCode == 503 && endpoint.equals(SERVICE_FETCH_URL);
+        if (responseCode < 0 || (responseCode >= 500 && !pending) || responseCode == 429) {
+            breaker.onFailure();
+        } else {
+            breaker.onSuccess();
+        }
+    }
+
+    // Null when the circuit breaker is off
+    private CircuitBreaker circuit(String endpoint) {
+        if (failureThreshold == 0) {
+            return null;
+        }
+        return circuits.computeIfAbsent(endpoint, e -> new CircuitBreaker(failureThreshold, openDuration));
+    }
+
+    // Nanoseconds the request must wait to stay within the rate limit of the endpoint
+    private long throttle(String endpoint) {
+        RateLimiter limiter = rateLimits.get(endpoint);
+        return limiter == null ? 0 : limiter.reserve();
+    }
+
+    // Circuit state of an endpoint, by its URL template (e.g. FidesmoApiClient.CONNECTOR_URL)
+    public CircuitBreaker.State getCircuitState(String endpoint) {
+        CircuitBreaker breaker = circuits.get(endpoint);
+        return breaker == null ? CircuitBreaker.State.CLOSED : breaker.getState();
+    }
+
+    // States of all endpoints called so far
+    public Map<String, CircuitBreaker.State> getCircuitStates() {
+        Map<String, CircuitBreaker.State> states = new TreeMap<>();
+        circuits.forEach((endpoint, breaker) -> states.put(endpoint, breaker.getState()));
+        return states;
+    }
+
+    // Limits requests to an endpoint (by its URL template) to the given rate, allowing bursts
+    // of up to burst requests. Requests over the limit are delayed, not rejected.
+    public void setRateLimit(String endpoint, double permitsPerSecond, int burst) {
+        if (!(permitsPerSecond > 0) || burst < 1) {
+            throw new IllegalArgumentException("Rate and burst must be positive");
         }
+        rateLimits.put(endpoint, new RateLimiter(permitsPerSecond, burst));
+    }
+
+    public void removeRateLimit(String endpoint) {
+        rateLimits.remove(endpoint);
+    }
+
+    // Replaces the metrics registry, e.g. to collect totals of several clients into one
+    public void setMetrics(ApiMetrics metrics) {
+        this.metrics.set(Objects.requireNonNull(metrics));
+    }
+
+    public ApiMetrics getMetrics() {
+        return metrics.get();
+    }
+
+    // Counts the response bytes as the caller reads them
+    private static final class CountingEntity extends HttpEntityWrapper {
+        private final EndpointMetrics stats;
+
+        CountingEntity(HttpEntity entity, EndpointMetrics stats) {
+            super(entity);
+            this.stats = stats;
+        }
+
+        @Override
+        public InputStream getContent() throws IOException {
+            return new FilterInputStream(super.getContent()) {
+                @Override
+                public int read() throws IOException {
+                    int b = super.read();
+                    if (b >= 0) {
+                        stats.received(1);
+                    }
+                    return b;
+                }
+
+                @Override
+                public int read(byte[] b, int off, int len) throws IOException {
+                    int n = super.read(b, off, len);
+                    if (n > 0) {
+                        stats.received(n);
+                    }
+                    return n;
+                }
+            };
+        }
+
+        @Override
+        public void writeTo(OutputStream out) throws IOException {
+            try (InputStream in = getContent()) {
+                IOUtils.copy(in, out);
+            }
+        }
+    }
+
+    // Waits for an asynchronous call, surfacing failures the same way as the blocking calls do
+    public static <T> T await(CompletableFuture<T> future) throws IOException {
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            future.cancel(true);
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted");
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof IOException)
+                throw (IOException) cause;
+            if (cause instanceof RuntimeException)
+                throw (RuntimeException) cause;
+            throw new IOException(cause.getMessage(), cause);
+        }
+    }
+
+    private synchronized HttpClient asyncHttp() {
+        if (asyncHttp == null) {
+            asyncHttp = HttpClient.newBuilder()
+                    .proxy(ProxySelector.getDefault())
+                    .followRedirects(HttpClient.Redirect.NORMAL)
+                    .build();
+        }
+        return asyncHttp;
+    }
+
+    private HttpRequest.Builder asyncRequest(URI uri) {
+        HttpRequest.Builder builder = HttpRequest.newBuilder(uri);
+        // Same headers as the blocking client
+        builder.header(HttpHeaders.USER_AGENT, "fdsm/" + ClientInfo.getBuildVersion());
+        for (Header header : info.asHeaders()) {
+            builder.header(header.getName(), header.getValue());
+        }
+        if (authentication != null) {
+            builder.header(HttpHeaders.AUTHORIZATION, authentication.toAuthenticationHeader());
+        }
+        return builder;
+    }
+
+    // Enables caching of GET requests made with rpc() and rpcAsync(); null disables. Clients with
+    // credentials do not use it, as it may be shared.
+    public void setResponseCache(ResponseCache cache) {
+        this.cache.set(cache);
+    }
+
+    public Optional<ResponseCache> getResponseCache() {
+        return Optional.ofNullable(cache.get());
+    }
+
+    // Device metadata shared by card operations and sessions using this client; null disables
+    public void setDeviceCache(DeviceCache cache) {
+        this.deviceCache.set(cache);
+    }
+
+    public Optional<DeviceCache> getDeviceCache() {
+        return Optional.ofNullable(deviceCache.get());
+    }
+
+    public CacheStatistics getCacheStatistics() {
+        return cacheStatistics;
+    }
+
+    // Number of GET requests that were answered by an identical request already in flight
+    public long getCoalescedRequests() {
+        return coalesced.sum();
     }
 
     public URI getURI(String template, Object... args) {
@@ -226,9 +1062,68 @@ public class FidesmoApiClient {
         }
     }
 
+    public void setRetryPolicy(RetryPolicy policy) {
+        this.retryPolicy.set(policy);
+    }
+
+    public RetryPolicy getRetryPolicy() {
+        return retryPolicy.get();
+    }
+
+    // Traces to the given writer, for example a rotating trace file shared by many clients; null disables
+    public void setTraceWriter(ApiTraceWriter trace) {
+        replaceTrace(trace);
+    }
+
+    // The writer to standard output of setTrace() is closed once no longer in use
+    private synchronized void replaceTrace(ApiTraceWriter next) {
+        trace.set(next);
+        if (stdoutTrace != null && stdoutTrace != next) {
+            closeTrace(stdoutTrace);
+            stdoutTrace = null;
+        }
+    }
+
+    private static void closeTrace(ApiTraceWriter trace) {
+        try {
+            trace.close();
+        } catch (IOException e) {
+            // Only writers owning their stream fail to close, not the one to standard output
+        }
+    }
+
+    // Records requests and responses for SessionReplay; null disables
+    public void setRecorder(SessionRecorder recorder) {
+        this.recorder.set(recorder);
+    }
+
+    @Override
+    public void close() throws IOException {
+        http.close();
+        synchronized (this) {
+            if (asyncHttp != null) {
+                asyncHttp.shutdownNow();
+            }
+            if (stdoutTrace != null) {
+                closeTrace(stdoutTrace);
+                stdoutTrace = null;
+            }
+        }
+        if (ownTrace != null) {
+            ownTrace.close();
+        }
+    }
+
     @Deprecated
-    public void setTrace(boolean b) {
-        apidump = b ? System.out : null;
+    public synchronized void setTrace(boolean b) {
+        if (b && ownTrace == null) {
+            if (stdoutTrace == null) {
+                stdoutTrace = ApiTraceWriter.forStream(System.out);
+            }
+            trace.set(stdoutTrace);
+        } else {
+            replaceTrace(b ? ownTrace : null);
+        }
     }
 
     public String getVersion() {
@@ -41,6 +41,7 @@ import java.math.BigInteger;
 import java.net.URI;
 import java.net.URISyntaxException;
 import java.util.*;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.RunnableFuture;
 
 // Represents a live, personalized Fidesmo card
@@ -281,11 +282,13 @@ public class FidesmoCard {
                 URI uri = uid
                         .map(value -> client.getURI(FidesmoApiClient.DEVICE_IDENTIFY_WITH_UID_URL, HexUtils.bin2hex(cplc), HexUtils.bin2hex(value)))
                         .orElse(client.getURI(FidesmoApiClient.DEVICE_IDENTIFY_URL, HexUtils.bin2hex(cplc)));
-                JsonNode detect = client.rpc(uri);
+                JsonNode detect = identify(client, uri);
                 
                 if (detect != null) {
                     byte[] fid = Hex.decodeHex(detect.get("cin").asText());
                     int batchId = detect.get("batchId").asInt();
+                    // Saves ensureBatched() from asking again
+                    client.getDeviceCache().ifPresent(cache -> cache.putBatching(fid, batchId, batchingUrl(detect)));
                     return Optional.of(new FidesmoCard(fid, cplc, batchId, false, uid));
                 }
             } catch(DecoderException dex) {
@@ -437,17 +440,51 @@ public class FidesmoCard {
         return null;
     }
 
-    private static Optional<DeliveryUrl> getBatchingUrl(FidesmoApiClient client, byte[] cplc, Optional<byte[]> uid) throws IOException {
+    // Empty response is a valid answer (unknown device), so it is not retried
+    private static JsonNode identify(FidesmoApiClient client, URI uri) throws IOException {
+        return client.retry(FidesmoApiClient.DEVICE_IDENTIFY_URL, true, () -> Optional.ofNullable(client.rpc(uri))).orElse(null);
+    }
+
+    private static DeliveryUrl batchingUrl(JsonNode detect) {
+        JsonNode url = detect.get("batchingUrl");
+        return url == null ? null : DeliveryUrl.parse(url.asText());
+    }
+
+    private Optional<DeliveryUrl> getBatchingUrl(FidesmoApiClient client) throws IOException {
+        Optional<DeviceCache> cache = client.getDeviceCache();
+        Optional<DeviceCache.Batching> cached = cache.flatMap(c -> c.getBatching(cin, batchId));
+        if (cached.isPresent()) {
+            return cached.get().getUrl();
+        }
         URI uri = uid
                 .map(value -> client.getURI(FidesmoApiClient.DEVICE_IDENTIFY_WITH_UID_URL, HexUtils.bin2hex(cplc), HexUtils.bin2hex(value)))
                 .orElse(client.getURI(FidesmoApiClient.DEVICE_IDENTIFY_URL, HexUtils.bin2hex(cplc)));
-        JsonNode detect = client.rpc(uri);
-        return Optional.ofNullable(detect.get("batchingUrl")).map(n -> DeliveryUrl.parse(n.asText()));
+        DeliveryUrl url = batchingUrl(identify(client, uri));
+        cache.ifPresent(c -> c.putBatching(cin, batchId, url));
+        return Optional.ofNullable(url);
+    }
+
+    // Capabilities of the device, from the device cache of the client when known
+    public CompletableFuture<DeviceInfo> getDeviceInfoAsync(FidesmoApiClient client) {
+        Optional<DeviceCache> cache = client.getDeviceCache();
+        Optional<DeviceInfo> cached = cache.flatMap(c -> c.getDeviceInfo(cin, batchId));
+        if (cached.isPresent()) {
+            return CompletableFuture.completedFuture(cached.get());
+        }
+        return client.<DeviceInfo>rpcAsync(client.getURI(FidesmoApiClient.DEVICES_URL, HexUtils.bin2hex(cin), batchId), null, DeviceInfo.READER)
+                .thenApply(info -> {
+                    cache.ifPresent(c -> c.putDeviceInfo(cin, batchId, info));
+                    return info;
+                });
+    }
+
+    public DeviceInfo getDeviceInfo(FidesmoApiClient client) throws IOException {
+        return FidesmoApiClient.await(getDeviceInfoAsync(client));
     }
 
     public void ensureBatched(APDUBIBO bibo, FidesmoApiClient client, Optional<Integer> timeoutMinutes, boolean ignoreImplicitBatching, FormHandler formHandler) throws IOException, URISyntaxException {
         if (!this.isBatched() && !ignoreImplicitBatching) {
-            Optional<DeliveryUrl> deliveryOpt = getBatchingUrl(client, this.getCPLC(), this.getUID());
+            Optional<DeliveryUrl> deliveryOpt = getBatchingUrl(client);
             if (deliveryOpt.isPresent()) {
                 DeliveryUrl delivery = deliveryOpt.get();
                 System.out.println("Device is not batched. Completing batching.");
@@ -468,6 +505,7 @@ public class FidesmoCard {
                         throw new RuntimeException("Failed to batch the device");
                     }
                 }
+                client.getDeviceCache().ifPresent(cache -> cache.invalidate(cin));
             }
         }
     }
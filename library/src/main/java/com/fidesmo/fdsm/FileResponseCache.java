@@ -0,0 +1,155 @@
+/*
+ * Copyright (c) 2018 - present Fidesmo AB
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.fidesmo.fdsm;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.URI;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.Iterator;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Optional;
+
+// ResponseCache kept in a file between runs, so that a warm catalog listing needs no
+// round trips until entries go stale and then only re-downloads what has changed.
+// The file is read when opened and written back on flush() and close().
+public final class FileResponseCache implements ResponseCache, Closeable {
+    private static final ObjectMapper mapper = new ObjectMapper();
+
+    private final Path file;
+    private final LruResponseCache entries;
+    private boolean dirty;
+
+    private FileResponseCache(Path file, LruResponseCache entries) {
+        this.file = file;
+        this.entries = entries;
+    }
+
+    // An unreadable file is treated as an empty cache
+    public static FileResponseCache open(Path file, int maxEntries, Duration ttl) {
+        LruResponseCache entries = new LruResponseCache(maxEntries, ttl);
+        if (Files.isRegularFile(file)) {
+            try {
+                JsonNode json = mapper.readTree(file.toFile());
+                for (Iterator<Map.Entry<String, JsonNode>> it = json.fields(); it.hasNext(); ) {
+                    Map.Entry<String, JsonNode> e = it.next();
+                    JsonNode etag = e.getValue().get("etag");
+                    entries.put(URI.create(e.getKey()), new Entry(e.getValue().get("body").asText(),
+                            etag == null || etag.isNull() ? null : etag.asText(),
+                            Instant.ofEpochMilli(e.getValue().get("expires").asLong())));
+                }
+            } catch (IOException | RuntimeException e) {
+                entries.clear();
+            }
+        }
+        return new FileResponseCache(file, entries);
+    }
+
+    // Platform specific cache directory of the current user
+    public static Path defaultDirectory() {
+        String os = System.getProperty("os.name", "").toLowerCase(Locale.ROOT);
+        Path home = Path.of(System.getProperty("user.home"));
+        if (os.contains("win") && System.getenv("LOCALAPPDATA") != null) {
+            return Path.of(System.getenv("LOCALAPPDATA"), "fdsm", "cache");
+        } else if (os.contains("mac")) {
+            return home.resolve("Library").resolve("Caches").resolve("fdsm");
+        } else if (System.getenv("XDG_CACHE_HOME") != null) {
+            return Path.of(System.getenv("XDG_CACHE_HOME"), "fdsm");
+        }
+        return home.resolve(".cache").resolve("fdsm");
+    }
+
+    @Override
+    public Optional<Entry> get(URI uri) {
+        return entries.get(uri);
+    }
+
+    @Override
+    public synchronized void put(URI uri, Entry entry) {
+        entries.put(uri, entry);
+        dirty = true;
+    }
+
+    @Override
+    public synchronized void remove(URI uri) {
+        if (entries.get(uri).isPresent()) {
+            entries.remove(uri);
+            dirty = true;
+        }
+    }
+
+    @Override
+    public synchronized void clear() {
+        entries.clear();
+        dirty = true;
+    }
+
+    @Override
+    public Duration getDefaultTtl() {
+        return entries.getDefaultTtl();
+    }
+
+    public int size() {
+        return entries.size();
+    }
+
+    // Replaces the file atomically, so that concurrent runs never see a partial cache
+    public synchronized void flush() throws IOException {
+        if (!dirty) {
+            return;
+        }
+        ObjectNode json = mapper.createObjectNode();
+        for (Map.Entry<URI, Entry> e : entries.snapshot().entrySet()) {
+            ObjectNode entry = json.putObject(e.getKey().toString());
+            entry.put("body", e.getValue().body());
+            entry.put("etag", e.getValue().etag());
+            entry.put("expires", e.getValue().expires().toEpochMilli());
+        }
+        Path parent = file.toAbsolutePath().getParent();
+        if (parent == null) {
+            throw new IOException("Invalid cache file: " + file);
+        }
+        Files.createDirectories(parent);
+        Path tmp = Files.createTempFile(parent, "cache", ".tmp");
+        try {
+            mapper.writeValue(tmp.toFile(), json);
+            Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            dirty = false;
+        } finally {
+            Files.deleteIfExists(tmp);
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        flush();
+    }
+}
@@ -0,0 +1,98 @@
+/*
+ * Copyright (c) 2018 - present Fidesmo AB
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.fidesmo.fdsm;
+
+import java.net.URI;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Optional;
+
+// In-memory ResponseCache holding at most a fixed number of entries, least recently used evicted first
+public final class LruResponseCache implements ResponseCache {
+    private final Map<URI, Entry> entries;
+    private final Duration ttl;
+
+    public LruResponseCache(int maxEntries, Duration ttl) {
+        if (maxEntries < 1) {
+            throw new IllegalArgumentException("Cache size must be positive");
+        }
+        this.ttl = ttl;
+        this.entries = new BoundedMap(maxEntries);
+    }
+
+    private static final class BoundedMap extends LinkedHashMap<URI, Entry> {
+        private static final long serialVersionUID = 1L;
+        private final int maxEntries;
+
+        BoundedMap(int maxEntries) {
+            super(16, 0.75f, true); // Access order
+            this.maxEntries = maxEntries;
+        }
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<URI, Entry> eldest) {
+            return size() > maxEntries;
+        }
+    }
+
+    @Override
+    public synchronized Optional<Entry> get(URI uri) {
+        Entry entry = entries.get(uri);
+        if (entry != null && !entry.canRevalidate() && !entry.isFresh(Instant.now())) {
+            // Expired and nothing to revalidate with
+            entries.remove(uri);
+            return Optional.empty();
+        }
+        return Optional.ofNullable(entry);
+    }
+
+    @Override
+    public synchronized void put(URI uri, Entry entry) {
+        entries.put(uri, entry);
+    }
+
+    @Override
+    public synchronized void remove(URI uri) {
+        entries.remove(uri);
+    }
+
+    @Override
+    public synchronized void clear() {
+        entries.clear();
+    }
+
+    @Override
+    public Duration getDefaultTtl() {
+        return ttl;
+    }
+
+    // Copy of the entries, least recently used first
+    synchronized Map<URI, Entry> snapshot() {
+        return new LinkedHashMap<>(entries);
+    }
+
+    public synchronized int size() {
+        return entries.size();
+    }
+}
@@ -0,0 +1,258 @@
+/*
+ * Copyright (c) 2018 - present Fidesmo AB
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.fidesmo.fdsm;
+
+import apdu4j.core.APDUBIBO;
+import apdu4j.core.BIBO;
+import com.fidesmo.fdsm.exceptions.FDSMException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.security.auth.callback.Callback;
+import javax.security.auth.callback.UnsupportedCallbackException;
+import java.io.IOException;
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Consumer;
+import java.util.function.Function;
+import java.util.function.Supplier;
+
+// Delivers the same service to the cards in many readers at once, one session per card on
+// its own virtual thread. All sessions share one client, which is safe for concurrent use.
+// Card I/O through PC/SC is a native call that keeps its carrier thread busy, so the virtual
+// thread scheduler needs as many carriers as there are readers to keep all of them working.
+// Sessions take turns with the form handler, so the prompts of one card are not mixed with
+// those of another.
+public class MultiReaderDelivery {
+    private final static Logger logger = LoggerFactory.getLogger(MultiReaderDelivery.class);
+
+    private final FidesmoApiClient client;
+    private final DeliveryUrl delivery;
+    private final FormHandler formHandler;
+    private final Lock userInteraction = new ReentrantLock(); // Not a monitor, to not pin carriers while waiting for input
+    private final int maxConcurrent;
+    private Function<BIBO, Optional<FidesmoCard>> detector;
+    private Consumer<ServiceDeliverySession> sessionSettings = session -> {
+    };
+    private ClientAuthentication authentication; // For WebSocket deliveries
+    private WsMultiplexer multiplexer;
+
+    public MultiReaderDelivery(FidesmoApiClient client, DeliveryUrl delivery, FormHandler formHandler, int maxConcurrent) {
+        if (maxConcurrent < 1) {
+            throw new IllegalArgumentException("Concurrency must be positive");
+        }
+        if (!delivery.isWebSocket() && delivery.getAppId().isEmpty()) {
+            throw new IllegalArgumentException("Need Application ID: " + delivery.getService());
+        }
+        this.client = client;
+        this.delivery = delivery;
+        this.formHandler = formHandler;
+        this.maxConcurrent = maxConcurrent;
+        this.detector = bibo -> FidesmoCard.detectOnline(bibo, client);
+    }
+
+    // How the card in a reader is identified, online detection by default
+    public void setDetector(Function<BIBO, Optional<FidesmoCard>> detector) {
+        this.detector = detector;
+    }
+
+    // Applied to every session before it is run, e.g. to set the timeout
+    public void setSessionSettings(Consumer<ServiceDeliverySession> sessionSettings) {
+        this.sessionSettings = sessionSettings;
+    }
+
+    public void setAuthentication(ClientAuthentication authentication) {
+        this.authentication = authentication;
+    }
+
+    // WebSocket deliveries share the connection of the multiplexer instead of opening their own
+    public void setMultiplexer(WsMultiplexer multiplexer) {
+        this.multiplexer = multiplexer;
+    }
+
+    // Runs the delivery on every reader, in map order, and waits for all of them. Channels
+    // are opened by the suppliers in the delivering thread and closed when done.
+    public Results deliver(Map<String, Supplier<BIBO>> readers) throws InterruptedException {
+        if (!delivery.isWebSocket()) {
+            ServiceDeliverySession.prefetch(client, delivery.getAppId().get(), delivery.getService());
+        }
+        Semaphore permits = new Semaphore(maxConcurrent);
+        List<Future<ReaderResult>> futures = new ArrayList<>(readers.size());
+        try (ExecutorService executor = Executors.newVirtualThreadPerTaskExecutor()) {
+            for (Map.Entry<String, Supplier<BIBO>> reader : readers.entrySet()) {
+                futures.add(executor.submit(() -> {
+                    permits.acquire();
+                    try {
+                        return deliver(reader.getKey(), reader.getValue());
+                    } finally {
+                        permits.release();
+                    }
+                }));
+            }
+            List<ReaderResult> results = new ArrayList<>(futures.size());
+            try {
+                for (Future<ReaderResult> future : futures) {
+                    results.add(future.get());
+                }
+            } catch (InterruptedException e) {
+                // Sessions notice the interruption and report the failure to the API
+                executor.shutdownNow();
+                throw e;
+            } catch (ExecutionException e) {
+                executor.shutdownNow();
+                throw new FDSMException("Delivery failed: " + e.getCause().getMessage(), e.getCause());
+            }
+            return new Results(results);
+        }
+    }
+
+    private ReaderResult deliver(String reader, Supplier<BIBO> channel) {
+        BIBO bibo = null;
+        try {
+            bibo = channel.get();
+            FidesmoCard card = detector.apply(bibo).orElseThrow(() -> new FDSMException("Not a Fidesmo device"));
+            final BIBO session = bibo;
+            ServiceDeliverySession.DeliveryResult result;
+            if (delivery.isWebSocket()) {
+                card.selectEmpty(new APDUBIBO(bibo));
+                URI uri = new URI(delivery.getService());
+                result = multiplexer != null ? multiplexer.deliver(uri, bibo).join()
+                        : WsClient.execute(uri, bibo, authentication, client.getInfo()).join();
+            } else {
+                ServiceDeliverySession cardSession = ServiceDeliverySession.getInstance(() -> session, card, client,
+                        delivery.getAppId().get(), delivery.getService(), new SerializedFormHandler(reader));
+                sessionSettings.accept(cardSession);
+                result = cardSession.call();
+            }
+            logger.info("{}: {}", reader, result.isSuccess() ? "success" : "failure");
+            return new ReaderResult(reader, result, null);
+        } catch (Exception e) {
+            logger.warn("{}: {}", reader, e.getMessage());
+            return new ReaderResult(reader, null, e);
+        } finally {
+            if (bibo != null) {
+                bibo.close();
+            }
+        }
+    }
+
+    // One session at a time talks to the user, which is told the card it is for
+    private class SerializedFormHandler implements FormHandler {
+        private final String reader;
+
+        SerializedFormHandler(String reader) {
+            this.reader = reader;
+        }
+
+        @Override
+        public Map<String, Field> processForm(List<Field> form) {
+            // Sessions start with the fields the service requires, often none
+            if (form.isEmpty()) {
+                return formHandler.processForm(form);
+            }
+            userInteraction.lock();
+            try {
+                logger.info("{}: user input needed", reader);
+                return formHandler.processForm(form);
+            } finally {
+                userInteraction.unlock();
+            }
+        }
+
+        @Override
+        public void handle(Callback[] callbacks) throws IOException, UnsupportedCallbackException {
+            userInteraction.lock();
+            try {
+                logger.info("{}: user input needed", reader);
+                formHandler.handle(callbacks);
+            } finally {
+                userInteraction.unlock();
+            }
+        }
+    }
+
+    public static class ReaderResult {
+        private final String reader;
+        private final ServiceDeliverySession.DeliveryResult result;
+        private final Exception error;
+
+        ReaderResult(String reader, ServiceDeliverySession.DeliveryResult result, Exception error) {
+            this.reader = reader;
+            this.result = result;
+            this.error = error;
+        }
+
+        public String getReader() {
+            return reader;
+        }
+
+        // Empty if the delivery could not be run to the end
+        public Optional<ServiceDeliverySession.DeliveryResult> getResult() {
+            return Optional.ofNullable(result);
+        }
+
+        public Optional<Exception> getError() {
+            return Optional.ofNullable(error);
+        }
+
+        public boolean isSuccess() {
+            return result != null && result.isSuccess();
+        }
+
+        @Override
+        public String toString() {
+            return reader + ": " + (result != null ? result.getMessage() : error.getMessage());
+        }
+    }
+
+    public static class Results {
+        private final List<ReaderResult> results;
+
+        Results(List<ReaderResult> results) {
+            this.results = Collections.unmodifiableList(results);
+        }
+
+        // In the order of the readers given
+        public List<ReaderResult> getResults() {
+            return results;
+        }
+
+        public long getSuccessCount() {
+            return results.stream().filter(ReaderResult::isSuccess).count();
+        }
+
+        public boolean isSuccess() {
+            return getSuccessCount() == results.size();
+        }
+    }
+}
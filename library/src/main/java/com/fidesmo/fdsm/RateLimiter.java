@@ -0,0 +1,46 @@
+/*
+ * Copyright (c) 2018 - present Fidesmo AB
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.fidesmo.fdsm;
+
+// Token bucket: permits are added at a fixed rate up to the burst size. Callers
+// reserve a permit and wait until it is due, so waiting callers are served in order.
+final class RateLimiter {
+    private final double permitsPerNano;
+    private final double burst;
+    private double permits;
+    private long refilled = System.nanoTime();
+
+    RateLimiter(double permitsPerSecond, int burst) {
+        this.permitsPerNano = permitsPerSecond / 1e9;
+        this.burst = burst;
+        this.permits = burst;
+    }
+
+    // Nanoseconds to wait before the reserved permit may be used
+    synchronized long reserve() {
+        long now = System.nanoTime();
+        permits = Math.min(burst, permits + (now - refilled) * permitsPerNano);
+        refilled = now;
+        permits -= 1;
+        return permits >= 0 ? 0 : (long) (-permits / permitsPerNano);
+    }
+}
@@ -0,0 +1,56 @@
+/*
+ * Copyright (c) 2018 - present Fidesmo AB
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.fidesmo.fdsm;
+
+import java.net.URI;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.Optional;
+
+// Storage for responses to GET requests of FidesmoApiClient. Freshness is decided
+// by the client from Cache-Control, stale entries are revalidated with their ETag.
+public interface ResponseCache {
+
+    Optional<Entry> get(URI uri);
+
+    void put(URI uri, Entry entry);
+
+    void remove(URI uri);
+
+    void clear();
+
+    // How long responses without Cache-Control may be served without revalidation
+    default Duration getDefaultTtl() {
+        return Duration.ZERO;
+    }
+
+    // Body is kept as text, as all cached responses are JSON
+    record Entry(String body, String etag, Instant expires) {
+        public boolean isFresh(Instant now) {
+            return now.isBefore(expires);
+        }
+
+        public boolean canRevalidate() {
+            return etag != null;
+        }
+    }
+}
@@ -38,34 +38,36 @@ import org.apache.http.client.HttpResponseException;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import javax.crypto.Cipher;
-import javax.crypto.KeyGenerator;
-import javax.crypto.spec.IvParameterSpec;
-import javax.crypto.spec.OAEPParameterSpec;
-import javax.crypto.spec.PSource;
 import javax.security.auth.callback.Callback;
 import javax.security.auth.callback.TextInputCallback;
 import javax.security.auth.callback.TextOutputCallback;
 import javax.security.auth.callback.UnsupportedCallbackException;
-import java.io.ByteArrayInputStream;
 import java.io.IOException;
+import java.io.InterruptedIOException;
 import java.net.URI;
-import java.nio.charset.StandardCharsets;
 import java.security.GeneralSecurityException;
 import java.security.Key;
 import java.security.PublicKey;
-import java.security.cert.CertificateFactory;
-import java.security.cert.X509Certificate;
-import java.security.spec.MGF1ParameterSpec;
+import java.time.Duration;
+import java.time.Instant;
 import java.util.*;
 import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicReference;
 import java.util.function.Supplier;
 
 // Delivers a service to a card
 public class ServiceDeliverySession implements Callable<ServiceDeliverySession.DeliveryResult> {
     private final static Logger logger = LoggerFactory.getLogger(ServiceDeliverySession.class);
     private final static long SESSION_TIMEOUT_MINUTES = 15;
-    private long sessionTimeoutMillis;
+    private volatile long sessionTimeoutMillis;
+    private volatile Duration longPollWait; // Ask the API to hold fetch requests, when set
+    private volatile boolean pipelined;
+    private volatile DeliveryListener listener;
+    // For the final event: totals of the delivery, counted only with a listener
+    private String currentSessionId;
+    private int apduTotal;
+    private long sentTotal;
+    private long receivedTotal;
     private final FidesmoApiClient client;
     private final Supplier<BIBO> biboSupplier; // A supplier to make sure a right thread-local is given when run in executor thread
     private final FidesmoCard card;
@@ -90,6 +92,23 @@ public class ServiceDeliverySession implements Callable<ServiceDeliverySession.D
         sessionTimeoutMillis = TimeUnit.MINUTES.toMillis(minutes);
     }
 
+    // Fetch requests ask the API to answer as soon as the next operation is ready, instead of
+    // polling with backoff. Falls back to polling if the API does not support it.
+    public void setLongPoll(Duration wait) {
+        this.longPollWait = wait;
+    }
+
+    // Card responses are streamed to the API while the card is still executing the rest of
+    // the batch, overlapping card and network time
+    public void setPipelined(boolean pipelined) {
+        this.pipelined = pipelined;
+    }
+
+    // Phases of the delivery and their durations, e.g. for progress indication
+    public void setListener(DeliveryListener listener) {
+        this.listener = listener;
+    }
+
     public static ServiceDeliverySession getInstance(Supplier<BIBO> biboSupplier, FidesmoCard card, FidesmoApiClient client, String appId, String serviceId, FormHandler formHandler) {
         return new ServiceDeliverySession(biboSupplier, card, client, appId, serviceId, formHandler);
     }
@@ -109,19 +128,46 @@ public class ServiceDeliverySession implements Callable<ServiceDeliverySession.D
     }
 
     public DeliveryResult deliver(BIBO bibo, String appId, String serviceId) throws IOException, UnsupportedCallbackException {
+        long started = mark();
+        currentSessionId = null;
+        apduTotal = 0;
+        sentTotal = 0;
+        receivedTotal = 0;
+        try {
+            DeliveryResult result = deliverTo(bibo, appId, serviceId, started);
+            emit(result.isSuccess() ? DeliveryEvent.Phase.COMPLETED : DeliveryEvent.Phase.FAILED, started, apduTotal, sentTotal, receivedTotal);
+            return result;
+        } catch (IOException | UnsupportedCallbackException | RuntimeException e) {
+            emit(DeliveryEvent.Phase.FAILED, started, apduTotal, sentTotal, receivedTotal);
+            throw e;
+        }
+    }
+
+    private DeliveryResult deliverTo(BIBO bibo, String appId, String serviceId, long started) throws IOException, UnsupportedCallbackException {
         APDUBIBO apduBibo = new APDUBIBO(bibo);
-        //Reset after checking card info to avoid leaving FPA selected, which prevents some services to be run.
-        card.selectEmpty(apduBibo);
+        // Both only need the identity of the card, so they are in flight while the card is reset
+        String cin = HexUtils.bin2hex(card.getCIN());
+        CompletableFuture<DeviceInfo> deviceRequest = card.getDeviceInfoAsync(client);
+        CompletableFuture<ServiceDescription> serviceRequest = client.rpcAsync(client.getURI(FidesmoApiClient.SERVICE_FOR_CARD_URL, appId, serviceId, cin), null, ServiceDescription.READER);
+        try {
+            //Reset after checking card info to avoid leaving FPA selected, which prevents some services to be run.
+            card.selectEmpty(apduBibo);
+        } catch (RuntimeException e) {
+            deviceRequest.cancel(true);
+            serviceRequest.cancel(true);
+            throw e;
+        }
         // Address #4
-        JsonNode deviceInfo = client.rpc(client.getURI(FidesmoApiClient.DEVICES_URL, HexUtils.bin2hex(card.getCIN()), card.getBatchId()));
-        byte[] iin = HexUtils.decodeHexString_imp(deviceInfo.get("iin").asText());
-        JsonNode capabilities = deviceInfo.get("description").get("capabilities");
-        int platformVersion = capabilities.get("platformVersion").asInt();
+        DeviceInfo deviceInfo = FidesmoApiClient.await(deviceRequest);
+        emit(DeliveryEvent.Phase.IDENTIFY, started, 0, 0, 0);
+        byte[] iin = HexUtils.decodeHexString_imp(deviceInfo.iin());
+        int platformVersion = deviceInfo.platformVersion();
 
         // Query service parameters
-        JsonNode service;
+        ServiceDescription description;
         try {
-            service = client.rpc(client.getURI(FidesmoApiClient.SERVICE_FOR_CARD_URL, appId, serviceId, HexUtils.bin2hex(card.getCIN())), null);
+            description = FidesmoApiClient.await(serviceRequest);
+            emit(DeliveryEvent.Phase.SERVICE_LOOKUP, started, 0, 0, 0);
         } catch (HttpResponseException e) {
             switch(e.getStatusCode()) {
                 case 404:
@@ -137,23 +183,8 @@ public class ServiceDeliverySession implements Callable<ServiceDeliverySession.D
             }
         }
 
-        JsonNode description = service.get("description");
-
         // Extract SP public key
-        final PublicKey spKey;
-        if (description.has("certificate")) {
-            try {
-                CertificateFactory cf = CertificateFactory.getInstance("X509");
-                X509Certificate cert = (X509Certificate) cf.generateCertificate(
-                        new ByteArrayInputStream(HexUtils.hex2bin(description.get("certificate").asText()))
-                );
-                spKey = cert.getPublicKey();
-            } catch (GeneralSecurityException e) {
-                throw new IOException("Could not extract public key of service provider", e);
-            }
-        } else {
-            spKey = null;
-        }
+        final PublicKey spKey = description.certificate() != null ? SessionCrypto.publicKey(description.certificate()) : null;
 
         // Construct Delivery Request
         ObjectNode deliveryRequest = JsonNodeFactory.instance.objectNode();
@@ -169,23 +200,27 @@ public class ServiceDeliverySession implements Callable<ServiceDeliverySession.D
         deliveryRequest.set("cardId", cardId);
 
         // User input fields
-        ArrayList<Field> fields = new ArrayList<>(fieldsFromNode(description.get("fieldsRequired")));
+        ArrayList<Field> fields = new ArrayList<>(fieldsFromNode(description.fieldsRequired()));
         // Old style fields hack
-        if (description.has("emailRequired"))
-            fields.add(new Field("email", Collections.singletonList(FidesmoApiClient.lamei18n(description.get("emailRequired"))), "edit", Optional.empty()));
-        if (description.has("msisdnRequired"))
-            fields.add(new Field("msisdn", Collections.singletonList(FidesmoApiClient.lamei18n(description.get("msisdnRequired"))), "edit", Optional.empty()));
+        if (description.emailRequired() != null)
+            fields.add(new Field("email", Collections.singletonList(FidesmoApiClient.lamei18n(description.emailRequired())), "edit", Optional.empty()));
+        if (description.msisdnRequired() != null)
+            fields.add(new Field("msisdn", Collections.singletonList(FidesmoApiClient.lamei18n(description.msisdnRequired())), "edit", Optional.empty()));
 
+        long input = mark();
         Map<String, Field> userInput = formHandler.processForm(fields);
-        if (description.has("emailRequired"))
+        if (!fields.isEmpty()) {
+            emit(DeliveryEvent.Phase.USER_INTERACTION, input, 0, 0, 0);
+        }
+        if (description.emailRequired() != null)
             deliveryRequest.put("email", userInput.remove("email").getValue());
-        if (description.has("msisdnRequired"))
+        if (description.msisdnRequired() != null)
             deliveryRequest.put("msisdn", userInput.remove("msisdn").getValue());
 
         deliveryRequest.set("fields", mapToJsonNode(userInput));
 
         JsonNode delivery;
-        
+        long delivering = mark();
         try {
             delivery = client.rpc(client.getURI(FidesmoApiClient.SERVICE_DELIVER_URL), deliveryRequest);
         } catch (HttpResponseException e) {
@@ -195,8 +230,10 @@ public class ServiceDeliverySession implements Callable<ServiceDeliverySession.D
         }
         
         String sessionId = delivery.get("sessionId").asText();
+        currentSessionId = sessionId;
+        emit(DeliveryEvent.Phase.DELIVER, delivering, 0, 0, 0);
 
-        logger.info("Delivering: {}", FidesmoApiClient.lamei18n(description.get("title")));
+        logger.info("Delivering: {}", FidesmoApiClient.lamei18n(description.title()));
         logger.info("Session ID: {}", sessionId);
 
         try {
@@ -208,6 +245,22 @@ public class ServiceDeliverySession implements Callable<ServiceDeliverySession.D
         }
     }
 
+    // Loads the description of a service known in advance, before there is a card to deliver to.
+    // The API connection is then open and the provider certificate parsed when a card is tapped.
+    public static CompletableFuture<ServiceDescription> prefetch(FidesmoApiClient client, String appId, String serviceId) {
+        return client.<ServiceDescription>rpcAsync(client.getURI(FidesmoApiClient.SERVICE_URL, appId, serviceId), null, ServiceDescription.READER)
+                .thenApply(description -> {
+                    if (description.certificate() != null) {
+                        try {
+                            SessionCrypto.publicKey(description.certificate());
+                        } catch (IOException e) {
+                            throw new CompletionException(e);
+                        }
+                    }
+                    return description;
+                });
+    }
+
     protected DeliveryResult deliveryLoop(BIBO bibo, String sessionId, PublicKey spKey) throws IOException, UnsupportedCallbackException {
         ObjectNode fetchrequest = emptyFetchRequest(sessionId);
         long lastActivity = System.currentTimeMillis();
@@ -216,56 +269,48 @@ public class ServiceDeliverySession implements Callable<ServiceDeliverySession.D
         while (true) {
             deliveryInterruptionPoint();
 
-            try {
-                JsonNode fetch = rpcWithRetry(client.getURI(FidesmoApiClient.SERVICE_FETCH_URL), fetchrequest, 5);
-                // Successful fetch extends timeout
-                lastActivity = System.currentTimeMillis();
-
-                // Check if done
-                if (fetch.get("completed").asBoolean()) {
-                    JsonNode statusNode = fetch.get("status");
-
-                    DeliveryResult result = new DeliveryResult(
-                            sessionId,
-                            statusNode.get("success").asBoolean(),
-                            FidesmoApiClient.lamei18n(statusNode.get("message")),
-                            statusNode.has("scriptStatus") ? FidesmoApiClient.lamei18n(statusNode.get("scriptStatus")) : null
-                    );
-
-                    if (result.isSuccess()) {
-                        logger.info("Success: " + result.getMessage());
-                    } else {
-                        logger.info("Failure: " + result.getMessage() + result.getScriptStatus().map(status -> "\nScript status: " + status).orElse(""));
-                    }
+            // Unavailability is retried with backoff until the session times out
+            long fetching = mark();
+            FetchResult fetch = fetch(fetchrequest, Instant.ofEpochMilli(lastActivity + sessionTimeoutMillis));
+            emit(DeliveryEvent.Phase.FETCH, fetching, 0, 0, 0);
+            // Successful fetch extends timeout
+            lastActivity = System.currentTimeMillis();
+
+            // Check if done
+            if (fetch.completed()) {
+                FetchResult.Status fetchStatus = fetch.status();
+
+                DeliveryResult result = new DeliveryResult(
+                        sessionId,
+                        fetchStatus.success(),
+                        FidesmoApiClient.lamei18n(fetchStatus.message()),
+                        fetchStatus.scriptStatus() != null ? FidesmoApiClient.lamei18n(fetchStatus.scriptStatus()) : null
+                );
 
-                    return result;
+                if (result.isSuccess()) {
+                    logger.info("Success: " + result.getMessage());
+                } else {
+                    logger.info("Failure: " + result.getMessage() + result.getScriptStatus().map(status -> "\nScript status: " + status).orElse(""));
                 }
 
-                // Process operations
-                deliveryInterruptionPoint();
-                String operationType = fetch.get("operationType").asText();
-                switch (operationType) {
-                    case "transceive":
-                        fetchrequest = processTransmitOperation(bibo, fetch.get("operationId"), sessionId);
-                        break;
-                    case "user-interaction":
-                        fetchrequest = processUIOperation(fetch, sessionId, spKey);
-                        break;
-                    case "action":
-                        fetchrequest = processUserAction(fetch, sessionId);
-                        break;
-                    default:
-                        throw new FDSMException("Unsupported operation: " + fetch);
-                }
-            } catch (HttpResponseException e) {
-                if (e.getStatusCode() == 503) {
-                    long timeSpent = System.currentTimeMillis() - lastActivity;
-                    if (timeSpent < sessionTimeoutMillis) {
-                        logger.warn("Timeout, but re-trying for another {}", time((sessionTimeoutMillis - timeSpent)));
-                        continue;
-                    }
-                }
-                throw e;
+                return result;
+            }
+
+            // Process operations
+            deliveryInterruptionPoint();
+            String operationType = fetch.operationType();
+            switch (operationType) {
+                case "transceive":
+                    fetchrequest = processTransmitOperation(bibo, fetch.operation().get("operationId"), sessionId);
+                    break;
+                case "user-interaction":
+                    fetchrequest = processUIOperation(fetch.operation(), sessionId, spKey);
+                    break;
+                case "action":
+                    fetchrequest = processUserAction(fetch.operation(), sessionId);
+                    break;
+                default:
+                    throw new FDSMException("Unsupported operation: " + fetch);
             }
         }
     }
@@ -276,20 +321,34 @@ public class ServiceDeliverySession implements Callable<ServiceDeliverySession.D
         transmitrequest.put("open", true);
         transmitrequest.putArray("responses"); // Empty, to signal "start sending"
 
-        while (true) {
-            JsonNode transmit = client.rpc(client.getURI(FidesmoApiClient.CONNECTOR_URL), transmitrequest);
-            JsonNode commands = transmit.get("commands");
-            // Check if there are commands
-            if (commands.size() > 0) {
-                ArrayList<String> responses = new ArrayList<>();
-                for (JsonNode cmd : commands) {
+        URI uri = client.getURI(FidesmoApiClient.CONNECTOR_URL);
+        long sending = mark();
+        ConnectorCommands transmit = connector(uri, transmitrequest, null);
+        emit(DeliveryEvent.Phase.CONNECTOR, sending, 0, 0, 0);
+        // Check if there are commands
+        while (!transmit.apdus().isEmpty()) {
+            List<byte[]> responses = new ArrayList<>(transmit.apdus().size());
+            transmitrequest.putPOJO("responses", new ApduCodec.HexArray(responses));
+            try (StreamingBatch batch = pipelined ? new StreamingBatch(client, uri, operationId.asText()) : null) {
+                long transceiving = mark();
+                long sent = 0;
+                long received = 0;
+                for (byte[] cmd : transmit.apdus()) {
                     deliveryInterruptionPoint();
-                    responses.add(HexUtils.bin2hex(bibo.transceive(HexUtils.hex2bin(cmd.asText()))));
+                    byte[] response = bibo.transceive(cmd);
+                    responses.add(response);
+                    if (batch != null) {
+                        batch.add(response);
+                    }
+                    if (transceiving != 0) {
+                        sent += cmd.length;
+                        received += response.length;
+                    }
                 }
-
-                transmitrequest.set("responses", mapper.valueToTree(responses));
-            } else {
-                break;
+                emit(DeliveryEvent.Phase.TRANSCEIVE, transceiving, responses.size(), sent, received);
+                sending = mark();
+                transmit = connector(uri, transmitrequest, batch == null ? null : batch.finish());
+                emit(DeliveryEvent.Phase.CONNECTOR, sending, 0, 0, 0);
             }
         }
 
@@ -297,25 +356,37 @@ public class ServiceDeliverySession implements Callable<ServiceDeliverySession.D
         return emptyFetchRequest(sessionId);
     }
 
-    /**
-     * Used for service/fetch endpoint where an empty result means that client needs to retry fetching later.
-     */
-    private JsonNode rpcWithRetry(URI uri, JsonNode request, int retries) throws IOException {
-        JsonNode node = client.rpc(uri, request);
-
-        if (node != null) {
-            return node;
-        } else if (retries > 0) {
-            // response is not ready, retry after timeout
-            try {
-                Thread.sleep(500);
-            } catch (InterruptedException iex) {
-                // Set the flag again and let deliveryLoop finish
-                Thread.currentThread().interrupt();
+    // A streamed request is the first attempt, retries send the complete request. Unlike service/fetch,
+    // the connector always answers with the next commands: an empty response is a protocol error, not
+    // a "not ready yet" to poll again on.
+    private ConnectorCommands connector(URI uri, JsonNode request, CompletableFuture<ConnectorCommands> streamed) throws IOException {
+        AtomicReference<CompletableFuture<ConnectorCommands>> first = new AtomicReference<>(streamed);
+        return retry(FidesmoApiClient.CONNECTOR_URL, Instant.now().plusMillis(sessionTimeoutMillis), () -> {
+            CompletableFuture<ConnectorCommands> pending = first.getAndSet(null);
+            ConnectorCommands commands = pending != null ? FidesmoApiClient.await(pending) : client.rpc(uri, request, ConnectorCommands.READER);
+            if (commands == null) {
+                throw new IOException("Protocol error: empty response from " + FidesmoApiClient.CONNECTOR_URL);
             }
-            return rpcWithRetry(uri, request, retries - 1);
-        } else {
-            throw new IOException("Unable to fetch request after all retries");
+            return commands;
+        });
+    }
+
+    // Used for service/fetch endpoint where an empty result means that client needs to retry fetching later
+    private FetchResult fetch(JsonNode request, Instant deadline) throws IOException {
+        URI uri = client.getURI(FidesmoApiClient.SERVICE_FETCH_URL);
+        Duration wait = longPollWait;
+        return retry(FidesmoApiClient.SERVICE_FETCH_URL, deadline, () -> wait == null
+                ? client.rpc(uri, request, FetchResult.READER)
+                : client.longPoll(uri, request, FetchResult.READER, wait, deadline));
+    }
+
+    // Delivery calls are not idempotent, so only retried when the API did not act on them
+    private <T> T retry(String endpoint, Instant deadline, FidesmoApiClient.ApiCall<T> call) throws IOException {
+        try {
+            return client.retry(endpoint, deadline, false, call);
+        } catch (InterruptedIOException e) {
+            deliveryInterruptionPoint();
+            throw e;
         }
     }
 
@@ -328,7 +399,9 @@ public class ServiceDeliverySession implements Callable<ServiceDeliverySession.D
 
         // Get input
         List<Field> fields = fieldsFromNode(operation.get("fields"));
+        long input = mark();
         Map<String, Field> responses = formHandler.processForm(fields);
+        emit(DeliveryEvent.Phase.USER_INTERACTION, input, 0, 0, 0);
 
         // Construct response
         ObjectNode operationResult = JsonNodeFactory.instance.objectNode();
@@ -343,7 +416,7 @@ public class ServiceDeliverySession implements Callable<ServiceDeliverySession.D
             // Generate session key
             final Key sessionKey;
             if (encrypted)
-                sessionKey = generateEphemeralKey();
+                sessionKey = SessionCrypto.generateSessionKey();
             else sessionKey = null;
 
             // From map to JSON, encrypting or expanding as needed
@@ -371,7 +444,7 @@ public class ServiceDeliverySession implements Callable<ServiceDeliverySession.D
                     String payload = mapper.writeValueAsString(paymentcard);
 
                     if (encrypted) {
-                        value = HexUtils.bin2hex(encrypt(payload, sessionKey));
+                        value = HexUtils.bin2hex(SessionCrypto.encrypt(payload, sessionKey));
                         values.put(v.getKey(), value);
                     } else {
                         values.put(v.getKey(), payload);
@@ -380,7 +453,7 @@ public class ServiceDeliverySession implements Callable<ServiceDeliverySession.D
                 }
                 // "Normal" value
                 if (encrypted) {
-                    value = HexUtils.bin2hex(encrypt(v.getValue().getValue(), sessionKey));
+                    value = HexUtils.bin2hex(SessionCrypto.encrypt(v.getValue().getValue(), sessionKey));
                 } else {
                     value = v.getValue().getValue();
                 }
@@ -390,7 +463,7 @@ public class ServiceDeliverySession implements Callable<ServiceDeliverySession.D
             operationResult.put("statusCode", 200);
 
             if (encrypted) {
-                operationResult.put("ephemeralKey", HexUtils.bin2hex(encryptSessionKey(spKey, sessionKey)));
+                operationResult.put("ephemeralKey", HexUtils.bin2hex(SessionCrypto.encryptSessionKey(spKey, sessionKey)));
             }
         } catch (GeneralSecurityException e) {
             throw new IOException("Could not handle response encryption", e);
@@ -406,6 +479,7 @@ public class ServiceDeliverySession implements Callable<ServiceDeliverySession.D
     protected ObjectNode processUserAction(JsonNode operation, String sessionId) throws IOException, UnsupportedCallbackException {
 
         JsonNode commands = operation.get("actions");
+        long acting = mark();
         for (JsonNode cmd : commands) {
             deliveryInterruptionPoint();
             String action = cmd.get("name").asText();
@@ -424,6 +498,8 @@ public class ServiceDeliverySession implements Callable<ServiceDeliverySession.D
             }
         }
 
+        emit(DeliveryEvent.Phase.ACTION, acting, 0, 0, 0);
+
         ObjectNode fetchRequest = emptyFetchRequest(sessionId);
 
         ObjectNode operationResult = JsonNodeFactory.instance.objectNode();
@@ -444,25 +520,6 @@ public class ServiceDeliverySession implements Callable<ServiceDeliverySession.D
         }
     }
 
-    private byte[] encrypt(String value, Key key) throws GeneralSecurityException {
-        Cipher c = Cipher.getInstance("AES/CBC/PKCS5Padding");
-        c.init(Cipher.ENCRYPT_MODE, key, new IvParameterSpec(new byte[16]));
-        return c.doFinal(value.getBytes(StandardCharsets.UTF_8));
-    }
-
-    private Key generateEphemeralKey() throws GeneralSecurityException {
-        KeyGenerator keyGenerator = KeyGenerator.getInstance("AES");
-        keyGenerator.init(256);
-        return keyGenerator.generateKey();
-    }
-
-    private byte[] encryptSessionKey(PublicKey publicKey, Key key) throws GeneralSecurityException {
-        Cipher cipher = Cipher.getInstance("RSA/ECB/OAEPWithSHA-512AndMGF1Padding");
-        // NOTE: SunJCE default parameters do not match the string above, so must give them as explicit parameters
-        cipher.init(Cipher.ENCRYPT_MODE, publicKey, new OAEPParameterSpec("SHA-512", "MGF1", MGF1ParameterSpec.SHA512, PSource.PSpecified.DEFAULT));
-        return cipher.doFinal(key.getEncoded());
-    }
-
     private ObjectNode emptyFetchRequest(String sessionId) {
         ObjectNode fetchRequest = JsonNodeFactory.instance.objectNode();
         fetchRequest.put("sessionId", sessionId);
@@ -511,14 +568,26 @@ public class ServiceDeliverySession implements Callable<ServiceDeliverySession.D
         return fields;
     }
 
-    private String time(long ms) {
-        String time = ms + "ms";
-        if (ms > 60000) {
-            time = (ms / 60000) + "m" + ((ms % 60000) / 1000) + "s";
-        } else if (ms > 1000) {
-            time = (ms / 1000) + "s" + (ms % 1000) + "ms";
+    // Start of a phase, or 0 when there is no listener to tell about it
+    private long mark() {
+        return listener == null ? 0 : System.nanoTime();
+    }
+
+    private void emit(DeliveryEvent.Phase phase, long start, int apdus, long sent, long received) {
+        DeliveryListener l = listener;
+        if (l == null || start == 0) {
+            return;
+        }
+        if (phase == DeliveryEvent.Phase.TRANSCEIVE) {
+            apduTotal += apdus;
+            sentTotal += sent;
+            receivedTotal += received;
+        }
+        try {
+            l.onEvent(new DeliveryEvent(phase, currentSessionId, Instant.now(), Duration.ofNanos(System.nanoTime() - start), apdus, sent, received));
+        } catch (RuntimeException e) {
+            logger.warn("Delivery listener failed", e);
         }
-        return time;
     }
 
     protected void deliveryInterruptionPoint() {
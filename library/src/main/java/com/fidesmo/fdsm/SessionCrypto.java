@@ -0,0 +1,146 @@
+/*
+ * Copyright (c) 2018 - present Fidesmo AB
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.fidesmo.fdsm;
+
+import apdu4j.core.HexUtils;
+
+import javax.crypto.Cipher;
+import javax.crypto.KeyGenerator;
+import javax.crypto.spec.IvParameterSpec;
+import javax.crypto.spec.OAEPParameterSpec;
+import javax.crypto.spec.PSource;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.Key;
+import java.security.MessageDigest;
+import java.security.PublicKey;
+import java.security.cert.CertificateFactory;
+import java.security.spec.MGF1ParameterSpec;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+// Encryption of user-interaction responses. Service provider keys are parsed once per
+// certificate, and ciphers and key generators are reused, as getting them from the
+// providers costs more than encrypting a few fields. Instances are pooled rather than
+// kept per thread, because sessions may each run on a fresh virtual thread.
+final class SessionCrypto {
+    private static final int MAX_KEYS = 64;
+    private static final int MAX_IDLE = 64;
+    private static final Map<String, PublicKey> keys = new ConcurrentHashMap<>(); // By certificate fingerprint
+    private static final Pool<Cipher> aes = new Pool<>(() -> Cipher.getInstance("AES/CBC/PKCS5Padding"));
+    private static final Pool<Cipher> rsa = new Pool<>(() -> Cipher.getInstance("RSA/ECB/OAEPWithSHA-512AndMGF1Padding"));
+    private static final Pool<KeyGenerator> keyGenerators = new Pool<>(() -> {
+        KeyGenerator keyGenerator = KeyGenerator.getInstance("AES");
+        keyGenerator.init(256);
+        return keyGenerator;
+    });
+    // NOTE: SunJCE default parameters do not match the transformation string, so must give them as explicit parameters
+    private static final OAEPParameterSpec OAEP = new OAEPParameterSpec("SHA-512", "MGF1", MGF1ParameterSpec.SHA512, PSource.PSpecified.DEFAULT);
+
+    private SessionCrypto() {
+    }
+
+    // Public key of a hex encoded X.509 certificate
+    static PublicKey publicKey(String certificate) throws IOException {
+        byte[] der = HexUtils.hex2bin(certificate);
+        try {
+            String fingerprint = HexUtils.bin2hex(MessageDigest.getInstance("SHA-256").digest(der));
+            PublicKey key = keys.get(fingerprint);
+            if (key == null) {
+                key = CertificateFactory.getInstance("X509").generateCertificate(new ByteArrayInputStream(der)).getPublicKey();
+                if (keys.size() >= MAX_KEYS) {
+                    keys.clear();
+                }
+                keys.put(fingerprint, key);
+            }
+            return key;
+        } catch (GeneralSecurityException e) {
+            throw new IOException("Could not extract public key of service provider", e);
+        }
+    }
+
+    static Key generateSessionKey() throws GeneralSecurityException {
+        KeyGenerator keyGenerator = keyGenerators.take();
+        try {
+            return keyGenerator.generateKey();
+        } finally {
+            keyGenerators.give(keyGenerator);
+        }
+    }
+
+    static byte[] encrypt(String value, Key key) throws GeneralSecurityException {
+        Cipher c = aes.take();
+        try {
+            c.init(Cipher.ENCRYPT_MODE, key, new IvParameterSpec(new byte[16]));
+            return c.doFinal(value.getBytes(StandardCharsets.UTF_8));
+        } finally {
+            aes.give(c);
+        }
+    }
+
+    static byte[] encryptSessionKey(PublicKey publicKey, Key key) throws GeneralSecurityException {
+        Cipher c = rsa.take();
+        try {
+            c.init(Cipher.ENCRYPT_MODE, publicKey, OAEP);
+            return c.doFinal(key.getEncoded());
+        } finally {
+            rsa.give(c);
+        }
+    }
+
+    private interface Factory<T> {
+        T create() throws GeneralSecurityException;
+    }
+
+    // Idle instances, created on demand. Every instance is initialized again before use.
+    private static final class Pool<T> {
+        private final Queue<T> idle = new ConcurrentLinkedQueue<>();
+        private final AtomicInteger size = new AtomicInteger();
+        private final Factory<T> factory;
+
+        Pool(Factory<T> factory) {
+            this.factory = factory;
+        }
+
+        T take() throws GeneralSecurityException {
+            T instance = idle.poll();
+            if (instance == null) {
+                return factory.create();
+            }
+            size.decrementAndGet();
+            return instance;
+        }
+
+        void give(T instance) {
+            if (size.incrementAndGet() <= MAX_IDLE) {
+                idle.offer(instance);
+            } else {
+                size.decrementAndGet();
+            }
+        }
+    }
+}
@@ -0,0 +1,221 @@
+/*
+ * Copyright (c) 2018 - present Fidesmo AB
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.fidesmo.fdsm;
+
+import apdu4j.core.BIBO;
+import apdu4j.core.HexUtils;
+import com.fasterxml.jackson.core.JsonEncoding;
+import com.fasterxml.jackson.core.JsonGenerator;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.http.HttpRequest;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Flow;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.GZIPOutputStream;
+
+// Records a delivery for SessionReplay: the API requests of FidesmoApiClient with their responses,
+// the APDU-s exchanged with the card, and the messages of WsClient, each with its timing. The
+// recording is JSON, one entry per line, compressed if the file name ends with .gz.
+// Entries are written out as they happen, so that a recording survives the process exiting.
+public final class SessionRecorder implements Closeable {
+    private static final Logger logger = LoggerFactory.getLogger(SessionRecorder.class);
+    static final int VERSION = 1;
+
+    private final OutputStream out;
+    private final JsonGenerator json;
+    private final long started = System.nanoTime();
+    private boolean closed;
+
+    private SessionRecorder(OutputStream out) throws IOException {
+        this.out = out;
+        this.json = FidesmoApiClient.mapper.getFactory().createGenerator(out, JsonEncoding.UTF8);
+        json.setRootValueSeparator(null);
+        json.writeStartObject();
+        json.writeNumberField("version", VERSION);
+        json.writeEndObject();
+        end();
+    }
+
+    public static SessionRecorder toStream(OutputStream out) throws IOException {
+        return new SessionRecorder(out);
+    }
+
+    public static SessionRecorder toFile(Path file) throws IOException {
+        OutputStream out = new BufferedOutputStream(Files.newOutputStream(file));
+        return new SessionRecorder(file.getFileName().toString().endsWith(".gz") ? new GZIPOutputStream(out, true) : out);
+    }
+
+    // The card, recording every command and response
+    public BIBO wrap(BIBO card) {
+        return new BIBO() {
+            @Override
+            public byte[] transceive(byte[] command) {
+                long start = System.nanoTime();
+                byte[] response = card.transceive(command);
+                apdu(command, response, System.nanoTime() - start);
+                return response;
+            }
+
+            @Override
+            public void close() {
+                card.close();
+            }
+        };
+    }
+
+    synchronized void apdu(byte[] command, byte[] response, long nanos) {
+        if (closed) {
+            return;
+        }
+        try {
+            json.writeStartObject();
+            json.writeNumberField("at", elapsed());
+            json.writeStringField("apdu", HexUtils.bin2hex(command));
+            json.writeStringField("response", HexUtils.bin2hex(response));
+            json.writeNumberField("nanos", nanos);
+            json.writeEndObject();
+            end();
+        } catch (IOException e) {
+            fail(e);
+        }
+    }
+
+    // path is relative to the API URL; bodies are null when there is none or it was streamed
+    synchronized void api(String method, String path, byte[] request, int status, Map<String, String> headers, byte[] response, long nanos) {
+        if (closed) {
+            return;
+        }
+        try {
+            json.writeStartObject();
+            json.writeNumberField("at", elapsed());
+            json.writeStringField("api", method + " " + path);
+            if (request != null) {
+                json.writeStringField("request", new String(request, StandardCharsets.UTF_8));
+            }
+            json.writeNumberField("status", status);
+            if (!headers.isEmpty()) {
+                json.writeObjectFieldStart("headers");
+                for (Map.Entry<String, String> header : headers.entrySet()) {
+                    json.writeStringField(header.getKey(), header.getValue());
+                }
+                json.writeEndObject();
+            }
+            if (response != null && response.length > 0) {
+                json.writeStringField("response", new String(response, StandardCharsets.UTF_8));
+            }
+            json.writeNumberField("nanos", nanos);
+            json.writeEndObject();
+            end();
+        } catch (IOException e) {
+            fail(e);
+        }
+    }
+
+    // Messages of a WebSocket delivery, received from or sent to the server
+    synchronized void webSocket(boolean received, String message) {
+        if (closed) {
+            return;
+        }
+        try {
+            json.writeStartObject();
+            json.writeNumberField("at", elapsed());
+            json.writeStringField("ws", received ? "received" : "sent");
+            json.writeStringField("message", message);
+            json.writeEndObject();
+            end();
+        } catch (IOException e) {
+            fail(e);
+        }
+    }
+
+    // Body of an asynchronous request, unless it is produced while sending
+    static byte[] body(HttpRequest request) {
+        return request.bodyPublisher()
+                .filter(publisher -> publisher.contentLength() >= 0)
+                .map(publisher -> {
+                    CompletableFuture<byte[]> body = new CompletableFuture<>();
+                    publisher.subscribe(new Flow.Subscriber<>() {
+                        private final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+
+                        @Override
+                        public void onSubscribe(Flow.Subscription subscription) {
+                            subscription.request(Long.MAX_VALUE);
+                        }
+
+                        @Override
+                        public void onNext(ByteBuffer item) {
+                            byte[] chunk = new byte[item.remaining()];
+                            item.get(chunk);
+                            bytes.writeBytes(chunk);
+                        }
+
+                        @Override
+                        public void onError(Throwable throwable) {
+                            body.complete(null);
+                        }
+
+                        @Override
+                        public void onComplete() {
+                            body.complete(bytes.toByteArray());
+                        }
+                    });
+                    return body.getNow(null);
+                }).orElse(null);
+    }
+
+    // Milliseconds since the recording started
+    private long elapsed() {
+        return TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - started);
+    }
+
+    private void end() throws IOException {
+        json.writeRaw('\n');
+        json.flush();
+    }
+
+    // A recording with a gap would not replay, so stop recording, but let the delivery go on
+    private void fail(IOException e) {
+        closed = true;
+        logger.warn("Could not record session: {}", e.getMessage());
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        if (!closed) {
+            closed = true;
+            json.close();
+            out.close();
+        }
+    }
+}
@@ -0,0 +1,306 @@
+/*
+ * Copyright (c) 2018 - present Fidesmo AB
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.fidesmo.fdsm;
+
+import apdu4j.core.BIBO;
+import apdu4j.core.BIBOException;
+import apdu4j.core.HexUtils;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import org.java_websocket.WebSocket;
+import org.java_websocket.handshake.ClientHandshake;
+import org.java_websocket.server.WebSocketServer;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedReader;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.GZIPInputStream;
+
+// Plays back a recording of SessionRecorder, for deliveries without the API and a card: the API
+// responses are served from a local HTTP server, to a FidesmoApiClient pointed at getURL(), the
+// card is stood in for by card(), and a WebSocket delivery is served from getWebSocketURI().
+// Requests are answered with the recorded response to the same method and path, in recorded
+// order; the card expects the recorded commands. By default nothing is delayed, with a time
+// scale the recorded durations are waited for, e.g. 1.0 for the recorded pace.
+public final class SessionReplay implements Closeable {
+    private final Map<String, Queue<Exchange>> exchanges = new ConcurrentHashMap<>(); // By method and path
+    private final Queue<Apdu> apdus = new ConcurrentLinkedQueue<>();
+    private final List<Message> messages;
+    private final List<String> unexpected = new CopyOnWriteArrayList<>();
+    private volatile double timeScale;
+    private ExecutorService executor;
+    private HttpServer http;
+    private Server ws;
+
+    private record Exchange(int status, Map<String, String> headers, String response, long nanos) {
+    }
+
+    private record Apdu(byte[] command, byte[] response, long nanos) {
+    }
+
+    // Received from the server or sent to it, at milliseconds since the start of the recording
+    private record Message(boolean received, String message, long at) {
+    }
+
+    private SessionReplay(List<JsonNode> entries) throws IOException {
+        List<Message> messages = new ArrayList<>();
+        for (JsonNode entry : entries) {
+            if (entry.has("api")) {
+                Map<String, String> headers = new TreeMap<>();
+                entry.path("headers").fields().forEachRemaining(header -> headers.put(header.getKey(), header.getValue().asText()));
+                exchanges.computeIfAbsent(entry.get("api").asText(), k -> new ConcurrentLinkedQueue<>())
+                        .add(new Exchange(entry.get("status").asInt(), headers, entry.path("response").textValue(), entry.path("nanos").asLong()));
+            } else if (entry.has("apdu")) {
+                apdus.add(new Apdu(HexUtils.hex2bin(entry.get("apdu").asText()), HexUtils.hex2bin(entry.get("response").asText()), entry.path("nanos").asLong()));
+            } else if (entry.has("ws")) {
+                messages.add(new Message(entry.get("ws").asText().equals("received"), entry.get("message").asText(), entry.path("at").asLong()));
+            } else if (!entry.has("version")) {
+                throw new IOException("Unknown entry in recording: " + entry);
+            }
+        }
+        this.messages = Collections.unmodifiableList(messages);
+    }
+
+    public static SessionReplay load(Path file) throws IOException {
+        try (InputStream in = Files.newInputStream(file)) {
+            return read(in);
+        }
+    }
+
+    // Plain or compressed
+    public static SessionReplay read(InputStream in) throws IOException {
+        BufferedInputStream buffered = new BufferedInputStream(in);
+        buffered.mark(2);
+        boolean gzip = buffered.read() == 0x1f && buffered.read() == 0x8b;
+        buffered.reset();
+        BufferedReader reader = new BufferedReader(new InputStreamReader(gzip ? new GZIPInputStream(buffered) : buffered, StandardCharsets.UTF_8));
+        List<JsonNode> entries = new ArrayList<>();
+        for (String line = reader.readLine(); line != null; line = reader.readLine()) {
+            if (!line.isBlank()) {
+                entries.add(FidesmoApiClient.mapper.readTree(line));
+            }
+        }
+        if (entries.isEmpty() || entries.get(0).path("version").asInt() != SessionRecorder.VERSION) {
+            throw new IOException("Not a session recording of version " + SessionRecorder.VERSION);
+        }
+        return new SessionReplay(entries);
+    }
+
+    public void setTimeScale(double scale) {
+        if (!(scale >= 0)) {
+            throw new IllegalArgumentException("Time scale must not be negative");
+        }
+        this.timeScale = scale;
+    }
+
+    // Stands in for the recorded card; throws if sent anything other than the recorded commands
+    public BIBO card() {
+        return new BIBO() {
+            @Override
+            public byte[] transceive(byte[] command) {
+                Apdu apdu = apdus.poll();
+                if (apdu == null) {
+                    throw new BIBOException("Not in recording: " + HexUtils.bin2hex(command));
+                }
+                if (!Arrays.equals(apdu.command(), command)) {
+                    throw new BIBOException("Expected " + HexUtils.bin2hex(apdu.command()) + " but got " + HexUtils.bin2hex(command));
+                }
+                delay(apdu.nanos());
+                return apdu.response().clone();
+            }
+
+            @Override
+            public void close() {
+            }
+        };
+    }
+
+    // API URL serving the recorded responses
+    public synchronized String getURL() throws IOException {
+        if (http == null) {
+            executor = Executors.newVirtualThreadPerTaskExecutor();
+            http = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 0);
+            http.setExecutor(executor);
+            http.createContext("/", this::handle);
+            http.start();
+        }
+        return "http://" + http.getAddress().getHostString() + ":" + http.getAddress().getPort() + "/";
+    }
+
+    // A client of the recorded API, to be closed by the caller
+    public FidesmoApiClient client() throws IOException {
+        return new FidesmoApiClient(getURL(), null, null);
+    }
+
+    // WebSocket delivery URL serving the recorded messages
+    public synchronized URI getWebSocketURI() throws IOException {
+        if (ws == null) {
+            Server server = new Server();
+            server.start();
+            try {
+                if (!server.started.await(10, TimeUnit.SECONDS)) {
+                    throw new IOException("WebSocket server did not start");
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException("Interrupted", e);
+            }
+            ws = server;
+        }
+        return URI.create("ws://" + ws.getAddress().getHostString() + ":" + ws.getPort() + "/");
+    }
+
+    // Entries that have not been played back yet
+    public int getRemaining() {
+        int remaining = apdus.size();
+        for (Queue<Exchange> queue : exchanges.values()) {
+            remaining += queue.size();
+        }
+        return remaining + messages.size() - (ws == null ? 0 : ws.next);
+    }
+
+    // Requests that were not in the recording, as method and path
+    public List<String> getUnexpected() {
+        return Collections.unmodifiableList(unexpected);
+    }
+
+    private void handle(HttpExchange exchange) throws IOException {
+        String key = exchange.getRequestMethod() + " " + exchange.getRequestURI().toString().substring(1);
+        exchange.getRequestBody().readAllBytes();
+        Queue<Exchange> queue = exchanges.get(key);
+        Exchange recorded = queue == null ? null : queue.poll();
+        if (recorded == null) {
+            unexpected.add(key);
+            exchange.sendResponseHeaders(404, -1);
+            exchange.close();
+            return;
+        }
+        delay(recorded.nanos());
+        recorded.headers().forEach((name, value) -> exchange.getResponseHeaders().add(name, value));
+        byte[] body = recorded.response() == null ? new byte[0] : recorded.response().getBytes(StandardCharsets.UTF_8);
+        exchange.sendResponseHeaders(recorded.status(), body.length == 0 ? -1 : body.length);
+        try (OutputStream out = exchange.getResponseBody()) {
+            out.write(body);
+        }
+    }
+
+    private void delay(long nanos) {
+        long scaled = (long) (nanos * timeScale);
+        if (scaled > 0) {
+            try {
+                TimeUnit.NANOSECONDS.sleep(scaled);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        if (http != null) {
+            http.stop(0);
+            executor.shutdownNow();
+        }
+        if (ws != null) {
+            try {
+                ws.stop(1000);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    // Sends the recorded messages of the server, waiting for a message from the client where
+    // one was recorded. Messages from the client are not compared with the recording.
+    private final class Server extends WebSocketServer {
+        final CountDownLatch started = new CountDownLatch(1);
+        volatile int next;
+
+        Server() {
+            super(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+        }
+
+        @Override
+        public void onOpen(WebSocket conn, ClientHandshake handshake) {
+            play(conn);
+        }
+
+        @Override
+        public void onMessage(WebSocket conn, String message) {
+            synchronized (this) {
+                if (next < messages.size() && !messages.get(next).received()) {
+                    next++;
+                }
+            }
+            play(conn);
+        }
+
+        private synchronized void play(WebSocket conn) {
+            while (next < messages.size() && messages.get(next).received()) {
+                Message message = messages.get(next);
+                if (next > 0) {
+                    delay(TimeUnit.MILLISECONDS.toNanos(message.at() - messages.get(next - 1).at()));
+                }
+                next++;
+                conn.send(message.message());
+            }
+        }
+
+        @Override
+        public void onClose(WebSocket conn, int code, String reason, boolean remote) {
+        }
+
+        @Override
+        public void onError(WebSocket conn, Exception ex) {
+        }
+
+        @Override
+        public void onStart() {
+            started.countDown();
+        }
+    }
+}
@@ -0,0 +1,187 @@
+/*
+ * Copyright (c) 2018 - present Fidesmo AB
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.fidesmo.fdsm;
+
+import com.fasterxml.jackson.core.io.JsonStringEncoder;
+
+import java.io.IOException;
+import java.net.URI;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Flow;
+
+// A connector/json request carrying the card responses of a batch, sent while the card is
+// still executing the batch. Each response is streamed to the API as soon as the card returns
+// it, so that most of the request has been transferred by the time the last one is ready.
+final class StreamingBatch implements AutoCloseable {
+    private final Body body = new Body();
+    private final CompletableFuture<ConnectorCommands> response;
+    private boolean first = true;
+    private boolean finished;
+
+    StreamingBatch(FidesmoApiClient client, URI uri, String operationId) {
+        response = client.rpcStreamAsync(uri, body, ConnectorCommands.READER);
+        // Same fields as the request built from the tree in ServiceDeliverySession
+        body.push("{\"uuid\":\"" + new String(JsonStringEncoder.getInstance().quoteAsString(operationId)) + "\",\"open\":true,\"responses\":[");
+    }
+
+    // Written as a quoted hex string, straight into the chunk
+    void add(byte[] response) {
+        int start = first ? 1 : 2;
+        byte[] chunk = new byte[start + response.length * 2 + 1];
+        chunk[start - 1] = '"';
+        if (!first) {
+            chunk[0] = ',';
+        }
+        chunk[ApduCodec.encode(response, chunk, start)] = '"';
+        body.push(ByteBuffer.wrap(chunk));
+        first = false;
+    }
+
+    CompletableFuture<ConnectorCommands> finish() {
+        body.push("]}");
+        body.complete();
+        finished = true;
+        return response;
+    }
+
+    // Abandons the request unless finished
+    @Override
+    public void close() {
+        if (!finished) {
+            body.fail(new IOException("Batch aborted"));
+            response.cancel(true);
+        }
+    }
+
+    // Chunks are kept until the HTTP client subscribes and asks for them
+    private static final class Body implements Flow.Publisher<ByteBuffer>, Flow.Subscription {
+        private final Deque<ByteBuffer> chunks = new ArrayDeque<>();
+        private Flow.Subscriber<? super ByteBuffer> subscriber;
+        private long demand;
+        private boolean completed;
+        private Throwable failure;
+        private boolean draining;
+        private boolean done;
+
+        @Override
+        public void subscribe(Flow.Subscriber<? super ByteBuffer> subscriber) {
+            synchronized (this) {
+                if (this.subscriber != null) {
+                    // Not repeatable: retries send the complete request instead
+                    subscriber.onSubscribe(this);
+                    subscriber.onError(new IllegalStateException("Streamed body can be sent only once"));
+                    return;
+                }
+                this.subscriber = subscriber;
+            }
+            subscriber.onSubscribe(this);
+            drain();
+        }
+
+        @Override
+        public void request(long n) {
+            synchronized (this) {
+                if (n <= 0) {
+                    failure = new IllegalArgumentException("Non-positive request");
+                } else {
+                    demand = demand + n < 0 ? Long.MAX_VALUE : demand + n;
+                }
+            }
+            drain();
+        }
+
+        @Override
+        public synchronized void cancel() {
+            done = true;
+            chunks.clear();
+        }
+
+        void push(String chunk) {
+            push(ByteBuffer.wrap(chunk.getBytes(StandardCharsets.UTF_8)));
+        }
+
+        void push(ByteBuffer chunk) {
+            synchronized (this) {
+                chunks.add(chunk);
+            }
+            drain();
+        }
+
+        void complete() {
+            synchronized (this) {
+                completed = true;
+            }
+            drain();
+        }
+
+        void fail(Throwable e) {
+            synchronized (this) {
+                failure = e;
+            }
+            drain();
+        }
+
+        // Signals the subscriber from one thread at a time, as many chunks as it has asked for
+        private void drain() {
+            synchronized (this) {
+                if (draining || subscriber == null) {
+                    return;
+                }
+                draining = true;
+            }
+            while (true) {
+                final Flow.Subscriber<? super ByteBuffer> target;
+                ByteBuffer next = null;
+                Throwable error = null;
+                synchronized (this) {
+                    if (done) {
+                        return;
+                    }
+                    target = subscriber;
+                    if (failure != null) {
+                        done = true;
+                        error = failure;
+                    } else if (demand > 0 && !chunks.isEmpty()) {
+                        demand--;
+                        next = chunks.poll();
+                    } else if (completed && chunks.isEmpty()) {
+                        done = true;
+                    } else {
+                        draining = false;
+                        return;
+                    }
+                }
+                if (error != null) {
+                    target.onError(error);
+                } else if (next == null) {
+                    target.onComplete();
+                } else {
+                    target.onNext(next);
+                }
+            }
+        }
+    }
+}
@@ -29,29 +29,49 @@ import com.fasterxml.jackson.databind.ObjectMapper;
 import com.fasterxml.jackson.databind.node.JsonNodeFactory;
 import com.fasterxml.jackson.databind.node.ObjectNode;
 import org.apache.commons.codec.DecoderException;
-import org.apache.commons.codec.binary.Hex;
 import org.apache.http.HttpHeaders;
 import org.java_websocket.client.WebSocketClient;
+import org.java_websocket.exceptions.WebsocketNotConnectedException;
 import org.java_websocket.handshake.ServerHandshake;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.IOException;
 import java.net.URI;
+import java.nio.ByteBuffer;
+import java.time.Duration;
 import java.util.*;
 import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 
+// A delivery over WebSocket. Servers that keep sessions over reconnects say so in the handshake;
+// if the connection to such a server drops, the client connects again with backoff and resumes
+// the session, giving the number of the last batch of commands it has run. Batches are numbered
+// from 1 in the order received. The server answers with the last batch it has the responses to,
+// and only the responses after that are sent again; the card never runs a batch twice.
 public class WsClient {
     private final static Logger logger = LoggerFactory.getLogger(WsClient.class);
 
     private static final ObjectMapper mapper = new ObjectMapper();
+    static final String RESUME_HEADER = "Fidesmo-Resume";
+    static final String RESUME_SESSION_HEADER = "Fidesmo-Resume-Session";
+    static final String RESUME_SEQUENCE_HEADER = "Fidesmo-Resume-Sequence";
+    private static final long CONNECT_TIMEOUT_SECONDS = 30;
 
     private final URI uri;
     private final Map<String, String> headers;
     private final BIBO card;
-    private final WebSocketClient client;
+    private volatile WebSocketClient client; // Replaced when reconnecting
     private final CompletableFuture<ServiceDeliverySession.DeliveryResult> deliveryResult = new CompletableFuture<>();
-    private String sessionId;
+    private volatile String sessionId;
+    private volatile SessionRecorder recorder;
+    private volatile boolean binary; // APDU batches in binary frames, if the server agreed to
+    private volatile boolean resumable; // The server keeps the session over reconnects
+    private volatile RetryPolicy reconnectPolicy = ExponentialBackoff.defaults().withMaxRetries(6).withDelays(Duration.ofMillis(250), Duration.ofSeconds(8));
+    private final AtomicBoolean reconnecting = new AtomicBoolean();
+    private int sequence; // Batches of commands run
+    private final NavigableMap<Integer, List<byte[]>> unacknowledged = new TreeMap<>(); // Responses by batch
 
     public WsClient(URI uri, BIBO card, ClientAuthentication authentication, ClientInfo info) {
         this.uri = uri;        
@@ -62,11 +82,24 @@ public class WsClient {
         }
 
         info.asHeaders().stream().forEach(h -> this.headers.put(h.getName(), h.getValue()));
+        // Servers that do not know the header keep sending JSON
+        this.headers.put(ApduFrame.HEADER, ApduFrame.BINARY);
+        this.headers.put(RESUME_HEADER, "1");
 
         this.card = card;
         this.client = buildClient();
     }
 
+    // Records the messages of the delivery for SessionReplay. The card is recorded by wrapping it.
+    public void setRecorder(SessionRecorder recorder) {
+        this.recorder = recorder;
+    }
+
+    // Delays between attempts to reconnect after the connection dropped, RetryPolicy.none() to fail at once
+    public void setReconnectPolicy(RetryPolicy reconnectPolicy) {
+        this.reconnectPolicy = reconnectPolicy;
+    }
+
     public static CompletableFuture<ServiceDeliverySession.DeliveryResult> execute(URI uri, BIBO card, ClientAuthentication authentication, ClientInfo info) {
         return new WsClient(uri, card, authentication, info).run();
     }
@@ -74,26 +107,47 @@ public class WsClient {
     protected WebSocketClient buildClient() {
         return new WebSocketClient(uri, headers) {
             public void onOpen(ServerHandshake handshake) {
+                binary = ApduFrame.BINARY.equals(handshake.getFieldValue(ApduFrame.HEADER));
+                resumable = handshake.hasFieldValue(RESUME_HEADER);
             }
 
             @Override
             public void onMessage(String data) {
+                SessionRecorder recorder = WsClient.this.recorder;
+                if (recorder != null) {
+                    recorder.webSocket(true, data);
+                }
                 try {
                     processCommand(mapper.readTree(data));
                 } catch (IOException | DecoderException | BIBOException e) {
-                    logger.warn("Error during delivery", e);
-
-                    respondWithStatus("CLIENT_ERROR", Optional.of(e.getMessage()));
-
-                    deliveryResult.complete(new ServiceDeliverySession.DeliveryResult(sessionId, false, e.getMessage(), null));
+                    fail(e);
+                }
+            }
 
-                    close();
+            @Override
+            public void onMessage(ByteBuffer frame) {
+                try {
+                    List<byte[]> commands = ApduFrame.read(frame, ApduFrame.COMMANDS);
+                    SessionRecorder recorder = WsClient.this.recorder;
+                    if (recorder != null) {
+                        // As the equivalent JSON message, so that replays work without binary frames
+                        recorder.webSocket(true, batch("commands", commands));
+                    }
+                    runBatch(commands);
+                } catch (IllegalArgumentException | IOException | BIBOException e) {
+                    fail(e);
                 }
             }
 
             @Override
             public void onClose(int code, String reason, boolean remote) {
-                if (!deliveryResult.isDone()) {
+                // Attempts to reconnect are handled by resume()
+                if (this != client || deliveryResult.isDone() || reconnecting.get()) {
+                    return;
+                }
+                if (canResume()) {
+                    resume(reason);
+                } else {
                     deliveryResult.completeExceptionally(new Exception(reason));
                 }
             }
@@ -101,12 +155,57 @@ public class WsClient {
             @Override
             public void onError(Exception ex) {
                 logger.warn("Error during obtaining commands: ", ex);
-                deliveryResult.completeExceptionally(ex);
+                // Followed by onClose, where the delivery is resumed
+                if (!canResume()) {
+                    deliveryResult.completeExceptionally(ex);
+                }
             }
         };
 
     }
 
+    private boolean canResume() {
+        return resumable && sessionId != null;
+    }
+
+    // Connects again, with backoff, until the session is resumed or the policy gives up
+    private void resume(String reason) {
+        if (!reconnecting.compareAndSet(false, true)) {
+            return;
+        }
+        Thread.ofVirtual().start(() -> {
+            boolean connected = false;
+            try {
+                for (int retry = 1; !connected && !deliveryResult.isDone(); retry++) {
+                    Optional<Duration> delay = reconnectPolicy.nextDelay(retry);
+                    if (delay.isEmpty()) {
+                        deliveryResult.completeExceptionally(new IOException("Could not resume delivery: " + reason));
+                        return;
+                    }
+                    Thread.sleep(delay.get());
+                    int last = sequence();
+                    logger.info("Resuming session {} after batch {}", sessionId, last);
+                    headers.put(RESUME_SESSION_HEADER, sessionId);
+                    headers.put(RESUME_SEQUENCE_HEADER, String.valueOf(last));
+                    client = buildClient();
+                    connected = client.connectBlocking(CONNECT_TIMEOUT_SECONDS, TimeUnit.SECONDS);
+                }
+            } catch (InterruptedException e) {
+                deliveryResult.completeExceptionally(e);
+            } finally {
+                reconnecting.set(false);
+            }
+            // Dropped again before the flag was cleared
+            if (connected && !client.isOpen() && !deliveryResult.isDone()) {
+                resume(reason);
+            }
+        });
+    }
+
+    private synchronized int sequence() {
+        return sequence;
+    }
+
     public CompletableFuture<ServiceDeliverySession.DeliveryResult> run() {
         if (deliveryResult.isDone()) {
             throw new IllegalStateException("WsClient is single-use!");
@@ -127,6 +226,16 @@ public class WsClient {
         });
     }
 
+    private void fail(Exception e) {
+        logger.warn("Error during delivery", e);
+
+        respondWithStatus("CLIENT_ERROR", Optional.of(e.getMessage()));
+
+        deliveryResult.complete(new ServiceDeliverySession.DeliveryResult(sessionId, false, e.getMessage(), null));
+
+        client.close();
+    }
+
     protected void processCommand(JsonNode node) throws IOException, DecoderException {
         switch (node.get("type").asText()) {
             case "id":
@@ -134,17 +243,28 @@ public class WsClient {
                 logger.info("Session ID: " + sessionId);
                 break;
             case "commands":
-                List<String> responses = new ArrayList<>();
+                List<byte[]> commands = new ArrayList<>();
 
                 for (JsonNode jsonNode : node.get("commands")) {
-                    byte[] command = Hex.decodeHex(jsonNode.asText());
-                    responses.add(Hex.encodeHexString(card.transceive(command)));
+                    try {
+                        commands.add(ApduCodec.decode(jsonNode.asText()));
+                    } catch (IllegalArgumentException e) {
+                        throw new DecoderException(e.getMessage(), e);
+                    }
                 }
 
-                ObjectNode res = JsonNodeFactory.instance.objectNode();
-                res.put("type", "responses");
-                res.set("responses", mapper.valueToTree(responses));
-                respond(res);
+                runBatch(commands);
+                break;
+            case "resumed":
+                List<List<byte[]>> replay;
+                synchronized (this) {
+                    unacknowledged.headMap(node.path("sequence").asInt(), true).clear();
+                    replay = new ArrayList<>(unacknowledged.values());
+                }
+                logger.info("Session {} resumed, sending {} batches of responses again", sessionId, replay.size());
+                for (List<byte[]> responses : replay) {
+                    respond(responses);
+                }
                 break;
             case "status":
                 String code = node.get("code").asText();
@@ -162,6 +282,55 @@ public class WsClient {
         }
     }
 
+    // The next batch. Its responses are kept until the server sends the batch after it.
+    private void runBatch(List<byte[]> commands) throws JsonProcessingException {
+        List<byte[]> responses = transceive(commands);
+        synchronized (this) {
+            unacknowledged.headMap(sequence, true).clear();
+            sequence++;
+            unacknowledged.put(sequence, responses);
+        }
+        respond(responses);
+    }
+
+    private List<byte[]> transceive(List<byte[]> commands) {
+        List<byte[]> responses = new ArrayList<>(commands.size());
+        for (byte[] command : commands) {
+            responses.add(card.transceive(command));
+        }
+        return responses;
+    }
+
+    // Responses to a batch, in the framing agreed on
+    private void respond(List<byte[]> responses) throws JsonProcessingException {
+        try {
+            if (!binary) {
+                ObjectNode res = JsonNodeFactory.instance.objectNode();
+                res.put("type", "responses");
+                res.putPOJO("responses", new ApduCodec.HexArray(responses));
+                respond(res);
+                return;
+            }
+            SessionRecorder recorder = this.recorder;
+            if (recorder != null) {
+                recorder.webSocket(false, batch("responses", responses));
+            }
+            client.send(ApduFrame.write(ApduFrame.RESPONSES, responses));
+        } catch (WebsocketNotConnectedException e) {
+            if (!canResume()) {
+                throw e;
+            }
+            logger.debug("Responses are sent when the session is resumed");
+        }
+    }
+
+    private static String batch(String type, List<byte[]> apdus) throws JsonProcessingException {
+        ObjectNode message = JsonNodeFactory.instance.objectNode();
+        message.put("type", type);
+        message.putPOJO(type, new ApduCodec.HexArray(apdus));
+        return mapper.writeValueAsString(message);
+    }
+
     protected void respondWithStatus(String code, Optional<String> message) {
         try {
             ObjectNode res = JsonNodeFactory.instance.objectNode();
@@ -175,7 +344,12 @@ public class WsClient {
     }
 
     protected void respond(ObjectNode node) throws JsonProcessingException {
-        client.send(mapper.writeValueAsString(node));
+        String message = mapper.writeValueAsString(node);
+        SessionRecorder recorder = this.recorder;
+        if (recorder != null) {
+            recorder.webSocket(false, message);
+        }
+        client.send(message);
     }
 
 }
\ No newline at end of file
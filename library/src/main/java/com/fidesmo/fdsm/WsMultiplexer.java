@@ -0,0 +1,332 @@
+/*
+ * Copyright (c) 2018 - present Fidesmo AB
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.fidesmo.fdsm;
+
+import apdu4j.core.BIBO;
+import apdu4j.core.BIBOException;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.JsonNodeFactory;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import org.apache.http.HttpHeaders;
+import org.java_websocket.client.WebSocketClient;
+import org.java_websocket.handshake.ServerHandshake;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.URI;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+// WebSocket deliveries to many cards over one connection, e.g. for a station with many readers,
+// saving a TLS and WebSocket handshake and a socket per card. Messages of a delivery are tagged
+// with its channel number: JSON messages with a "channel" field, binary frames with a four byte
+// prefix. A delivery starts with an "open" message giving its WebSocket URI. The messages of a
+// channel are handled in order on a virtual thread, so a slow card holds up only its own
+// delivery, and a failing card or a malformed message ends only its own. If the server does not
+// answer the handshake with the multiplexing header, every delivery connects on its own with
+// WsClient instead.
+public class WsMultiplexer implements Closeable {
+    private final static Logger logger = LoggerFactory.getLogger(WsMultiplexer.class);
+    static final String HEADER = "Fidesmo-Multiplex";
+    private static final ObjectMapper mapper = new ObjectMapper();
+    private static final long CONNECT_TIMEOUT_SECONDS = 30;
+    private static final long SESSION_TIMEOUT_MINUTES = 15;
+
+    private final URI endpoint;
+    private final ClientAuthentication authentication;
+    private final ClientInfo info;
+    private final Map<String, String> headers = new HashMap<>();
+    private final Semaphore permits;
+    private final ExecutorService executor = Executors.newVirtualThreadPerTaskExecutor();
+    private final Map<Integer, Channel> channels = new ConcurrentHashMap<>();
+    private final AtomicInteger lastChannel = new AtomicInteger();
+    private WebSocketClient client;
+    private Boolean multiplexed; // Unknown until connected
+    private volatile boolean binary;
+    private volatile long sessionTimeoutMillis = TimeUnit.MINUTES.toMillis(SESSION_TIMEOUT_MINUTES);
+
+    // At most maxSessions deliveries run at a time, the others wait for their turn
+    public WsMultiplexer(URI endpoint, ClientAuthentication authentication, ClientInfo info, int maxSessions) {
+        if (maxSessions < 1) {
+            throw new IllegalArgumentException("Concurrency must be positive");
+        }
+        this.endpoint = endpoint;
+        this.authentication = authentication;
+        this.info = info;
+        this.permits = new Semaphore(maxSessions);
+        if (authentication != null) {
+            headers.put(HttpHeaders.AUTHORIZATION, authentication.toAuthenticationHeader());
+        }
+        info.asHeaders().forEach(h -> headers.put(h.getName(), h.getValue()));
+        headers.put(ApduFrame.HEADER, ApduFrame.BINARY);
+        headers.put(HEADER, "1");
+    }
+
+    // A delivery the server has not ended by then is given up, freeing its turn for the next
+    public void setTimeoutMinutes(long minutes) {
+        sessionTimeoutMillis = TimeUnit.MINUTES.toMillis(minutes);
+    }
+
+    // Runs the delivery at a WebSocket URI to the card
+    public CompletableFuture<ServiceDeliverySession.DeliveryResult> deliver(URI delivery, BIBO card) {
+        return CompletableFuture.supplyAsync(() -> {
+            try {
+                permits.acquire();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new CompletionException(e);
+            }
+            try {
+                WebSocketClient connection = connect();
+                if (connection == null) {
+                    return WsClient.execute(delivery, card, authentication, info).join();
+                }
+                Channel channel = new Channel(lastChannel.incrementAndGet(), card, connection);
+                channels.put(channel.id, channel);
+                try {
+                    ObjectNode open = JsonNodeFactory.instance.objectNode();
+                    open.put("type", "open");
+                    open.put("channel", channel.id);
+                    open.put("uri", delivery.toString());
+                    connection.send(mapper.writeValueAsString(open));
+                    return channel.result.get(sessionTimeoutMillis, TimeUnit.MILLISECONDS);
+                } catch (TimeoutException e) {
+                    channel.fail(new IOException("Delivery timed out"));
+                    return channel.result.join();
+                } catch (ExecutionException e) {
+                    throw new CompletionException(e.getCause());
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    channel.fail(new IOException("Interrupted", e));
+                    throw new CompletionException(e);
+                } finally {
+                    channels.remove(channel.id);
+                }
+            } catch (IOException e) {
+                throw new CompletionException(e);
+            } finally {
+                permits.release();
+            }
+        }, executor);
+    }
+
+    // The shared connection, opened when first needed and again after it was lost; null if
+    // the server does not multiplex
+    private synchronized WebSocketClient connect() throws IOException {
+        if (Boolean.FALSE.equals(multiplexed)) {
+            return null;
+        }
+        if (client != null && client.isOpen()) {
+            return client;
+        }
+        CompletableFuture<Boolean> agreed = new CompletableFuture<>();
+        WebSocketClient connection = buildClient(agreed);
+        try {
+            if (!connection.connectBlocking(CONNECT_TIMEOUT_SECONDS, TimeUnit.SECONDS)) {
+                throw new IOException("Could not connect to " + endpoint);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted", e);
+        }
+        multiplexed = agreed.getNow(false);
+        if (!multiplexed) {
+            logger.info("{} does not multiplex, connecting for every delivery", endpoint);
+            connection.close();
+            return null;
+        }
+        client = connection;
+        return client;
+    }
+
+    private WebSocketClient buildClient(CompletableFuture<Boolean> agreed) {
+        return new WebSocketClient(endpoint, headers) {
+            @Override
+            public void onOpen(ServerHandshake handshake) {
+                binary = ApduFrame.BINARY.equals(handshake.getFieldValue(ApduFrame.HEADER));
+                agreed.complete(handshake.hasFieldValue(HEADER));
+            }
+
+            // Messages to unknown or finished channels go nowhere
+            @Override
+            public void onMessage(String data) {
+                try {
+                    JsonNode node = mapper.readTree(data);
+                    Channel channel = channels.get(node.path("channel").asInt());
+                    if (channel != null) {
+                        channel.submit(() -> channel.process(node));
+                    }
+                } catch (IOException e) {
+                    logger.warn("Malformed message: {}", e.getMessage());
+                }
+            }
+
+            @Override
+            public void onMessage(ByteBuffer frame) {
+                Channel channel;
+                try {
+                    channel = channels.get(frame.getInt());
+                } catch (BufferUnderflowException e) {
+                    logger.warn("Malformed frame");
+                    return;
+                }
+                if (channel != null) {
+                    try {
+                        List<byte[]> commands = ApduFrame.read(frame, ApduFrame.COMMANDS);
+                        channel.submit(() -> channel.commands(commands));
+                    } catch (IllegalArgumentException e) {
+                        channel.submit(() -> channel.fail(e));
+                    }
+                }
+            }
+
+            @Override
+            public void onClose(int code, String reason, boolean remote) {
+                // Deliveries in progress cannot continue on another connection. Those already on
+                // the one that replaced this are not affected.
+                IOException closed = new IOException("Connection closed: " + reason);
+                channels.values().stream()
+                        .filter(channel -> channel.connection == this)
+                        .forEach(channel -> channel.result.completeExceptionally(closed));
+            }
+
+            @Override
+            public void onError(Exception ex) {
+                logger.warn("Error in multiplexed connection: ", ex);
+            }
+        };
+    }
+
+    @Override
+    public void close() {
+        synchronized (this) {
+            if (client != null) {
+                client.close();
+            }
+        }
+        executor.shutdownNow();
+    }
+
+    // One delivery on the shared connection
+    private final class Channel {
+        final int id;
+        final CompletableFuture<ServiceDeliverySession.DeliveryResult> result = new CompletableFuture<>();
+        private final BIBO card;
+        private final WebSocketClient connection;
+        private CompletableFuture<Void> tail = CompletableFuture.completedFuture(null);
+        private String sessionId;
+
+        Channel(int id, BIBO card, WebSocketClient connection) {
+            this.id = id;
+            this.card = card;
+            this.connection = connection;
+        }
+
+        // In order of arrival, one at a time, off the thread of the connection. Whatever goes
+        // wrong ends the delivery instead of silently stopping the rest of its messages.
+        synchronized void submit(Runnable task) {
+            tail = tail.thenRunAsync(() -> {
+                if (!result.isDone()) {
+                    try {
+                        task.run();
+                    } catch (RuntimeException e) {
+                        fail(e);
+                    }
+                }
+            }, executor);
+        }
+
+        void process(JsonNode node) {
+            try {
+                switch (node.path("type").asText()) {
+                    case "id" -> sessionId = node.path("value").asText();
+                    case "commands" -> {
+                        List<byte[]> commands = new ArrayList<>();
+                        for (JsonNode command : node.path("commands")) {
+                            commands.add(ApduCodec.decode(command.asText()));
+                        }
+                        commands(commands);
+                    }
+                    case "status" -> result.complete(new ServiceDeliverySession.DeliveryResult(sessionId,
+                            "OK".equals(node.path("code").asText()), node.path("message").asText(""), null));
+                    default -> throw new IllegalArgumentException("Unsupported message type: " + node.path("type").asText());
+                }
+            } catch (IllegalArgumentException e) {
+                fail(e);
+            }
+        }
+
+        void commands(List<byte[]> commands) {
+            try {
+                List<byte[]> responses = new ArrayList<>(commands.size());
+                for (byte[] command : commands) {
+                    responses.add(card.transceive(command));
+                }
+                if (binary) {
+                    ByteBuffer frame = ApduFrame.write(ApduFrame.RESPONSES, responses);
+                    connection.send(ByteBuffer.allocate(4 + frame.remaining()).putInt(id).put(frame).flip());
+                } else {
+                    ObjectNode message = JsonNodeFactory.instance.objectNode();
+                    message.put("type", "responses");
+                    message.put("channel", id);
+                    message.putPOJO("responses", new ApduCodec.HexArray(responses));
+                    connection.send(mapper.writeValueAsString(message));
+                }
+            } catch (IOException | IllegalArgumentException | BIBOException e) {
+                fail(e);
+            }
+        }
+
+        // Ends this delivery only
+        void fail(Exception e) {
+            logger.warn("Error during delivery on channel {}", id, e);
+            ObjectNode status = JsonNodeFactory.instance.objectNode();
+            status.put("type", "status");
+            status.put("channel", id);
+            status.put("code", "CLIENT_ERROR");
+            status.put("message", String.valueOf(e.getMessage()));
+            try {
+                connection.send(mapper.writeValueAsString(status));
+            } catch (IOException | RuntimeException ex) {
+                logger.warn("Failed to send ", ex);
+            }
+            result.complete(new ServiceDeliverySession.DeliveryResult(sessionId, false, e.getMessage(), null));
+        }
+    }
+}
@@ -0,0 +1,75 @@
+package com.fidesmo.fdsm;
+
+import apdu4j.core.HexUtils;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.JsonNodeFactory;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+// One round of a LOAD / STORE DATA batch: commands decoded from the API response, card
+// responses (echoing the data) encoded into the next request. Strings and trees, as
+// before, vs ApduCodec, vs the binary frames of WebSocket deliveries.
+@State(Scope.Benchmark)
+public class ApduCodecBenchmark {
+    @Param({"20", "100"})
+    public int apdus;
+
+    private final ObjectMapper mapper = new ObjectMapper();
+    private byte[] commands;
+    private ByteBuffer frame;
+
+    @Setup
+    public void setup() throws IOException {
+        StringBuilder batch = new StringBuilder("{\"commands\":[");
+        for (int i = 0; i < apdus; i++) {
+            batch.append(i == 0 ? "" : ",").append("\"80E80000FF").append("A5".repeat(255)).append('"');
+        }
+        commands = batch.append("]}").toString().getBytes(StandardCharsets.UTF_8);
+        frame = ApduFrame.write(ApduFrame.COMMANDS, ConnectorCommands.READER.<ConnectorCommands>readValue(commands).apdus());
+    }
+
+    @Benchmark
+    public byte[] strings() throws IOException {
+        ObjectNode request = JsonNodeFactory.instance.objectNode();
+        request.put("uuid", "0b0ef1a4-2f4b-4c5e-9c1d-7e8b0d7f6a11");
+        List<String> responses = new ArrayList<>();
+        for (JsonNode cmd : mapper.readTree(commands).get("commands")) {
+            byte[] apdu = HexUtils.hex2bin(cmd.asText());
+            responses.add(HexUtils.bin2hex(apdu));
+        }
+        request.set("responses", mapper.valueToTree(responses));
+        return mapper.writeValueAsBytes(request);
+    }
+
+    @Benchmark
+    public byte[] codec() throws IOException {
+        ObjectNode request = JsonNodeFactory.instance.objectNode();
+        request.put("uuid", "0b0ef1a4-2f4b-4c5e-9c1d-7e8b0d7f6a11");
+        List<byte[]> responses = new ArrayList<>();
+        for (byte[] apdu : ConnectorCommands.READER.<ConnectorCommands>readValue(commands).apdus()) {
+            responses.add(apdu);
+        }
+        request.putPOJO("responses", new ApduCodec.HexArray(responses));
+        return mapper.writeValueAsBytes(request);
+    }
+
+    @Benchmark
+    public ByteBuffer binary() {
+        List<byte[]> responses = new ArrayList<>();
+        for (byte[] apdu : ApduFrame.read(frame.duplicate(), ApduFrame.COMMANDS)) {
+            responses.add(apdu);
+        }
+        return ApduFrame.write(ApduFrame.RESPONSES, responses);
+    }
+}
@@ -0,0 +1,62 @@
+package com.fidesmo.fdsm;
+
+import com.fasterxml.jackson.databind.JsonMappingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.JsonNodeFactory;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import org.testng.annotations.Test;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+
+import static org.testng.Assert.assertEquals;
+
+public class ApduCodecTest {
+    @Test
+    public void testRoundTrip() throws Exception {
+        ConnectorCommands commands = ConnectorCommands.READER.readValue("{\"commands\":[\"00a4040000\",\"80E8\",\"\"],\"other\":{\"a\":[1]}}");
+        assertEquals(commands.apdus().size(), 3);
+        assertEquals(commands.apdus().get(0), new byte[]{0x00, (byte) 0xA4, 0x04, 0x00, 0x00});
+        assertEquals(commands.commands(), List.of("00A4040000", "80E8", ""));
+
+        ObjectNode request = JsonNodeFactory.instance.objectNode();
+        request.putPOJO("responses", new ApduCodec.HexArray(commands.apdus()));
+        assertEquals(new ObjectMapper().writeValueAsString(request), "{\"responses\":[\"00A4040000\",\"80E8\",\"\"]}");
+    }
+
+    @Test
+    public void testStreamedEncoding() {
+        byte[] out = new byte[6];
+        assertEquals(ApduCodec.encode(new byte[]{(byte) 0x90, 0x00, 0x6a}, out, 0), 6);
+        assertEquals(new String(out, StandardCharsets.US_ASCII), "90006A");
+        assertEquals(ApduCodec.decode("90006a"), new byte[]{(byte) 0x90, 0x00, 0x6A});
+    }
+
+    @Test(expectedExceptions = JsonMappingException.class)
+    public void testInvalidCommand() throws Exception {
+        ConnectorCommands.READER.readValue("{\"commands\":[\"00A40\"]}");
+    }
+
+    @Test(expectedExceptions = IllegalArgumentException.class)
+    public void testInvalidDigit() {
+        ApduCodec.decode("9G00");
+    }
+
+    @Test
+    public void testBinaryFrame() {
+        List<byte[]> apdus = List.of(new byte[]{0x00, (byte) 0xA4, 0x04, 0x00, 0x00}, new byte[0], new byte[300]);
+        ByteBuffer frame = ApduFrame.write(ApduFrame.COMMANDS, apdus);
+        assertEquals(frame.remaining(), 3 + 2 + 5 + 2 + 2 + 300);
+        List<byte[]> read = ApduFrame.read(frame, ApduFrame.COMMANDS);
+        assertEquals(read.size(), 3);
+        assertEquals(read.get(0), apdus.get(0));
+        assertEquals(read.get(2), apdus.get(2));
+    }
+
+    @Test(expectedExceptions = IllegalArgumentException.class)
+    public void testTruncatedFrame() {
+        ByteBuffer frame = ApduFrame.write(ApduFrame.RESPONSES, List.of(new byte[]{(byte) 0x90, 0x00}));
+        ApduFrame.read(frame.limit(frame.limit() - 1), ApduFrame.RESPONSES);
+    }
+}
@@ -0,0 +1,84 @@
+package com.fidesmo.fdsm;
+
+import com.fasterxml.jackson.databind.node.JsonNodeFactory;
+import com.fidesmo.fdsm.exceptions.CircuitOpenException;
+import org.apache.http.client.HttpResponseException;
+import org.testng.annotations.Test;
+
+import java.time.Duration;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertTrue;
+import static org.testng.Assert.fail;
+
+public class ApiMetricsTest {
+
+    @Test
+    public void testHistogramPercentiles() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        for (int i = 1; i <= 1000; i++) {
+            histogram.record(Duration.ofMillis(i).toNanos());
+        }
+        assertEquals(histogram.getCount(), 1000);
+        assertEquals(histogram.getMean().toMillis(), 500);
+        for (int percentile : new int[]{50, 90, 99, 100}) {
+            long expected = Duration.ofMillis(percentile * 10L).toNanos();
+            long actual = histogram.getPercentile(percentile).toNanos();
+            // Within the width of a bucket
+            assertTrue(actual >= expected && actual <= expected * 1.07, percentile + ": " + actual);
+        }
+    }
+
+    @Test
+    public void testBucketBounds() {
+        for (long micros = 0; micros < 1 << 20; micros += 7) {
+            int index = LatencyHistogram.index(micros);
+            assertTrue(LatencyHistogram.upperBound(index) >= micros);
+            assertTrue(index == 0 || LatencyHistogram.upperBound(index - 1) < micros);
+        }
+    }
+
+    @Test
+    public void testRequestsCounted() throws Exception {
+        try (StubApiServer server = new StubApiServer();
+             FidesmoApiClient client = new FidesmoApiClient(server.getURL(), null, null)) {
+            client.setRetryPolicy(RetryPolicyTest.FAST);
+            ApiMetrics shared = new ApiMetrics();
+            client.setMetrics(shared);
+            server.failNext("apps/busy", 2, 503, null);
+            client.retry(FidesmoApiClient.APP_INFO_URL, true, () -> client.rpc(client.getURI(FidesmoApiClient.APP_INFO_URL, "busy")));
+            FidesmoApiClient.await(client.rpcAsync(client.getURI(FidesmoApiClient.APP_INFO_URL, "other")));
+            client.rpc(client.getURI(FidesmoApiClient.SERVICE_DELIVERY_ERROR_URL), JsonNodeFactory.instance.objectNode().put("x", "y"));
+
+            EndpointMetrics app = shared.get(FidesmoApiClient.APP_INFO_URL).orElseThrow();
+            assertEquals(app.getLatency().getCount(), 4);
+            assertEquals(app.getStatusCounts().get(503), Long.valueOf(2));
+            assertEquals(app.getStatusCounts().get(200), Long.valueOf(2));
+            assertEquals(app.getRetries(), 2);
+            assertTrue(app.getBytesReceived() > 0);
+            EndpointMetrics error = shared.get(FidesmoApiClient.SERVICE_DELIVERY_ERROR_URL).orElseThrow();
+            assertEquals(error.getBytesSent(), "{\"x\":\"y\"}".length());
+            assertEquals(shared.getEndpoints().size(), 2);
+        }
+    }
+
+    @Test
+    public void testRejectionsCounted() throws Exception {
+        ConnectionSettings settings = ConnectionSettings.defaults().withCircuitBreaker(1, Duration.ofMinutes(1));
+        try (StubApiServer server = new StubApiServer();
+             FidesmoApiClient client = new FidesmoApiClient(server.getURL(), null, null, ClientInfo.fdsm(), settings)) {
+            server.failNext("apps/down", 1, 500, null);
+            for (int i = 0; i < 3; i++) {
+                try {
+                    client.rpc(client.getURI(FidesmoApiClient.APP_INFO_URL, "down"));
+                    fail("Expected failure");
+                } catch (HttpResponseException | CircuitOpenException e) {
+                    // Expected
+                }
+            }
+            EndpointMetrics app = client.getMetrics().get(FidesmoApiClient.APP_INFO_URL).orElseThrow();
+            assertEquals(app.getRejections(), 2);
+            assertEquals(app.getLatency().getCount(), 1);
+        }
+    }
+}
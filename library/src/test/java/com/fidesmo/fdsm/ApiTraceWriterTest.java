@@ -0,0 +1,192 @@
+package com.fidesmo.fdsm;
+
+import org.testng.annotations.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.URI;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertTrue;
+
+public class ApiTraceWriterTest {
+
+    @Test
+    public void testFormattedOffThread() throws Exception {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        try (ApiTraceWriter trace = ApiTraceWriter.forStream(out)) {
+            trace.request("POST", URI.create("https://api.fidesmo.com/v3/service/fetch"), "{\"sessionId\":\"abc\"}".getBytes(StandardCharsets.UTF_8));
+            trace.response("200 OK", "not json".getBytes(StandardCharsets.UTF_8));
+            trace.flush();
+        }
+        String text = out.toString(StandardCharsets.UTF_8);
+        assertTrue(text.startsWith("POST: https://api.fidesmo.com/v3/service/fetch\n{\n  \"sessionId\" : \"abc\"\n}\n"), text);
+        assertTrue(text.endsWith("RECV: 200 OK\nnot json\n"), text);
+    }
+
+    @Test
+    public void testDropsWhenFull() throws Exception {
+        CountDownLatch blocked = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        ByteArrayOutputStream written = new ByteArrayOutputStream();
+        OutputStream slow = new OutputStream() {
+            @Override
+            public void write(int b) {
+                written.write(b);
+            }
+
+            @Override
+            public void flush() {
+                blocked.countDown();
+                try {
+                    release.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        };
+        try (ApiTraceWriter trace = ApiTraceWriter.forStream(slow, 4, ApiTraceWriter.DropPolicy.DROP_NEWEST)) {
+            trace.message("first");
+            blocked.await();
+            // Writer is stuck, so only 4 of these fit in the queue
+            for (int i = 0; i < 10; i++) {
+                trace.message("message " + i);
+            }
+            assertEquals(trace.getDropped(), 6);
+            release.countDown();
+            trace.flush();
+        }
+        String text = written.toString(StandardCharsets.UTF_8);
+        assertTrue(text.contains("message 3\n# 6 trace events dropped\n"), text);
+    }
+
+    @Test
+    public void testFlushNotDropped() throws Exception {
+        CountDownLatch blocked = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        ByteArrayOutputStream written = new ByteArrayOutputStream();
+        OutputStream slow = new OutputStream() {
+            @Override
+            public void write(int b) {
+                written.write(b);
+            }
+
+            @Override
+            public void flush() {
+                blocked.countDown();
+                try {
+                    release.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        };
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        try (ApiTraceWriter trace = ApiTraceWriter.forStream(slow, 2, ApiTraceWriter.DropPolicy.DROP_OLDEST)) {
+            trace.message("first");
+            blocked.await();
+            Thread[] flusher = new Thread[1];
+            Future<Boolean> flushed = executor.submit(() -> {
+                flusher[0] = Thread.currentThread();
+                return trace.flush(1, TimeUnit.MINUTES);
+            });
+            // The marker of the flush is queued once it waits
+            while (flusher[0] == null || flusher[0].getState() != Thread.State.TIMED_WAITING) {
+                Thread.onSpinWait();
+            }
+            // The oldest events make room for newer ones, but the marker stays
+            for (int i = 0; i < 10; i++) {
+                trace.message("message " + i);
+            }
+            assertEquals(trace.getDropped(), 8);
+            release.countDown();
+            assertTrue(flushed.get());
+        } finally {
+            executor.shutdownNow();
+        }
+        String text = written.toString(StandardCharsets.UTF_8);
+        assertTrue(text.contains("message 9\n"), text);
+        assertFalse(text.contains("message 7\n"), text);
+    }
+
+    @Test
+    public void testFlushAfterClose() throws Exception {
+        ApiTraceWriter trace = ApiTraceWriter.forStream(new ByteArrayOutputStream());
+        trace.message("first");
+        trace.close();
+        // Returns at once, as nothing will be written anymore
+        assertFalse(trace.flush(1, TimeUnit.MINUTES));
+        trace.flush();
+    }
+
+    @Test
+    public void testFileRotation() throws Exception {
+        Path dir = Files.createTempDirectory("fdsm");
+        Path file = dir.resolve("api.log");
+        try (ApiTraceWriter trace = ApiTraceWriter.forFile(file, 100, 2, 16, ApiTraceWriter.DropPolicy.DROP_OLDEST)) {
+            for (int i = 0; i < 20; i++) {
+                trace.message("event number " + i + " with some padding to fill the file");
+                trace.flush();
+            }
+        }
+        assertTrue(Files.exists(dir.resolve("api.log.1")));
+        assertTrue(Files.exists(dir.resolve("api.log.2")));
+        assertTrue(!Files.exists(dir.resolve("api.log.3")));
+        // Oldest events are gone, the latest are kept
+        String kept = Files.readString(dir.resolve("api.log.2")) + Files.readString(dir.resolve("api.log.1")) + Files.readString(file);
+        assertTrue(kept.contains("event number 19 "), kept);
+        assertTrue(!kept.contains("event number 0 "), kept);
+    }
+
+    @Test
+    public void testClientTrace() throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        try (StubApiServer server = new StubApiServer()) {
+            FidesmoApiClient client = new FidesmoApiClient(server.getURL(), null, out);
+            client.rpc(client.getURI(FidesmoApiClient.DEVICES_URL, "00", 0));
+            client.close();
+        }
+        String text = out.toString(StandardCharsets.UTF_8);
+        assertTrue(text.contains("GET: http://localhost:"), text);
+        assertTrue(text.contains("RECV: 200 OK\n{\n  \"iin\" : \"0011223344\""), text);
+    }
+
+    @Test
+    public void testClientTraceToStdoutCreatedOnce() throws IOException {
+        long before = traceThreads();
+        try (StubApiServer server = new StubApiServer()) {
+            FidesmoApiClient client = new FidesmoApiClient(server.getURL(), null, null);
+            client.setTrace(true);
+            client.setTrace(true);
+            client.setTrace(true);
+            assertEquals(traceThreads(), before + 1);
+            // Turning tracing off stops the writer, turning it on again starts a new one
+            client.setTrace(false);
+            assertEquals(traceThreads(), before);
+            client.setTrace(true);
+            assertEquals(traceThreads(), before + 1);
+            // As does replacing it
+            client.setTraceWriter(null);
+            assertEquals(traceThreads(), before);
+            client.setTrace(true);
+            client.close();
+            assertEquals(traceThreads(), before);
+        }
+    }
+
+    private static long traceThreads() {
+        return Thread.getAllStackTraces().keySet().stream()
+                .filter(t -> t.getName().equals("fdsm-api-trace") && t.isAlive())
+                .count();
+    }
+}
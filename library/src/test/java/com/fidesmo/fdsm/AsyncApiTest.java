@@ -0,0 +1,105 @@
+package com.fidesmo.fdsm;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.node.JsonNodeFactory;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import org.apache.http.client.HttpResponseException;
+import org.testng.annotations.Test;
+
+import java.io.InterruptedIOException;
+import java.net.URI;
+import java.net.http.HttpResponse;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertNull;
+import static org.testng.Assert.assertThrows;
+import static org.testng.Assert.assertTrue;
+import static org.testng.Assert.expectThrows;
+
+public class AsyncApiTest {
+    @Test
+    public void testRpcAsync() throws Exception {
+        try (StubApiServer server = new StubApiServer();
+             FidesmoApiClient client = new FidesmoApiClient(server.getURL(), null, null)) {
+            JsonNode service = FidesmoApiClient.await(client.rpcAsync(client.getURI(FidesmoApiClient.SERVICE_URL, "c0ffee00", "stub")));
+            assertEquals(service.get("description").get("title").asText(), "Stub service");
+
+            ObjectNode deliver = JsonNodeFactory.instance.objectNode().put("appId", "c0ffee00").put("serviceId", "stub");
+            JsonNode session = FidesmoApiClient.await(client.rpcAsync(client.getURI(FidesmoApiClient.SERVICE_DELIVER_URL), deliver));
+            assertTrue(session.has("sessionId"));
+
+            ServiceDescription typed = FidesmoApiClient.await(client.rpcAsync(client.getURI(FidesmoApiClient.SERVICE_URL, "c0ffee00", "stub"),
+                    null, ServiceDescription.READER));
+            assertEquals(typed.title().asText(), "Stub service");
+        }
+    }
+
+    @Test
+    public void testVerbs() throws Exception {
+        try (StubApiServer server = new StubApiServer();
+             FidesmoApiClient client = new FidesmoApiClient(server.getURL(), null, null)) {
+            URI recipe = client.getURI(FidesmoApiClient.SERVICE_RECIPE_URL, "c0ffee00", "install");
+            ObjectNode body = JsonNodeFactory.instance.objectNode().put("description", "Install");
+            assertEquals(FidesmoApiClient.await(client.putAsync(recipe, body)).statusCode(), 200);
+            assertEquals(server.getRecipe("c0ffee00", "install"), body);
+
+            HttpResponse<byte[]> get = FidesmoApiClient.await(client.getAsync(recipe));
+            assertEquals(FidesmoApiClient.mapper.readTree(get.body()), body);
+
+            ObjectNode deliver = JsonNodeFactory.instance.objectNode().put("appId", "c0ffee00").put("serviceId", "stub");
+            assertEquals(FidesmoApiClient.await(client.postAsync(client.getURI(FidesmoApiClient.SERVICE_DELIVER_URL), deliver)).statusCode(), 200);
+
+            assertNull(FidesmoApiClient.await(client.deleteAsync(recipe)));
+            assertNull(server.getRecipe("c0ffee00", "install"));
+        }
+    }
+
+    @Test
+    public void testConnectionsBounded() throws Exception {
+        ConnectionSettings settings = ConnectionSettings.defaults().withMaxConnectionsPerRoute(4);
+        try (StubApiServer server = new StubApiServer();
+             FidesmoApiClient client = new FidesmoApiClient(server.getURL(), null, null, ClientInfo.fdsm(), settings)) {
+            server.setLatency("service/", 100);
+            ObjectNode deliver = JsonNodeFactory.instance.objectNode().put("appId", "c0ffee00").put("serviceId", "stub");
+            List<CompletableFuture<JsonNode>> calls = new ArrayList<>();
+            for (int i = 0; i < 20; i++) {
+                calls.add(client.rpcAsync(client.getURI(FidesmoApiClient.SERVICE_DELIVER_URL), deliver));
+            }
+            for (CompletableFuture<JsonNode> call : calls) {
+                assertTrue(FidesmoApiClient.await(call).has("sessionId"));
+            }
+            assertEquals(server.getMaxInFlight(), 4);
+            assertTrue(server.getConnectionCount() <= 4, "Connections: " + server.getConnectionCount());
+        }
+    }
+
+    @Test
+    public void testAwaitErrors() throws Exception {
+        try (StubApiServer server = new StubApiServer();
+             FidesmoApiClient client = new FidesmoApiClient(server.getURL(), null, null)) {
+            // Status of a failed call, as thrown by the blocking calls
+            URI missing = client.getURI(FidesmoApiClient.SERVICE_RECIPE_URL, "c0ffee00", "missing");
+            HttpResponseException e = expectThrows(HttpResponseException.class, () -> FidesmoApiClient.await(client.getAsync(missing)));
+            assertEquals(e.getStatusCode(), 404);
+            server.setErrorRate("apps/", 1.0, 500);
+            e = expectThrows(HttpResponseException.class, () -> FidesmoApiClient.await(client.deleteAsync(missing)));
+            assertEquals(e.getStatusCode(), 500);
+
+            // Interrupted while waiting: the call is cancelled and the interrupt kept
+            server.setLatency("service/", 10_000);
+            CompletableFuture<JsonNode> slow = client.rpcAsync(client.getURI(FidesmoApiClient.SERVICE_DELIVER_URL),
+                    JsonNodeFactory.instance.objectNode().put("serviceId", "stub"));
+            Thread.currentThread().interrupt();
+            try {
+                assertThrows(InterruptedIOException.class, () -> FidesmoApiClient.await(slow));
+                assertTrue(Thread.currentThread().isInterrupted());
+                assertTrue(slow.isCancelled());
+            } finally {
+                Thread.interrupted();
+            }
+        }
+    }
+}
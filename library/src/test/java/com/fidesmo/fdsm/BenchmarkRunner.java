@@ -0,0 +1,17 @@
+package com.fidesmo.fdsm;
+
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+// Runs JMH benchmarks from the test classpath. Arguments are benchmark name patterns:
+// mvn -pl library test-compile exec:java -Dexec.classpathScope=test -Dexec.mainClass=com.fidesmo.fdsm.BenchmarkRunner -Dexec.args=Decoding
+public class BenchmarkRunner {
+    public static void main(String[] args) throws RunnerException {
+        OptionsBuilder options = new OptionsBuilder();
+        for (String pattern : args) {
+            options.include(pattern);
+        }
+        new Runner(options.forks(1).warmupIterations(3).measurementIterations(5).build()).run();
+    }
+}
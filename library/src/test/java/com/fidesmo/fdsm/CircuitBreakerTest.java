@@ -0,0 +1,172 @@
+package com.fidesmo.fdsm;
+
+import com.fasterxml.jackson.databind.node.JsonNodeFactory;
+import com.fidesmo.fdsm.exceptions.CircuitOpenException;
+import org.apache.http.client.HttpResponseException;
+import org.testng.annotations.Test;
+
+import java.net.URI;
+import java.time.Duration;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertTrue;
+import static org.testng.Assert.fail;
+
+public class CircuitBreakerTest {
+
+    @Test
+    public void testEndpointTemplates() {
+        String api = "https://api.example.com/v3/";
+        assertEquals(Endpoints.of(api, URI.create(api + "apps/c0ffee00/services/install")), FidesmoApiClient.SERVICE_URL);
+        assertEquals(Endpoints.of(api, URI.create(api + "apps/c0ffee00")), FidesmoApiClient.APP_INFO_URL);
+        assertEquals(Endpoints.of(api, URI.create(api + "apps")), FidesmoApiClient.APPS_URL);
+        assertEquals(Endpoints.of(api, URI.create(api + "devices/identify?cplc=00")), FidesmoApiClient.DEVICE_IDENTIFY_URL);
+        assertEquals(Endpoints.of(api, URI.create(api + "devices/0011?batchId=0")), FidesmoApiClient.DEVICES_URL);
+        assertEquals(Endpoints.of(api, URI.create(api + "connector/json")), FidesmoApiClient.CONNECTOR_URL);
+        assertEquals(Endpoints.of(api, URI.create("https://example.com/apps")), Endpoints.OTHER);
+    }
+
+    @Test
+    public void testOpensAndRecovers() throws Exception {
+        ConnectionSettings settings = ConnectionSettings.defaults().withCircuitBreaker(3, Duration.ofMillis(300));
+        try (StubApiServer server = new StubApiServer();
+             FidesmoApiClient client = new FidesmoApiClient(server.getURL(), null, null, ClientInfo.fdsm(), settings)) {
+            server.failNext("apps/down", 3, 503, null);
+            URI uri = client.getURI(FidesmoApiClient.APP_INFO_URL, "down");
+            for (int i = 0; i < 3; i++) {
+                try {
+                    client.rpc(uri);
+                    fail("Expected failure");
+                } catch (HttpResponseException e) {
+                    assertEquals(e.getStatusCode(), 503);
+                }
+            }
+            assertEquals(client.getCircuitState(FidesmoApiClient.APP_INFO_URL), CircuitBreaker.State.OPEN);
+            try {
+                client.rpc(client.getURI(FidesmoApiClient.APP_INFO_URL, "other"));
+                fail("Expected failure");
+            } catch (CircuitOpenException e) {
+                assertEquals(e.getEndpoint(), FidesmoApiClient.APP_INFO_URL);
+            }
+            // Other endpoints are not affected
+            client.rpc(client.getURI(FidesmoApiClient.DEVICES_URL, "00", 0));
+            assertEquals(server.getRequestCount("apps/other"), 0);
+
+            Thread.sleep(400);
+            client.rpc(uri);
+            assertEquals(client.getCircuitState(FidesmoApiClient.APP_INFO_URL), CircuitBreaker.State.CLOSED);
+        }
+    }
+
+    @Test
+    public void testFailedProbeReopens() throws Exception {
+        ConnectionSettings settings = ConnectionSettings.defaults().withCircuitBreaker(1, Duration.ofMillis(200));
+        try (StubApiServer server = new StubApiServer();
+             FidesmoApiClient client = new FidesmoApiClient(server.getURL(), null, null, ClientInfo.fdsm(), settings)) {
+            server.failNext("apps/down", 2, 503, null);
+            URI uri = client.getURI(FidesmoApiClient.APP_INFO_URL, "down");
+            for (int i = 0; i < 2; i++) {
+                try {
+                    client.rpc(uri);
+                    fail("Expected failure");
+                } catch (HttpResponseException e) {
+                    assertEquals(client.getCircuitState(FidesmoApiClient.APP_INFO_URL), CircuitBreaker.State.OPEN);
+                }
+                Thread.sleep(250);
+            }
+            client.rpc(uri);
+            assertEquals(server.getRequestCount("apps/down"), 3);
+        }
+    }
+
+    @Test
+    public void testStaleCacheServedWhileOpen() throws Exception {
+        ConnectionSettings settings = ConnectionSettings.defaults().withCircuitBreaker(1, Duration.ofMinutes(1));
+        try (StubApiServer server = new StubApiServer();
+             FidesmoApiClient client = new FidesmoApiClient(server.getURL(), null, null, ClientInfo.fdsm(), settings)) {
+            client.setResponseCache(new LruResponseCache(16, Duration.ZERO));
+            URI uri = client.getURI(FidesmoApiClient.APP_INFO_URL, "cached");
+            String name = client.rpc(uri).toString();
+            server.failNext("apps/cached", 1, 500, null);
+            try {
+                client.rpc(uri);
+                fail("Expected failure");
+            } catch (HttpResponseException e) {
+                assertEquals(e.getStatusCode(), 500);
+            }
+            assertEquals(client.rpc(uri).toString(), name);
+            assertEquals(FidesmoApiClient.await(client.rpcAsync(uri)).toString(), name);
+            assertEquals(server.getRequestCount("apps/cached"), 2);
+        }
+    }
+
+    @Test
+    public void testOffByDefault() throws Exception {
+        try (StubApiServer server = new StubApiServer();
+             FidesmoApiClient client = new FidesmoApiClient(server.getURL(), null, null)) {
+            server.failNext("apps/down", 10, 503, null);
+            URI uri = client.getURI(FidesmoApiClient.APP_INFO_URL, "down");
+            for (int i = 0; i < 10; i++) {
+                try {
+                    client.rpc(uri);
+                    fail("Expected failure");
+                } catch (HttpResponseException e) {
+                    assertEquals(e.getStatusCode(), 503);
+                }
+            }
+            assertEquals(client.getCircuitState(FidesmoApiClient.APP_INFO_URL), CircuitBreaker.State.CLOSED);
+            assertTrue(client.getCircuitStates().isEmpty());
+        }
+    }
+
+    @Test
+    public void testPendingFetchNotCounted() throws Exception {
+        ConnectionSettings settings = ConnectionSettings.defaults().withCircuitBreaker(1, Duration.ofMinutes(1));
+        try (StubApiServer server = new StubApiServer();
+             FidesmoApiClient client = new FidesmoApiClient(server.getURL(), null, null, ClientInfo.fdsm(), settings)) {
+            // Answered while the backend is still working on the session
+            server.failNext(FidesmoApiClient.SERVICE_FETCH_URL, 3, 503, null);
+            URI uri = client.getURI(FidesmoApiClient.SERVICE_FETCH_URL);
+            for (int i = 0; i < 3; i++) {
+                try {
+                    client.rpc(uri, JsonNodeFactory.instance.objectNode().put("sessionId", "pending"));
+                    fail("Expected failure");
+                } catch (HttpResponseException e) {
+                    assertEquals(e.getStatusCode(), 503);
+                }
+            }
+            assertEquals(client.getCircuitState(FidesmoApiClient.SERVICE_FETCH_URL), CircuitBreaker.State.CLOSED);
+        }
+    }
+
+    @Test
+    public void testRetryWaitsForProbe() throws Exception {
+        ConnectionSettings settings = ConnectionSettings.defaults().withCircuitBreaker(1, Duration.ofMillis(300));
+        try (StubApiServer server = new StubApiServer();
+             FidesmoApiClient client = new FidesmoApiClient(server.getURL(), null, null, ClientInfo.fdsm(), settings)) {
+            client.setRetryPolicy(RetryPolicyTest.FAST);
+            server.failNext("apps/down", 1, 503, null);
+            URI uri = client.getURI(FidesmoApiClient.APP_INFO_URL, "down");
+            long start = System.nanoTime();
+            // Not sent while open: waits for the probe instead of failing
+            assertEquals(client.retry(FidesmoApiClient.APP_INFO_URL, false, () -> client.rpc(uri)).get("appId").asText(), "down");
+            assertTrue(System.nanoTime() - start >= Duration.ofMillis(250).toNanos());
+            assertEquals(server.getRequestCount("apps/down"), 2);
+        }
+    }
+
+    @Test
+    public void testRateLimit() throws Exception {
+        try (StubApiServer server = new StubApiServer();
+             FidesmoApiClient client = new FidesmoApiClient(server.getURL(), null, null)) {
+            client.setRateLimit(FidesmoApiClient.APP_INFO_URL, 20, 2);
+            long start = System.nanoTime();
+            for (int i = 0; i < 6; i++) {
+                client.rpc(client.getURI(FidesmoApiClient.APP_INFO_URL, "app" + i));
+            }
+            FidesmoApiClient.await(client.rpcAsync(client.getURI(FidesmoApiClient.APP_INFO_URL, "async")));
+            // Burst of 2, then 5 requests 50ms apart
+            assertTrue(System.nanoTime() - start >= Duration.ofMillis(240).toNanos());
+        }
+    }
+}
@@ -0,0 +1,87 @@
+package com.fidesmo.fdsm;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import org.testng.annotations.Test;
+
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertTrue;
+
+public class ConcurrentDeliveryTest {
+
+    @Test
+    public void testSessionsShareOnePooledClient() throws Exception {
+        ConnectionSettings settings = ConnectionSettings.defaults().withMaxConnections(16).withMaxConnectionsPerRoute(16);
+        try (StubApiServer server = new StubApiServer();
+             FidesmoApiClient client = new FidesmoApiClient(server.getURL(), null, null, ClientInfo.fdsm(), settings)) {
+            ExecutorService executor = Executors.newFixedThreadPool(200);
+            try {
+                List<Future<ServiceDeliverySession.DeliveryResult>> results = new ArrayList<>();
+                for (int i = 0; i < 400; i++) {
+                    ServiceDeliverySession session = StubDeliveries.session(client, TestChannel.fromStrings("9000", "9000"));
+                    results.add(executor.submit(session));
+                }
+                for (Future<ServiceDeliverySession.DeliveryResult> result : results) {
+                    assertTrue(result.get().isSuccess());
+                }
+            } finally {
+                executor.shutdownNow();
+            }
+            // Blocking and asynchronous calls have a pool each, both within the settings
+            assertTrue(server.getConnectionCount() <= 2 * 16, "Connections: " + server.getConnectionCount());
+        }
+    }
+
+    @Test
+    public void testAsyncRpc() throws Exception {
+        try (StubApiServer server = new StubApiServer();
+             FidesmoApiClient client = new FidesmoApiClient(server.getURL(), null, null)) {
+            JsonNode device = FidesmoApiClient.await(client.rpcAsync(client.getURI(FidesmoApiClient.DEVICES_URL, "00", 0)));
+            assertEquals(device.get("iin").asText(), "0011223344");
+        }
+    }
+
+    @Test
+    public void testIdenticalRequestsCoalesced() throws Exception {
+        try (StubApiServer server = new StubApiServer();
+             FidesmoApiClient client = new FidesmoApiClient(server.getURL(), null, null)) {
+            server.setDelay(500);
+            URI uri = client.getURI(FidesmoApiClient.APP_INFO_URL, "shared");
+            ExecutorService executor = Executors.newFixedThreadPool(32);
+            try {
+                CountDownLatch start = new CountDownLatch(1);
+                List<Future<JsonNode>> results = new ArrayList<>();
+                for (int i = 0; i < 32; i++) {
+                    results.add(executor.submit(() -> {
+                        start.await();
+                        return client.rpc(uri);
+                    }));
+                }
+                CompletableFuture<JsonNode> async = client.rpcAsync(uri);
+                start.countDown();
+                Set<JsonNode> trees = Collections.newSetFromMap(new IdentityHashMap<>());
+                for (Future<JsonNode> result : results) {
+                    trees.add(result.get());
+                }
+                trees.add(FidesmoApiClient.await(async));
+                // One network call, but every caller got its own tree
+                assertEquals(server.getRequestCount("apps/shared"), 1);
+                assertEquals(client.getCoalescedRequests(), 32);
+                assertEquals(trees.size(), 33);
+            } finally {
+                executor.shutdownNow();
+            }
+        }
+    }
+}
@@ -0,0 +1,59 @@
+package com.fidesmo.fdsm;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+// Tree model vs typed decoding of the responses in the delivery loop
+@State(Scope.Benchmark)
+public class DecodingBenchmark {
+    private final ObjectMapper mapper = new ObjectMapper();
+    private byte[] fetch;
+    private byte[] commands;
+
+    @Setup
+    public void setup() {
+        fetch = ("{\"completed\":false,\"operationType\":\"transceive\",\"operationId\":\"0b0ef1a4-2f4b-4c5e-9c1d-7e8b0d7f6a11\","
+                + "\"sessionId\":\"d2f1f2f0-4f0a-4f9b-8d4e-9f7d4c3b2a10\"}").getBytes(StandardCharsets.UTF_8);
+        StringBuilder apdus = new StringBuilder("{\"commands\":[");
+        for (int i = 0; i < 20; i++) {
+            apdus.append(i == 0 ? "" : ",").append("\"80E80000F0").append("00".repeat(240)).append('"');
+        }
+        commands = apdus.append("]}").toString().getBytes(StandardCharsets.UTF_8);
+    }
+
+    @Benchmark
+    public String fetchTree() throws IOException {
+        JsonNode node = mapper.readTree(fetch);
+        return node.get("completed").asBoolean() ? null : node.get("operationType").asText() + node.get("operationId").asText();
+    }
+
+    @Benchmark
+    public String fetchTyped() throws IOException {
+        FetchResult result = FetchResult.READER.readValue(fetch);
+        return result.completed() ? null : result.operationType() + result.operationId();
+    }
+
+    @Benchmark
+    public List<String> commandsTree() throws IOException {
+        List<String> result = new ArrayList<>();
+        for (JsonNode cmd : mapper.readTree(commands).get("commands")) {
+            result.add(cmd.asText());
+        }
+        return result;
+    }
+
+    @Benchmark
+    public List<byte[]> commandsTyped() throws IOException {
+        ConnectorCommands result = ConnectorCommands.READER.readValue(commands);
+        return result.apdus();
+    }
+}
@@ -0,0 +1,92 @@
+package com.fidesmo.fdsm;
+
+import apdu4j.core.HexUtils;
+import com.fasterxml.jackson.databind.JsonMappingException;
+import com.fasterxml.jackson.databind.node.JsonNodeFactory;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import org.testng.annotations.Test;
+
+import java.util.List;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertNull;
+import static org.testng.Assert.assertThrows;
+import static org.testng.Assert.assertTrue;
+
+public class DecodingTest {
+    @Test
+    public void testFetchOperation() throws Exception {
+        ObjectNode fields = JsonNodeFactory.instance.objectNode();
+        fields.putArray("fields").addObject().put("id", "name").put("type", "text");
+        String json = "{\"completed\":false,\"operationType\":\"user-interaction\",\"operationId\":\"op\",\"encrypted\":true,"
+                + "\"fields\":" + fields.get("fields") + ",\"sessionId\":\"ignored\",\"extra\":{\"nested\":[1,2]}}";
+        FetchResult result = FetchResult.READER.readValue(json);
+        assertFalse(result.completed());
+        assertEquals(result.operationType(), "user-interaction");
+        assertEquals(result.operationId(), "op");
+        assertTrue(result.encrypted());
+        assertEquals(result.fields(), fields.get("fields"));
+        assertNull(result.status());
+
+        // What the extension points of ServiceDeliverySession get: the response as received
+        ObjectNode operation = result.operation();
+        assertEquals(operation, FidesmoApiClient.mapper.readTree(json));
+        assertEquals(operation.get("sessionId").asText(), "ignored");
+        assertEquals(operation.get("extra").get("nested").size(), 2);
+        assertEquals(FetchResult.READER.readValue(operation.toString()), result);
+    }
+
+    @Test
+    public void testFetchStatus() throws Exception {
+        FetchResult result = FetchResult.READER.readValue("{\"completed\":true,\"status\":{\"success\":false,"
+                + "\"message\":{\"en\":\"Failed\"},\"scriptStatus\":\"6A82\"}}");
+        assertTrue(result.completed());
+        assertFalse(result.status().success());
+        assertEquals(FidesmoApiClient.lamei18n(result.status().message()), "Failed");
+        assertEquals(result.status().scriptStatus().asText(), "6A82");
+        assertThrows(JsonMappingException.class, () -> FetchResult.READER.readValue("[]"));
+    }
+
+    @Test
+    public void testConnectorCommands() throws Exception {
+        List<byte[]> apdus = List.of(HexUtils.hex2bin("00A4040000"), HexUtils.hex2bin("80E2800003010203"));
+        ObjectNode json = JsonNodeFactory.instance.objectNode().put("uuid", "ignored");
+        json.putPOJO("commands", new ApduCodec.HexArray(apdus));
+        ConnectorCommands commands = ConnectorCommands.READER.readValue(FidesmoApiClient.mapper.writeValueAsString(json));
+        assertEquals(commands.commands(), List.of("00A4040000", "80E2800003010203"));
+        assertTrue(ConnectorCommands.READER.<ConnectorCommands>readValue("{\"commands\":[]}").apdus().isEmpty());
+    }
+
+    @Test
+    public void testMalformedConnectorCommands() {
+        // None of these may pass for the empty batch that ends the operation
+        for (String json : List.of("{}", "{\"commands\":null}", "{\"commands\":\"00A4040000\"}",
+                "{\"commands\":[\"00A4040000\",null]}", "{\"commands\":[\"00A4040000\",42]}", "{\"commands\":[\"00A40\"]}")) {
+            assertThrows(JsonMappingException.class, () -> ConnectorCommands.READER.readValue(json));
+        }
+    }
+
+    @Test
+    public void testDeviceInfo() throws Exception {
+        DeviceInfo device = DeviceInfo.READER.readValue("{\"iin\":\"0011223344\",\"cin\":\"ignored\","
+                + "\"description\":{\"capabilities\":{\"platformVersion\":3,\"osTypeVersionName\":\"JCOP4\",\"extra\":1}}}");
+        assertEquals(device.iin(), "0011223344");
+        assertEquals(device.platformVersion(), 3);
+        assertEquals(device.osTypeVersionName().orElseThrow(), "JCOP4");
+        device = DeviceInfo.READER.readValue("{\"description\":{\"capabilities\":{\"platformVersion\":2}}}");
+        assertFalse(device.osTypeVersionName().isPresent());
+        assertThrows(JsonMappingException.class, () -> DeviceInfo.READER.readValue("{\"description\":{\"capabilities\":{\"platformVersion\":\"two\"}}}"));
+    }
+
+    @Test
+    public void testServiceDescription() throws Exception {
+        ServiceDescription description = ServiceDescription.READER.readValue("{\"description\":{\"title\":{\"en\":\"Install\"},"
+                + "\"certificate\":\"3082\",\"emailRequired\":{\"en\":\"Email\"},\"price\":\"free\"}}");
+        assertEquals(FidesmoApiClient.lamei18n(description.title()), "Install");
+        assertEquals(description.certificate(), "3082");
+        assertEquals(FidesmoApiClient.lamei18n(description.emailRequired()), "Email");
+        assertNull(description.msisdnRequired());
+        assertThrows(JsonMappingException.class, () -> ServiceDescription.READER.readValue("{\"description\":{\"certificate\":[1]}}"));
+    }
+}
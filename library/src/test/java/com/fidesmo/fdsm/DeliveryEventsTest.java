@@ -0,0 +1,69 @@
+package com.fidesmo.fdsm;
+
+import com.fidesmo.fdsm.exceptions.FDSMException;
+import org.testng.annotations.Test;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.stream.Collectors;
+
+import static com.fidesmo.fdsm.DeliveryEvent.Phase.*;
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertThrows;
+import static org.testng.Assert.assertTrue;
+
+public class DeliveryEventsTest {
+    private static ServiceDeliverySession session(FidesmoApiClient client, DeliveryListener listener) {
+        ServiceDeliverySession session = StubDeliveries.session(client, new StubDeliveries.SlowCard(1));
+        session.setListener(listener);
+        return session;
+    }
+
+    @Test
+    public void testPhasesAndTotals() throws Exception {
+        try (StubApiServer server = new StubApiServer();
+             FidesmoApiClient client = new FidesmoApiClient(server.getURL(), null, null)) {
+            server.setBatches(2, 3);
+            List<DeliveryEvent> events = new CopyOnWriteArrayList<>();
+            assertTrue(session(client, events::add).call().isSuccess());
+
+            assertEquals(events.stream().map(DeliveryEvent::phase).collect(Collectors.toList()),
+                    List.of(IDENTIFY, SERVICE_LOOKUP, DELIVER, FETCH, CONNECTOR, TRANSCEIVE, CONNECTOR, TRANSCEIVE, CONNECTOR, FETCH, COMPLETED));
+            assertFalse(events.get(0).getSessionId().isPresent());
+            DeliveryEvent batch = events.get(5);
+            assertEquals(batch.apdus(), 3);
+            assertEquals(batch.bytesSent(), 15);
+            assertEquals(batch.bytesReceived(), 6);
+            DeliveryEvent completed = events.get(events.size() - 1);
+            assertTrue(completed.getSessionId().isPresent());
+            assertEquals(completed.apdus(), 6);
+            assertEquals(completed.bytesSent(), 30);
+            assertEquals(completed.bytesReceived(), 12);
+            assertTrue(completed.duration().compareTo(batch.duration()) > 0);
+        }
+    }
+
+    @Test
+    public void testFailed() throws Exception {
+        try (StubApiServer server = new StubApiServer();
+             FidesmoApiClient client = new FidesmoApiClient(server.getURL(), null, null)) {
+            server.failNext("service/deliver", 1, 403, null);
+            List<DeliveryEvent> events = new CopyOnWriteArrayList<>();
+            assertThrows(FDSMException.class, () -> session(client, events::add).call());
+            DeliveryEvent last = events.get(events.size() - 1);
+            assertEquals(last.phase(), FAILED);
+            assertFalse(last.getSessionId().isPresent());
+        }
+    }
+
+    @Test
+    public void testFailingListener() throws Exception {
+        try (StubApiServer server = new StubApiServer();
+             FidesmoApiClient client = new FidesmoApiClient(server.getURL(), null, null)) {
+            assertTrue(session(client, event -> {
+                throw new IllegalStateException("listener");
+            }).call().isSuccess());
+        }
+    }
+}
@@ -0,0 +1,61 @@
+package com.fidesmo.fdsm;
+
+import org.testng.annotations.Test;
+
+import java.time.Duration;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertTrue;
+
+public class DeviceCacheTest {
+    private static final String DEVICE = "devices/" + "00".repeat(7); // CIN of the dummy card
+
+    private static void deliver(FidesmoApiClient client) {
+        assertTrue(StubDeliveries.deliver(client, TestChannel.fromStrings("9000", "9000")).isSuccess());
+    }
+
+    @Test
+    public void testRepeatDeliveriesLookUpOnce() throws Exception {
+        try (StubApiServer server = new StubApiServer();
+             FidesmoApiClient client = new FidesmoApiClient(server.getURL(), null, null)) {
+            deliver(client);
+            deliver(client);
+            assertEquals(FidesmoCard.dummy().getDeviceInfo(client).iin(), "0011223344");
+            assertEquals(server.getRequestCount(DEVICE), 1);
+        }
+    }
+
+    @Test
+    public void testExpiredAndDisabled() throws Exception {
+        try (StubApiServer server = new StubApiServer();
+             FidesmoApiClient client = new FidesmoApiClient(server.getURL(), null, null)) {
+            client.setDeviceCache(new DeviceCache(16, Duration.ZERO));
+            deliver(client);
+            deliver(client);
+            assertEquals(server.getRequestCount(DEVICE), 2);
+            client.setDeviceCache(null);
+            deliver(client);
+            assertEquals(server.getRequestCount(DEVICE), 3);
+        }
+    }
+
+    @Test
+    public void testInvalidateAllBatches() {
+        DeviceCache cache = new DeviceCache(16, Duration.ofMinutes(1));
+        byte[] cin = new byte[]{1, 2, 3, 4, 5, 6, 7};
+        byte[] other = new byte[]{7, 6, 5, 4, 3, 2, 1};
+        cache.putBatching(cin, 1, DeliveryUrl.parse("c0ffee00/batch"));
+        cache.putBatching(cin, 2, null);
+        cache.putBatching(other, 1, null);
+        assertEquals(cache.getBatching(cin, 1).get().getUrl().get().getService(), "batch");
+        assertFalse(cache.getBatching(cin, 2).get().getUrl().isPresent());
+        // Batching part only
+        assertFalse(cache.getDeviceInfo(cin, 1).isPresent());
+
+        cache.invalidate(cin);
+        assertFalse(cache.getBatching(cin, 1).isPresent());
+        assertFalse(cache.getBatching(cin, 2).isPresent());
+        assertTrue(cache.getBatching(other, 1).isPresent());
+    }
+}
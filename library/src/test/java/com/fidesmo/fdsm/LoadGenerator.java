@@ -0,0 +1,219 @@
+package com.fidesmo.fdsm;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryMXBean;
+import java.lang.management.ThreadMXBean;
+import java.net.URI;
+import java.time.Duration;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+// Runs deliveries to a fleet of simulated cards at once, each card on a virtual thread of its own,
+// and reports every second how the JVM copes: throughput, p50/p99 session latency, errors, heap
+// and threads. Without --url an in-process stub API serves the deliveries. From the test classpath:
+// mvn -pl library test-compile exec:java -Dexec.classpathScope=test -Dexec.mainClass=com.fidesmo.fdsm.LoadGenerator -Dexec.args="--cards 5000 --ramp-up 30"
+//
+// --cards N            simulated cards (100)
+// --ramp-up SECONDS    cards start evenly over this time (10)
+// --duration SECONDS   cards deliver again until this time after the ramp-up; 0 for one delivery each (0)
+// --url URL            API to deliver from; random CIN-s must be known to it
+// --auth USER:PASS     or a token, for --url
+// --app ID --service ID  service to deliver (c0ffee00 stub)
+// --websocket [URI]    deliver over WebSocket instead, from the stub or this URI
+// --reader PROFILE     reader latency of the cards: NONE, CONTACT, NFC, SLOW_USB (NFC)
+// --pipelined          pipeline batches over HTTP
+// --batches N --batch-size N --latency MS  of the stub API (4, 10, 20)
+public class LoadGenerator {
+    private final Map<String, String> options;
+    private final AtomicInteger active = new AtomicInteger();
+    private final AtomicLong delivered = new AtomicLong();
+    private final Map<String, AtomicInteger> errors = new ConcurrentHashMap<>(); // By cause
+    private final AtomicReference<Window> window = new AtomicReference<>(new Window());
+    private final Window total = new Window();
+
+    // Session latencies of a reporting interval
+    private static final class Window {
+        private long[] nanos = new long[1024];
+        private int count;
+        private int failed;
+
+        synchronized void add(long elapsed, boolean success) {
+            if (count == nanos.length) {
+                nanos = Arrays.copyOf(nanos, count * 2);
+            }
+            nanos[count++] = elapsed;
+            if (!success) {
+                failed++;
+            }
+        }
+
+        synchronized String summary(Duration interval) {
+            if (count == 0) {
+                return "0/s";
+            }
+            long[] sorted = Arrays.copyOf(nanos, count);
+            Arrays.sort(sorted);
+            return String.format("%.1f/s p50 %d ms p99 %d ms failed %d", count * 1000.0 / Math.max(1, interval.toMillis()),
+                    TimeUnit.NANOSECONDS.toMillis(percentile(sorted, 50)), TimeUnit.NANOSECONDS.toMillis(percentile(sorted, 99)), failed);
+        }
+
+        private static long percentile(long[] sorted, int p) {
+            return sorted[Math.min(sorted.length - 1, (int) Math.ceil(sorted.length * p / 100.0) - 1)];
+        }
+    }
+
+    private LoadGenerator(Map<String, String> options) {
+        this.options = options;
+    }
+
+    public static void main(String[] args) throws Exception {
+        run(args);
+    }
+
+    static LoadGenerator run(String... args) throws Exception {
+        Map<String, String> options = new ConcurrentHashMap<>();
+        for (int i = 0; i < args.length; i++) {
+            if (!args[i].startsWith("--")) {
+                throw new IllegalArgumentException("Not an option: " + args[i]);
+            }
+            String name = args[i].substring(2);
+            boolean flag = i + 1 == args.length || args[i + 1].startsWith("--");
+            options.put(name, flag ? "true" : args[++i]);
+        }
+        LoadGenerator generator = new LoadGenerator(options);
+        generator.run();
+        return generator;
+    }
+
+    long getDelivered() {
+        return delivered.get();
+    }
+
+    // Failed deliveries by cause
+    Map<String, AtomicInteger> getErrors() {
+        return errors;
+    }
+
+    private String option(String name, String fallback) {
+        return options.getOrDefault(name, fallback);
+    }
+
+    private int option(String name, int fallback) {
+        return Integer.parseInt(option(name, String.valueOf(fallback)));
+    }
+
+    private void run() throws Exception {
+        int cards = option("cards", 100);
+        Duration rampUp = Duration.ofSeconds(option("ramp-up", 10));
+        Duration duration = Duration.ofSeconds(option("duration", 0));
+        String appId = option("app", "c0ffee00");
+        String serviceId = option("service", "stub");
+        SimulatedCard.Reader reader = SimulatedCard.Reader.valueOf(option("reader", "NFC"));
+
+        StubApiServer server = null;
+        String url = options.get("url");
+        String webSocket = options.get("websocket");
+        if (url == null) {
+            server = new StubApiServer();
+            server.setBatches(option("batches", 4), option("batch-size", 10));
+            server.setDelay(option("latency", 20));
+            url = server.getURL();
+            if (webSocket != null) {
+                webSocket = server.getWebSocketURL(serviceId);
+            }
+        }
+        ClientAuthentication auth = options.containsKey("auth") ? ClientAuthentication.forUserPasswordOrToken(options.get("auth")) : null;
+        ConnectionSettings settings = ConnectionSettings.defaults().withMaxConnections(cards).withMaxConnectionsPerRoute(cards);
+        System.out.printf("%d cards (%s) over %d s, deliveries for %d s, from %s%n", cards, reader, rampUp.toSeconds(), duration.toSeconds(),
+                webSocket != null ? webSocket : url);
+
+        long start = System.nanoTime();
+        long end = start + rampUp.plus(duration).toNanos();
+        try (FidesmoApiClient client = new FidesmoApiClient(url, auth, null, ClientInfo.fdsm(), settings);
+             ExecutorService fleet = Executors.newVirtualThreadPerTaskExecutor()) {
+            URI ws = webSocket == null ? null : URI.create(webSocket);
+            for (int i = 0; i < cards; i++) {
+                long at = start + rampUp.toNanos() * i / cards;
+                fleet.execute(() -> {
+                    sleepUntil(at);
+                    SimulatedCard card = SimulatedCard.random(1);
+                    card.setReader(reader);
+                    do {
+                        deliver(client, ws, card, appId, serviceId);
+                    } while (!duration.isZero() && System.nanoTime() < end);
+                });
+            }
+            fleet.shutdown();
+            long previous = start;
+            while (!fleet.awaitTermination(1, TimeUnit.SECONDS)) {
+                long now = System.nanoTime();
+                report(now - start, window.getAndSet(new Window()).summary(Duration.ofNanos(now - previous)));
+                previous = now;
+            }
+        } finally {
+            if (server != null) {
+                server.close();
+            }
+        }
+        Duration elapsed = Duration.ofNanos(System.nanoTime() - start);
+        System.out.printf("Total: %d deliveries in %d s, %s%n", delivered.get(), elapsed.toSeconds(), total.summary(elapsed));
+        errors.forEach((cause, count) -> System.out.printf("  %s: %d%n", cause, count.get()));
+    }
+
+    private void deliver(FidesmoApiClient client, URI ws, SimulatedCard card, String appId, String serviceId) {
+        active.incrementAndGet();
+        long started = System.nanoTime();
+        boolean success = false;
+        try {
+            ServiceDeliverySession.DeliveryResult result;
+            if (ws != null) {
+                result = new WsClient(ws, card, client.authentication, ClientInfo.fdsm()).run().join();
+            } else {
+                FidesmoCard fidesmoCard = FidesmoCard.detectOffline(card).orElseThrow();
+                ServiceDeliverySession session = ServiceDeliverySession.getInstance(() -> card, fidesmoCard, client, appId, serviceId,
+                        new StubDeliveries.NoInputFormHandler());
+                session.setPipelined(options.containsKey("pipelined"));
+                result = session.call();
+            }
+            success = result.isSuccess();
+            if (!success) {
+                errors.computeIfAbsent("Failed: " + result.getMessage(), k -> new AtomicInteger()).incrementAndGet();
+            }
+        } catch (RuntimeException e) {
+            Throwable cause = e.getCause() != null ? e.getCause() : e;
+            errors.computeIfAbsent(cause.getClass().getSimpleName(), k -> new AtomicInteger()).incrementAndGet();
+        } finally {
+            long elapsed = System.nanoTime() - started;
+            window.get().add(elapsed, success);
+            total.add(elapsed, success);
+            delivered.incrementAndGet();
+            active.decrementAndGet();
+        }
+    }
+
+    private void report(long elapsed, String interval) {
+        MemoryMXBean memory = ManagementFactory.getMemoryMXBean();
+        ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        // Virtual threads are not counted by the thread bean, so active sessions are shown separately
+        System.out.printf("%4d s: %d active, %s, heap %d MB, %d platform threads%n", TimeUnit.NANOSECONDS.toSeconds(elapsed),
+                active.get(), interval, memory.getHeapMemoryUsage().getUsed() >> 20, threads.getThreadCount());
+    }
+
+    private static void sleepUntil(long nanoTime) {
+        long wait = nanoTime - System.nanoTime();
+        if (wait > 0) {
+            try {
+                TimeUnit.NANOSECONDS.sleep(wait);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+}
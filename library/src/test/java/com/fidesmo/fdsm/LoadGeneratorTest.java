@@ -0,0 +1,22 @@
+package com.fidesmo.fdsm;
+
+import org.testng.annotations.Test;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertTrue;
+
+public class LoadGeneratorTest {
+    @Test
+    public void testFleetOverHttp() throws Exception {
+        LoadGenerator load = LoadGenerator.run("--cards", "50", "--ramp-up", "1", "--reader", "NONE", "--latency", "5", "--pipelined");
+        assertEquals(load.getDelivered(), 50);
+        assertTrue(load.getErrors().isEmpty(), load.getErrors().toString());
+    }
+
+    @Test
+    public void testFleetOverWebSocket() throws Exception {
+        LoadGenerator load = LoadGenerator.run("--cards", "20", "--ramp-up", "0", "--reader", "NONE", "--websocket");
+        assertEquals(load.getDelivered(), 20);
+        assertTrue(load.getErrors().isEmpty(), load.getErrors().toString());
+    }
+}
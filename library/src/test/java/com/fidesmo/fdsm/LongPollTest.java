@@ -0,0 +1,54 @@
+package com.fidesmo.fdsm;
+
+import org.testng.annotations.Test;
+
+import java.time.Duration;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertTrue;
+
+public class LongPollTest {
+
+    private static ServiceDeliverySession.DeliveryResult deliver(FidesmoApiClient client, Duration longPoll) throws Exception {
+        ServiceDeliverySession session = StubDeliveries.session(client, TestChannel.fromStrings("9000", "9000"));
+        session.setLongPoll(longPoll);
+        return session.call();
+    }
+
+    @Test
+    public void testFetchHeldUntilReady() throws Exception {
+        try (StubApiServer server = new StubApiServer();
+             FidesmoApiClient client = new FidesmoApiClient(server.getURL(), null, null)) {
+            server.setFetchDelay(300);
+            assertTrue(deliver(client, Duration.ofSeconds(10)).isSuccess());
+            // One fetch per step, the operation and then the result, each held until ready
+            assertEquals(server.getRequestCount("service/fetch"), 2);
+            assertEquals(server.getHeldCount(), 2);
+        }
+    }
+
+    @Test
+    public void testShortWaitPollsAgain() throws Exception {
+        try (StubApiServer server = new StubApiServer();
+             FidesmoApiClient client = new FidesmoApiClient(server.getURL(), null, null)) {
+            server.setFetchDelay(2500);
+            assertTrue(deliver(client, Duration.ofSeconds(1)).isSuccess());
+            // Held for a second twice, then ready during the third request, for both steps
+            assertEquals(server.getRequestCount("service/fetch"), 6);
+            assertEquals(server.getHeldCount(), 2);
+        }
+    }
+
+    @Test
+    public void testFallbackToPolling() throws Exception {
+        try (StubApiServer server = new StubApiServer();
+             FidesmoApiClient client = new FidesmoApiClient(server.getURL(), null, null)) {
+            client.setRetryPolicy(ExponentialBackoff.defaults().withJitter(0).withDelays(Duration.ofMillis(100), Duration.ofMillis(100)));
+            server.setFetchDelay(300);
+            server.setLongPoll(false);
+            assertTrue(deliver(client, Duration.ofSeconds(10)).isSuccess());
+            assertTrue(server.getRequestCount("service/fetch") > 2);
+            assertEquals(server.getHeldCount(), 0);
+        }
+    }
+}
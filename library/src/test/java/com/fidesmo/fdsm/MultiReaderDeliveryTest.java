@@ -0,0 +1,143 @@
+package com.fidesmo.fdsm;
+
+import apdu4j.core.BIBO;
+import org.testng.annotations.Test;
+
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertTrue;
+
+public class MultiReaderDeliveryTest {
+
+    private static MultiReaderDelivery engine(FidesmoApiClient client, int maxConcurrent) {
+        MultiReaderDelivery delivery = new MultiReaderDelivery(client, DeliveryUrl.parse("c0ffee00/stub"),
+                new StubDeliveries.NoInputFormHandler(), maxConcurrent);
+        delivery.setDetector(bibo -> Optional.of(FidesmoCard.dummy()));
+        return delivery;
+    }
+
+    @Test
+    public void testReadersRunConcurrently() throws Exception {
+        try (StubApiServer server = new StubApiServer();
+             FidesmoApiClient client = new FidesmoApiClient(server.getURL(), null, null)) {
+            // Every card waits in its first command until all cards have got theirs, which
+            // only happens if the deliveries overlap
+            CountDownLatch started = new CountDownLatch(16);
+            AtomicInteger met = new AtomicInteger();
+            Map<String, Supplier<BIBO>> readers = new LinkedHashMap<>();
+            for (int i = 0; i < 16; i++) {
+                readers.put("Reader " + i, () -> new StubDeliveries.SlowCard(0) {
+                    private boolean first = true;
+
+                    @Override
+                    public byte[] transceive(byte[] command) {
+                        if (first) {
+                            first = false;
+                            started.countDown();
+                            try {
+                                if (started.await(10, TimeUnit.SECONDS)) {
+                                    met.incrementAndGet();
+                                }
+                            } catch (InterruptedException e) {
+                                Thread.currentThread().interrupt();
+                            }
+                        }
+                        return super.transceive(command);
+                    }
+                });
+            }
+            MultiReaderDelivery.Results results = engine(client, 16).deliver(readers);
+            assertTrue(results.isSuccess());
+            assertEquals(results.getSuccessCount(), 16);
+            assertEquals(met.get(), 16);
+        }
+    }
+
+    @Test
+    public void testConcurrencyBounded() throws Exception {
+        try (StubApiServer server = new StubApiServer();
+             FidesmoApiClient client = new FidesmoApiClient(server.getURL(), null, null)) {
+            AtomicInteger active = new AtomicInteger();
+            AtomicInteger peak = new AtomicInteger();
+            Map<String, Supplier<BIBO>> readers = new LinkedHashMap<>();
+            for (int i = 0; i < 8; i++) {
+                readers.put("Reader " + i, () -> {
+                    peak.accumulateAndGet(active.incrementAndGet(), Math::max);
+                    return new StubDeliveries.SlowCard(50) {
+                        @Override
+                        public void close() {
+                            active.decrementAndGet();
+                        }
+                    };
+                });
+            }
+            assertTrue(engine(client, 3).deliver(readers).isSuccess());
+            assertTrue(peak.get() <= 3, "Peak " + peak.get());
+        }
+    }
+
+    @Test
+    public void testFailuresReportedPerReader() throws Exception {
+        try (StubApiServer server = new StubApiServer();
+             FidesmoApiClient client = new FidesmoApiClient(server.getURL(), null, null)) {
+            BIBO notFidesmo = new StubDeliveries.SlowCard(1);
+            Map<String, Supplier<BIBO>> readers = new LinkedHashMap<>();
+            readers.put("Good", () -> new StubDeliveries.SlowCard(1));
+            readers.put("Bad", () -> notFidesmo);
+            MultiReaderDelivery delivery = engine(client, 2);
+            delivery.setDetector(bibo -> bibo == notFidesmo ? Optional.empty() : Optional.of(FidesmoCard.dummy()));
+            MultiReaderDelivery.Results results = delivery.deliver(readers);
+            assertFalse(results.isSuccess());
+            assertEquals(results.getSuccessCount(), 1);
+            assertTrue(results.getResults().get(0).isSuccess());
+            assertEquals(results.getResults().get(1).getReader(), "Bad");
+            assertTrue(results.getResults().get(1).getError().isPresent());
+        }
+    }
+
+    @Test
+    public void testUserInteractionSerialized() throws Exception {
+        try (StubApiServer server = new StubApiServer();
+             FidesmoApiClient client = new FidesmoApiClient(server.getURL(), null, null)) {
+            server.setScript("form", true, new StubApiServer.Form(List.of("name")), new StubApiServer.Transceive(1, 1));
+            AtomicInteger active = new AtomicInteger();
+            AtomicInteger peak = new AtomicInteger();
+            AtomicInteger forms = new AtomicInteger();
+            FormHandler user = new StubDeliveries.NoInputFormHandler() {
+                @Override
+                public Map<String, Field> processForm(List<Field> form) {
+                    if (form.isEmpty()) {
+                        return super.processForm(form);
+                    }
+                    peak.accumulateAndGet(active.incrementAndGet(), Math::max);
+                    try {
+                        Thread.sleep(50);
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                    forms.incrementAndGet();
+                    active.decrementAndGet();
+                    return super.processForm(form);
+                }
+            };
+            Map<String, Supplier<BIBO>> readers = new LinkedHashMap<>();
+            for (int i = 0; i < 4; i++) {
+                readers.put("Reader " + i, () -> new StubDeliveries.SlowCard(1));
+            }
+            MultiReaderDelivery delivery = new MultiReaderDelivery(client, DeliveryUrl.parse("c0ffee00/form"), user, 4);
+            delivery.setDetector(bibo -> Optional.of(FidesmoCard.dummy()));
+            assertTrue(delivery.deliver(readers).isSuccess());
+            assertEquals(forms.get(), 4);
+            assertEquals(peak.get(), 1);
+        }
+    }
+}
@@ -0,0 +1,53 @@
+package com.fidesmo.fdsm;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+// Sequential vs pipelined delivery of a multi-batch service with simulated reader and network latency
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class PipelinedDeliveryBenchmark {
+    @Param({"20", "100"})
+    public long roundTrip;
+
+    @Param({"5"})
+    public long apduMillis;
+
+    private StubApiServer server;
+    private FidesmoApiClient client;
+
+    @Setup
+    public void setup() throws IOException {
+        server = new StubApiServer();
+        server.setBatches(4, 10);
+        server.setRoundTrip(roundTrip);
+        client = new FidesmoApiClient(server.getURL(), null, null);
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        client.close();
+        server.close();
+    }
+
+    @Benchmark
+    public boolean sequential() throws Exception {
+        return PipelinedDeliveryTest.deliver(client, new StubDeliveries.SlowCard(apduMillis), false).isSuccess();
+    }
+
+    @Benchmark
+    public boolean pipelined() throws Exception {
+        return PipelinedDeliveryTest.deliver(client, new StubDeliveries.SlowCard(apduMillis), true).isSuccess();
+    }
+}
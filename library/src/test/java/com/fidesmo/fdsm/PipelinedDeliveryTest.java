@@ -0,0 +1,74 @@
+package com.fidesmo.fdsm;
+
+import apdu4j.core.BIBO;
+import com.fidesmo.fdsm.exceptions.FDSMException;
+import org.testng.annotations.Test;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertTrue;
+import static org.testng.Assert.expectThrows;
+
+public class PipelinedDeliveryTest {
+
+    static ServiceDeliverySession.DeliveryResult deliver(FidesmoApiClient client, BIBO card, boolean pipelined) throws Exception {
+        ServiceDeliverySession session = StubDeliveries.session(client, card);
+        session.setPipelined(pipelined);
+        return session.call();
+    }
+
+    @Test
+    public void testAllBatchesDelivered() throws Exception {
+        try (StubApiServer server = new StubApiServer();
+             FidesmoApiClient client = new FidesmoApiClient(server.getURL(), null, null)) {
+            server.setBatches(5, 8);
+            StubDeliveries.SlowCard card = new StubDeliveries.SlowCard(1);
+            assertTrue(deliver(client, card, true).isSuccess());
+            // The reset at the start of the session, then every command of the batches
+            assertEquals(card.count.get(), 1 + 40);
+            assertEquals(server.getRequestCount("connector/json"), 6);
+        }
+    }
+
+    @Test
+    public void testCardAndNetworkOverlap() throws Exception {
+        try (StubApiServer server = new StubApiServer();
+             FidesmoApiClient client = new FidesmoApiClient(server.getURL(), null, null)) {
+            server.setBatches(4, 10);
+            server.setRoundTrip(200);
+            long start = System.nanoTime();
+            assertTrue(deliver(client, new StubDeliveries.SlowCard(10), false).isSuccess());
+            long sequential = System.nanoTime() - start;
+            start = System.nanoTime();
+            assertTrue(deliver(client, new StubDeliveries.SlowCard(10), true).isSuccess());
+            long pipelined = System.nanoTime() - start;
+            // 100ms of each of the four batches is spent while the request is already in flight
+            assertTrue(sequential - pipelined > 200_000_000L, "sequential " + sequential + " pipelined " + pipelined);
+        }
+    }
+
+    @Test
+    public void testRetriedWithCompleteRequest() throws Exception {
+        try (StubApiServer server = new StubApiServer();
+             FidesmoApiClient client = new FidesmoApiClient(server.getURL(), null, null)) {
+            client.setRetryPolicy(RetryPolicyTest.FAST);
+            server.setBatches(2, 4);
+            server.failNext("connector/json", 1, 503, null);
+            assertTrue(deliver(client, new StubDeliveries.SlowCard(1), true).isSuccess());
+        }
+    }
+
+    @Test
+    public void testEmptyConnectorResponseNotRetried() throws Exception {
+        for (boolean pipelined : new boolean[]{false, true}) {
+            try (StubApiServer server = new StubApiServer();
+                 FidesmoApiClient client = new FidesmoApiClient(server.getURL(), null, null)) {
+                client.setRetryPolicy(RetryPolicyTest.FAST);
+                server.setBatches(2, 4);
+                server.failNext("connector/json", 1, 204, null);
+                FDSMException e = expectThrows(FDSMException.class, () -> deliver(client, new StubDeliveries.SlowCard(1), pipelined));
+                assertTrue(e.getMessage().startsWith("Protocol error"), e.getMessage());
+                assertEquals(server.getRequestCount("connector/json"), 1);
+            }
+        }
+    }
+}
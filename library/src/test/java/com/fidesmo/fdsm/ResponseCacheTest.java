@@ -0,0 +1,139 @@
+package com.fidesmo.fdsm;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import org.testng.annotations.Test;
+
+import java.net.URI;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.time.Instant;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertTrue;
+
+public class ResponseCacheTest {
+
+    @Test
+    public void testFreshResponseServedFromCache() throws Exception {
+        try (StubApiServer server = new StubApiServer();
+             FidesmoApiClient client = new FidesmoApiClient(server.getURL(), null, null)) {
+            client.setResponseCache(new LruResponseCache(16, Duration.ZERO));
+            URI uri = client.getURI(FidesmoApiClient.APP_INFO_URL, "fresh");
+            for (int i = 0; i < 3; i++) {
+                assertEquals(client.rpc(uri).get("appId").asText(), "fresh");
+            }
+            assertEquals(FidesmoApiClient.await(client.rpcAsync(uri)).get("appId").asText(), "fresh");
+            assertEquals(server.getRequestCount("apps/fresh"), 1);
+            assertEquals(client.getCacheStatistics().getMisses(), 1);
+            assertEquals(client.getCacheStatistics().getHits(), 3);
+        }
+    }
+
+    @Test
+    public void testStaleResponseRevalidated() throws Exception {
+        try (StubApiServer server = new StubApiServer();
+             FidesmoApiClient client = new FidesmoApiClient(server.getURL(), null, null)) {
+            client.setResponseCache(new LruResponseCache(16, Duration.ofMinutes(1)));
+            URI uri = client.getURI(FidesmoApiClient.APP_INFO_URL, "stale");
+            client.rpc(uri);
+            JsonNode again = client.rpc(uri);
+            JsonNode async = FidesmoApiClient.await(client.rpcAsync(uri));
+            assertEquals(again.get("appId").asText(), "stale");
+            assertEquals(async.get("appId").asText(), "stale");
+            // Every request reached the server, but only the first one got a body
+            assertEquals(server.getRequestCount("apps/stale"), 3);
+            assertEquals(client.getCacheStatistics().getMisses(), 1);
+            assertEquals(client.getCacheStatistics().getRevalidations(), 2);
+        }
+    }
+
+    @Test
+    public void testPrivateResponseNotStored() throws Exception {
+        try (StubApiServer server = new StubApiServer();
+             FidesmoApiClient client = new FidesmoApiClient(server.getURL(), null, null)) {
+            LruResponseCache cache = new LruResponseCache(16, Duration.ofMinutes(1));
+            client.setResponseCache(cache);
+            URI uri = client.getURI(FidesmoApiClient.APP_INFO_URL, "private");
+            client.rpc(uri);
+            FidesmoApiClient.await(client.rpcAsync(uri));
+            assertEquals(server.getRequestCount("apps/private"), 2);
+            assertEquals(cache.size(), 0);
+        }
+    }
+
+    @Test
+    public void testAuthenticatedRequestsBypassCache() throws Exception {
+        LruResponseCache cache = new LruResponseCache(16, Duration.ofMinutes(1));
+        try (StubApiServer server = new StubApiServer();
+             FidesmoApiClient anonymous = new FidesmoApiClient(server.getURL(), null, null);
+             FidesmoApiClient authenticated = new FidesmoApiClient(server.getURL(), ClientAuthentication.forToken("secret"), null)) {
+            anonymous.setResponseCache(cache);
+            authenticated.setResponseCache(cache);
+            URI uri = anonymous.getURI(FidesmoApiClient.APP_INFO_URL, "fresh");
+            // Neither served what others got, nor stored for them
+            anonymous.rpc(uri);
+            authenticated.rpc(uri);
+            FidesmoApiClient.await(authenticated.rpcAsync(uri));
+            assertEquals(server.getRequestCount("apps/fresh"), 3);
+            assertEquals(cache.size(), 1);
+
+            cache.clear();
+            authenticated.rpc(uri);
+            assertEquals(cache.size(), 0);
+            assertEquals(authenticated.getCacheStatistics().getHits(), 0);
+        }
+    }
+
+    @Test
+    public void testLeastRecentlyUsedEvicted() {
+        LruResponseCache cache = new LruResponseCache(2, Duration.ZERO);
+        ResponseCache.Entry entry = new ResponseCache.Entry("{}", "\"1\"", Instant.now());
+        URI a = URI.create("http://localhost/a");
+        URI b = URI.create("http://localhost/b");
+        URI c = URI.create("http://localhost/c");
+        cache.put(a, entry);
+        cache.put(b, entry);
+        cache.get(a);
+        cache.put(c, entry);
+        assertEquals(cache.size(), 2);
+        assertTrue(cache.get(a).isPresent());
+        assertFalse(cache.get(b).isPresent());
+    }
+
+    @Test
+    public void testExpiredWithoutETagDropped() {
+        LruResponseCache cache = new LruResponseCache(2, Duration.ZERO);
+        URI a = URI.create("http://localhost/a");
+        cache.put(a, new ResponseCache.Entry("{}", null, Instant.now().minusSeconds(1)));
+        assertFalse(cache.get(a).isPresent());
+        assertEquals(cache.size(), 0);
+    }
+
+    @Test
+    public void testCatalogPersistedBetweenRuns() throws Exception {
+        Path file = Files.createTempDirectory("fdsm").resolve("catalog.json");
+        try (StubApiServer server = new StubApiServer()) {
+            for (int run = 0; run < 2; run++) {
+                try (FileResponseCache catalog = FileResponseCache.open(file, 16, Duration.ofHours(1));
+                     FidesmoApiClient client = new FidesmoApiClient(server.getURL(), null, null)) {
+                    client.setResponseCache(catalog);
+                    assertEquals(client.rpc(client.getURI(FidesmoApiClient.APP_INFO_URL, "fresh")).get("appId").asText(), "fresh");
+                    assertEquals(client.rpc(client.getURI(FidesmoApiClient.APP_INFO_URL, "stale")).get("appId").asText(), "stale");
+                }
+            }
+            // Second run answers the fresh entry locally and only revalidates the stale one
+            assertEquals(server.getRequestCount("apps/fresh"), 1);
+            assertEquals(server.getRequestCount("apps/stale"), 2);
+        }
+        assertEquals(FileResponseCache.open(file, 16, Duration.ZERO).size(), 2);
+    }
+
+    @Test
+    public void testCorruptCatalogIgnored() throws Exception {
+        Path file = Files.createTempFile("fdsm", ".json");
+        Files.writeString(file, "{\"http://localhost/a\": 42");
+        assertEquals(FileResponseCache.open(file, 16, Duration.ZERO).size(), 0);
+    }
+}
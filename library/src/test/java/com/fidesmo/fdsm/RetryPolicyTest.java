@@ -0,0 +1,126 @@
+package com.fidesmo.fdsm;
+
+import org.apache.http.client.HttpResponseException;
+import org.testng.annotations.Test;
+
+import java.net.URI;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.Optional;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertTrue;
+import static org.testng.Assert.fail;
+
+public class RetryPolicyTest {
+    static final ExponentialBackoff FAST = ExponentialBackoff.defaults().withDelays(Duration.ofMillis(1), Duration.ofMillis(1));
+
+    @Test
+    public void testExponentialDelays() {
+        ExponentialBackoff backoff = ExponentialBackoff.defaults().withJitter(0).withMaxRetries(4).withDelays(Duration.ofMillis(100), Duration.ofMillis(500));
+        assertEquals(backoff.nextDelay(1), Optional.of(Duration.ofMillis(100)));
+        assertEquals(backoff.nextDelay(2), Optional.of(Duration.ofMillis(200)));
+        assertEquals(backoff.nextDelay(3), Optional.of(Duration.ofMillis(400)));
+        assertEquals(backoff.nextDelay(4), Optional.of(Duration.ofMillis(500)));
+        assertFalse(backoff.nextDelay(5).isPresent());
+        Duration jittered = ExponentialBackoff.defaults().withJitter(0.5).nextDelay(1).get();
+        assertTrue(jittered.toMillis() >= 125 && jittered.toMillis() <= 250, jittered.toString());
+    }
+
+    @Test
+    public void testRetryAfterHonored() throws Exception {
+        try (StubApiServer server = new StubApiServer();
+             FidesmoApiClient client = new FidesmoApiClient(server.getURL(), null, null)) {
+            client.setRetryPolicy(FAST);
+            server.failNext("apps/busy", 2, 503, "1");
+            URI uri = client.getURI(FidesmoApiClient.APP_INFO_URL, "busy");
+            long start = System.nanoTime();
+            assertEquals(client.retry(FidesmoApiClient.APP_INFO_URL, false, () -> client.rpc(uri)).get("appId").asText(), "busy");
+            assertTrue(Duration.ofNanos(System.nanoTime() - start).toMillis() >= 2000);
+            assertEquals(server.getRequestCount("apps/busy"), 3);
+        }
+    }
+
+    @Test
+    public void testUnsafeFailureNotRetried() throws Exception {
+        try (StubApiServer server = new StubApiServer();
+             FidesmoApiClient client = new FidesmoApiClient(server.getURL(), null, null)) {
+            client.setRetryPolicy(FAST);
+            server.failNext("apps/broken", 1, 502, null);
+            URI uri = client.getURI(FidesmoApiClient.APP_INFO_URL, "broken");
+            try {
+                client.retry(FidesmoApiClient.APP_INFO_URL, false, () -> client.rpc(uri));
+                fail("Expected failure");
+            } catch (HttpResponseException e) {
+                assertEquals(e.getStatusCode(), 502);
+            }
+            assertEquals(server.getRequestCount("apps/broken"), 1);
+        }
+    }
+
+    @Test
+    public void testDeadline() throws Exception {
+        try (StubApiServer server = new StubApiServer();
+             FidesmoApiClient client = new FidesmoApiClient(server.getURL(), null, null)) {
+            client.setRetryPolicy(ExponentialBackoff.defaults().withJitter(0).withDelays(Duration.ofMillis(200), Duration.ofSeconds(1)));
+            server.failNext("apps/down", 100, 503, null);
+            URI uri = client.getURI(FidesmoApiClient.APP_INFO_URL, "down");
+            try {
+                client.retry(FidesmoApiClient.APP_INFO_URL, Instant.now().plusMillis(500), true, () -> client.rpc(uri));
+                fail("Expected failure");
+            } catch (HttpResponseException e) {
+                assertEquals(e.getStatusCode(), 503);
+            }
+            // Waits of 200ms and 400ms would pass the deadline
+            assertEquals(server.getRequestCount("apps/down"), 2);
+        }
+    }
+
+    @Test
+    public void testDeadlineOutlastsRetryLimit() throws Exception {
+        try (StubApiServer server = new StubApiServer();
+             FidesmoApiClient client = new FidesmoApiClient(server.getURL(), null, null)) {
+            client.setRetryPolicy(FAST.withMaxRetries(2));
+            server.failNext("apps/slow", 4, 503, null);
+            URI uri = client.getURI(FidesmoApiClient.APP_INFO_URL, "slow");
+            Instant deadline = Instant.now().plusSeconds(30);
+            assertEquals(client.retry(FidesmoApiClient.APP_INFO_URL, deadline, false, () -> client.rpc(uri)).get("appId").asText(), "slow");
+            assertEquals(server.getRequestCount("apps/slow"), 5);
+
+            // Not ready yet, more often than the policy has retries for
+            AtomicInteger polls = new AtomicInteger();
+            assertEquals(client.retry(FidesmoApiClient.SERVICE_FETCH_URL, deadline, false, () -> polls.incrementAndGet() > 5 ? "ready" : null), "ready");
+
+            // Without a deadline the policy still ends the loop
+            server.failNext("apps/slow", 4, 503, null);
+            try {
+                client.retry(FidesmoApiClient.APP_INFO_URL, false, () -> client.rpc(uri));
+                fail("Expected failure");
+            } catch (HttpResponseException e) {
+                assertEquals(e.getStatusCode(), 503);
+            }
+        }
+    }
+
+    @Test
+    public void testBudgetStopsRetryStorm() throws Exception {
+        try (StubApiServer server = new StubApiServer();
+             FidesmoApiClient client = new FidesmoApiClient(server.getURL(), null, null)) {
+            client.setRetryPolicy(FAST.withMaxRetries(100).withBudget(0));
+            server.failNext("apps/down", 1000, 503, null);
+            URI uri = client.getURI(FidesmoApiClient.APP_INFO_URL, "down");
+            for (int i = 0; i < 2; i++) {
+                try {
+                    client.retry(FidesmoApiClient.APP_INFO_URL, true, () -> client.rpc(uri));
+                    fail("Expected failure");
+                } catch (HttpResponseException e) {
+                    assertEquals(e.getStatusCode(), 503);
+                }
+            }
+            // The reserve of 10 retries is used by the first call, the second one is not retried
+            assertEquals(server.getRequestCount("apps/down"), 12);
+        }
+    }
+}
@@ -0,0 +1,56 @@
+package com.fidesmo.fdsm;
+
+import apdu4j.core.HexUtils;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+
+import javax.crypto.Cipher;
+import javax.crypto.KeyGenerator;
+import javax.crypto.spec.IvParameterSpec;
+import javax.crypto.spec.OAEPParameterSpec;
+import javax.crypto.spec.PSource;
+import java.io.ByteArrayInputStream;
+import java.nio.charset.StandardCharsets;
+import java.security.Key;
+import java.security.PublicKey;
+import java.security.cert.CertificateFactory;
+import java.security.spec.MGF1ParameterSpec;
+
+// Encrypting the fields of a user-interaction response: providers asked for every
+// instance, as before, vs SessionCrypto
+@State(Scope.Benchmark)
+public class SessionCryptoBenchmark {
+    @Param({"1", "8"})
+    public int fields;
+
+    private static final String VALUE = "{\"cardNumber\":\"4111111111111111\",\"expiryMonth\":12,\"expiryYear\":30}";
+
+    @Benchmark
+    public byte[] fresh() throws Exception {
+        PublicKey spKey = CertificateFactory.getInstance("X509")
+                .generateCertificate(new ByteArrayInputStream(HexUtils.hex2bin(SessionCryptoTest.CERTIFICATE))).getPublicKey();
+        KeyGenerator keyGenerator = KeyGenerator.getInstance("AES");
+        keyGenerator.init(256);
+        Key sessionKey = keyGenerator.generateKey();
+        for (int i = 0; i < fields; i++) {
+            Cipher c = Cipher.getInstance("AES/CBC/PKCS5Padding");
+            c.init(Cipher.ENCRYPT_MODE, sessionKey, new IvParameterSpec(new byte[16]));
+            c.doFinal(VALUE.getBytes(StandardCharsets.UTF_8));
+        }
+        Cipher cipher = Cipher.getInstance("RSA/ECB/OAEPWithSHA-512AndMGF1Padding");
+        cipher.init(Cipher.ENCRYPT_MODE, spKey, new OAEPParameterSpec("SHA-512", "MGF1", MGF1ParameterSpec.SHA512, PSource.PSpecified.DEFAULT));
+        return cipher.doFinal(sessionKey.getEncoded());
+    }
+
+    @Benchmark
+    public byte[] reused() throws Exception {
+        PublicKey spKey = SessionCrypto.publicKey(SessionCryptoTest.CERTIFICATE);
+        Key sessionKey = SessionCrypto.generateSessionKey();
+        for (int i = 0; i < fields; i++) {
+            SessionCrypto.encrypt(VALUE, sessionKey);
+        }
+        return SessionCrypto.encryptSessionKey(spKey, sessionKey);
+    }
+}
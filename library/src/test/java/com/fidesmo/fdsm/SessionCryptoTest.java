@@ -0,0 +1,61 @@
+package com.fidesmo.fdsm;
+
+import org.testng.annotations.Test;
+
+import javax.crypto.Cipher;
+import javax.crypto.spec.IvParameterSpec;
+import javax.crypto.spec.OAEPParameterSpec;
+import javax.crypto.spec.PSource;
+import java.nio.charset.StandardCharsets;
+import java.security.Key;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.spec.MGF1ParameterSpec;
+import java.util.Arrays;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertSame;
+
+public class SessionCryptoTest {
+    // Self-signed RSA 2048 certificate of a service provider
+    static final String CERTIFICATE =
+            "308202ef308201d7a0030201020208071885e823bffd7a300d06092a864886f70d01010b05003025312330210603550403131a42656e63686d61726b"
+            + "20536572766963652050726f76696465723020170d3236313031363232313435305a180f32313236303932323232313435305a302531233021060355"
+            + "0403131a42656e63686d61726b20536572766963652050726f766964657230820122300d06092a864886f70d01010105000382010f003082010a0282"
+            + "010100bc65e26fafb14c10a9986ffa3d1e406b17a2c49b83e26a00b213e9af889b0d952b52cf7ffd12ed12230910e6c25ac1392b8c5cf3e6c0ebb1b3"
+            + "4ef00dc11dacf8cfba78d14fb75e93128a3182f5a37fb8d3051f0820ee6fa086700c2ef66062df33a75e0882fe7008baf694d5568acbf07f9f14d28c"
+            + "465c396ee397f8caefd599eb3c34683f3f7e2e8fa41839ab03b613e51e6679ec1379b38d10b7fcbd0cdc4a471680502bbb34d87548cb224e09bfdc15"
+            + "dce8a5cfba25c0ba21c202cb659c8e0d3fcd875f891551937f5849cc28bbdc40dfca35d8bb4d07b654680d6f37ec6f5b3a9b1c03c1c70f71a12d9741"
+            + "d4362a435fad27009ec6534c2358d2c00cae790203010001a321301f301d0603551d0e04160414f4e71b7fdabdc7d88c0361b68b82e9097b8df9da30"
+            + "0d06092a864886f70d01010b0500038201010095d2dbdd6320fcac7ee2d2f7447325ff85b5411e036d5f4ae33fc9910750fd77dcb0fdfaa53d107132"
+            + "91e6f52acb491561f4526cb449d3c909b5478d5504beda599557b1f8ebbdc82afe6d3ffa6dd382abf42b8344a64c06a2a8505c4b7bea1a96047acc18"
+            + "f1870ed4f677f9305e08ab40cac1484701bd72f652430c315d2b5977d544022b84fe319899513d92eb0a2881620766537179da756ede02c695e6ee0f"
+            + "3ae7c1fadf2f422492bcc561b78255c3318b05435a75834302b47f5a7e1a3818ef5b8efac5dea8ba343157f57d5fbf3e4eccd833f7dd271863a80b47"
+            + "bb950a6d08f7a2946fe84f49e54d6e347d3af768188232ecbd77cdced05f4d9bcd1d24";
+
+    @Test
+    public void testKeyParsedOnce() throws Exception {
+        assertSame(SessionCrypto.publicKey(CERTIFICATE), SessionCrypto.publicKey(CERTIFICATE));
+        assertEquals(SessionCrypto.publicKey(CERTIFICATE).getAlgorithm(), "RSA");
+    }
+
+    @Test
+    public void testReusedInstancesDecrypt() throws Exception {
+        KeyPairGenerator generator = KeyPairGenerator.getInstance("RSA");
+        generator.initialize(2048);
+        KeyPair provider = generator.generateKeyPair();
+        Cipher rsa = Cipher.getInstance("RSA/ECB/OAEPWithSHA-512AndMGF1Padding");
+        rsa.init(Cipher.DECRYPT_MODE, provider.getPrivate(), new OAEPParameterSpec("SHA-512", "MGF1", MGF1ParameterSpec.SHA512, PSource.PSpecified.DEFAULT));
+        Cipher aes = Cipher.getInstance("AES/CBC/PKCS5Padding");
+
+        for (int i = 0; i < 3; i++) {
+            Key sessionKey = SessionCrypto.generateSessionKey();
+            byte[] wrapped = SessionCrypto.encryptSessionKey(provider.getPublic(), sessionKey);
+            assertEquals(rsa.doFinal(wrapped), sessionKey.getEncoded());
+            for (String value : Arrays.asList("4111111111111111", "user@example.com")) {
+                aes.init(Cipher.DECRYPT_MODE, sessionKey, new IvParameterSpec(new byte[16]));
+                assertEquals(new String(aes.doFinal(SessionCrypto.encrypt(value, sessionKey)), StandardCharsets.UTF_8), value);
+            }
+        }
+    }
+}
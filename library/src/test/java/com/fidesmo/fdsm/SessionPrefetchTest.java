@@ -0,0 +1,46 @@
+package com.fidesmo.fdsm;
+
+import com.fidesmo.fdsm.exceptions.ServiceNotAvailableException;
+import org.testng.annotations.Test;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertTrue;
+import static org.testng.Assert.expectThrows;
+
+public class SessionPrefetchTest {
+
+    @Test
+    public void testMetadataRequestsOverlap() throws Exception {
+        try (StubApiServer server = new StubApiServer();
+             FidesmoApiClient client = new FidesmoApiClient(server.getURL(), null, null)) {
+            server.setDelay(300);
+            assertTrue(StubDeliveries.session(client, new StubDeliveries.SlowCard(0)).call().isSuccess());
+            // Device and service requests were handled at the same time, the rest of a single session are sequential
+            assertEquals(server.getMaxInFlight(), 2);
+            assertEquals(server.getRequestCount("apps/c0ffee00/services/stub"), 1);
+        }
+    }
+
+    @Test
+    public void testUnknownService() throws Exception {
+        try (StubApiServer server = new StubApiServer();
+             FidesmoApiClient client = new FidesmoApiClient(server.getURL(), null, null)) {
+            server.failNext("apps/c0ffee00/services/stub", 1, 404, null);
+            ServiceNotAvailableException e = expectThrows(ServiceNotAvailableException.class,
+                    () -> StubDeliveries.session(client, null).deliver(new StubDeliveries.SlowCard(0), "c0ffee00", "stub"));
+            assertEquals(e.getMessage(), "Unknown service ID: stub");
+            assertEquals(server.getRequestCount("service/deliver"), 0);
+        }
+    }
+
+    @Test
+    public void testPrefetchBeforeCard() throws Exception {
+        try (StubApiServer server = new StubApiServer();
+             FidesmoApiClient client = new FidesmoApiClient(server.getURL(), null, null)) {
+            ServiceDescription description = FidesmoApiClient.await(ServiceDeliverySession.prefetch(client, "c0ffee00", "stub"));
+            assertEquals(FidesmoApiClient.lamei18n(description.title()), "Stub service");
+            assertEquals(server.getRequestCount("apps/c0ffee00/services/stub"), 1);
+            assertTrue(StubDeliveries.session(client, new StubDeliveries.SlowCard(0)).call().isSuccess());
+        }
+    }
+}
@@ -0,0 +1,92 @@
+package com.fidesmo.fdsm;
+
+import apdu4j.core.BIBOException;
+import apdu4j.core.HexUtils;
+import org.testng.annotations.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertThrows;
+import static org.testng.Assert.assertTrue;
+
+public class SessionReplayTest {
+    private static Path record(long roundTrip) throws Exception {
+        Path file = Files.createTempFile("session", ".jsonl.gz");
+        try (StubApiServer server = new StubApiServer();
+             FidesmoApiClient client = new FidesmoApiClient(server.getURL(), null, null);
+             SessionRecorder recorder = SessionRecorder.toFile(file)) {
+            server.setBatches(2, 3);
+            server.setRoundTrip(roundTrip);
+            client.setRecorder(recorder);
+            assertTrue(StubDeliveries.deliver(client, recorder.wrap(new StubDeliveries.SlowCard(1))).isSuccess());
+        }
+        return file;
+    }
+
+    @Test
+    public void testReplayWithoutApiAndCard() throws Exception {
+        Path file = record(0);
+        try (SessionReplay replay = SessionReplay.load(file);
+             FidesmoApiClient client = replay.client()) {
+            assertTrue(StubDeliveries.deliver(client, replay.card()).isSuccess());
+            assertEquals(replay.getUnexpected().size(), 0, replay.getUnexpected().toString());
+            assertEquals(replay.getRemaining(), 0);
+        } finally {
+            Files.delete(file);
+        }
+    }
+
+    @Test
+    public void testRecordedTiming() throws Exception {
+        Path file = record(100);
+        try (SessionReplay fast = SessionReplay.load(file);
+             SessionReplay paced = SessionReplay.load(file);
+             FidesmoApiClient fastClient = fast.client();
+             FidesmoApiClient pacedClient = paced.client()) {
+            long start = System.nanoTime();
+            assertTrue(StubDeliveries.deliver(fastClient, fast.card()).isSuccess());
+            long unpaced = System.nanoTime() - start;
+            paced.setTimeScale(1.0);
+            start = System.nanoTime();
+            assertTrue(StubDeliveries.deliver(pacedClient, paced.card()).isSuccess());
+            long recorded = System.nanoTime() - start;
+            // Seven API round trips of 100ms
+            assertTrue(recorded - unpaced > 500_000_000L, "unpaced " + unpaced + " recorded " + recorded);
+        } finally {
+            Files.delete(file);
+        }
+    }
+
+    @Test
+    public void testDivergingCard() throws Exception {
+        String recording = "{\"version\":1}\n{\"at\":0,\"apdu\":\"00A4040000\",\"response\":\"9000\",\"nanos\":1000}\n";
+        try (SessionReplay replay = SessionReplay.read(new ByteArrayInputStream(recording.getBytes(StandardCharsets.UTF_8)))) {
+            assertThrows(BIBOException.class, () -> replay.card().transceive(HexUtils.hex2bin("00B0000000")));
+        }
+    }
+
+    @Test
+    public void testWebSocketDelivery() throws Exception {
+        ByteArrayOutputStream recording = new ByteArrayOutputStream();
+        try (SessionRecorder recorder = SessionRecorder.toStream(recording)) {
+            recorder.webSocket(true, "{\"type\":\"id\",\"value\":\"ws-session\"}");
+            recorder.webSocket(true, "{\"type\":\"commands\",\"commands\":[\"00A4040000\",\"00A4040000\"]}");
+            recorder.apdu(HexUtils.hex2bin("00A4040000"), HexUtils.hex2bin("9000"), 1000);
+            recorder.apdu(HexUtils.hex2bin("00A4040000"), HexUtils.hex2bin("6A82"), 1000);
+            recorder.webSocket(false, "{\"type\":\"responses\",\"responses\":[\"9000\",\"6A82\"]}");
+            recorder.webSocket(true, "{\"type\":\"status\",\"code\":\"OK\",\"message\":\"Done\"}");
+        }
+        try (SessionReplay replay = SessionReplay.read(new ByteArrayInputStream(recording.toByteArray()))) {
+            WsClient client = new WsClient(replay.getWebSocketURI(), replay.card(), null, ClientInfo.fdsm());
+            ServiceDeliverySession.DeliveryResult result = client.run().join();
+            assertTrue(result.isSuccess());
+            assertEquals(result.getSessionId(), "ws-session");
+            assertEquals(replay.getRemaining(), 0);
+        }
+    }
+}
@@ -0,0 +1,308 @@
+package com.fidesmo.fdsm;
+
+import apdu4j.core.BIBO;
+import apdu4j.core.BIBOException;
+import apdu4j.core.HexUtils;
+
+import java.io.ByteArrayOutputStream;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicInteger;
+
+// A Fidesmo device (platform version 3) behind a card reader, for tests and benchmarks without
+// hardware. It answers the probe of FidesmoCard and the SELECT-s of listApps, and accepts
+// secure channel set-up, INSTALL, LOAD, STORE DATA and DELETE, keeping track of loaded
+// packages and installed instances. Secure messaging is not checked. Every APDU takes the
+// time the reader profile gives for it.
+public class SimulatedCard implements BIBO {
+    private static final byte[] ISD = HexUtils.hex2bin("A000000151000000");
+    private static final byte[] FIDESMO_RID = HexUtils.hex2bin("A00000061701"); // Prefix of service provider SSD-s
+    private static final byte[] CPLC = HexUtils.hex2bin("4790D321470000000000"); // JCOP4
+    private static final byte[] OK = {(byte) 0x90, 0x00};
+
+    // Time of an APDU: a fixed cost, transfer of command and response, and writing the data of
+    // LOAD and STORE DATA to flash
+    public enum Reader {
+        NONE(0, 0, 0),
+        // T=1 at 115200 baud
+        CONTACT(1_500, 90, 20),
+        // ISO 14443 at 424 kbit/s, with frame and field overhead
+        NFC(4_000, 20, 20),
+        // Full-speed CCID reader polled every few milliseconds
+        SLOW_USB(12_000, 100, 20);
+
+        private final long apduMicros;
+        private final long byteMicros;
+        private final long writeMicros;
+
+        Reader(long apduMicros, long byteMicros, long writeMicros) {
+            this.apduMicros = apduMicros;
+            this.byteMicros = byteMicros;
+            this.writeMicros = writeMicros;
+        }
+
+        public Duration latency(int commandLength, int responseLength, int written) {
+            return Duration.ofNanos(1000 * (apduMicros + byteMicros * (commandLength + responseLength) + writeMicros * written));
+        }
+    }
+
+    private final byte[] uid;
+    private final byte[] cin;
+    private final int batchId;
+    private volatile Reader reader = Reader.NONE;
+    private final List<byte[]> packages = new ArrayList<>();
+    private final List<byte[]> instances = new ArrayList<>();
+    private final AtomicInteger commands = new AtomicInteger();
+    private volatile long busyNanos;
+    private byte[] loading; // Package of the LOAD in progress
+    private int selectedNext; // Index of the next instance to match a partial SELECT
+    private boolean closed;
+
+    public SimulatedCard(byte[] cin, int batchId) {
+        this.uid = new byte[7];
+        ThreadLocalRandom.current().nextBytes(uid);
+        this.cin = cin.clone();
+        this.batchId = batchId;
+    }
+
+    // A card with a random CIN, for fleets of cards
+    public static SimulatedCard random(int batchId) {
+        byte[] cin = new byte[7];
+        ThreadLocalRandom.current().nextBytes(cin);
+        return new SimulatedCard(cin, batchId);
+    }
+
+    public void setReader(Reader reader) {
+        this.reader = reader;
+    }
+
+    // Installs the security domain of a service provider, as if delivered earlier
+    public synchronized void addApp(String appId) {
+        instances.add(FidesmoCard.concat(FIDESMO_RID, HexUtils.hex2bin(appId)));
+    }
+
+    public synchronized List<byte[]> getPackages() {
+        return new ArrayList<>(packages);
+    }
+
+    public synchronized List<byte[]> getInstances() {
+        return new ArrayList<>(instances);
+    }
+
+    public int getCommandCount() {
+        return commands.get();
+    }
+
+    // Simulated time spent on the reader
+    public Duration getBusyTime() {
+        return Duration.ofNanos(busyNanos);
+    }
+
+    @Override
+    public byte[] transceive(byte[] command) throws BIBOException {
+        byte[] response;
+        Duration latency;
+        synchronized (this) {
+            if (closed) {
+                throw new BIBOException("Card removed");
+            }
+            if (command.length < 4) {
+                throw new BIBOException("Invalid APDU: " + HexUtils.bin2hex(command));
+            }
+            commands.incrementAndGet();
+            response = process(command);
+            latency = reader.latency(command.length, response.length, written(command));
+            busyNanos += latency.toNanos();
+        }
+        // Concurrent cards are independent readers, so the wait is not under the lock
+        if (!latency.isZero()) {
+            try {
+                Thread.sleep(latency);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new BIBOException("Interrupted");
+            }
+        }
+        return response;
+    }
+
+    @Override
+    public synchronized void close() {
+        closed = true;
+    }
+
+    private static int written(byte[] command) {
+        int ins = command[1] & 0xFF;
+        return ins == 0xE8 || ins == 0xE2 ? data(command).length : 0;
+    }
+
+    // Command data of a short APDU; secure messaging (a trailing MAC) is left in
+    private static byte[] data(byte[] command) {
+        if (command.length <= 5) {
+            return new byte[0];
+        }
+        int lc = command[4] & 0xFF;
+        return Arrays.copyOfRange(command, 5, Math.min(command.length, 5 + lc));
+    }
+
+    private byte[] process(byte[] command) {
+        int cla = command[0] & 0xFF;
+        int ins = command[1] & 0xFF;
+        int p1 = command[2] & 0xFF;
+        int p2 = command[3] & 0xFF;
+        byte[] data = data(command);
+        if (cla == 0xFF && ins == 0xCA) {
+            // UID from the reader
+            return FidesmoCard.concat(uid, OK);
+        }
+        switch (ins) {
+            case 0xA4:
+                return p1 == 0x04 ? select(data, p2) : sw(0x6A86);
+            case 0xCA:
+                return getData(p1 << 8 | p2);
+            case 0x50:
+                // INITIALIZE UPDATE: key diversification data, key information, card challenge and cryptogram
+                byte[] init = new byte[28];
+                ThreadLocalRandom.current().nextBytes(init);
+                init[10] = 0x01; // Key version
+                init[11] = 0x02; // SCP02
+                return FidesmoCard.concat(init, OK);
+            case 0x82:
+                // EXTERNAL AUTHENTICATE
+                return OK;
+            case 0xE6:
+                return install(data, p1);
+            case 0xE8:
+                if (loading == null) {
+                    return sw(0x6985);
+                }
+                if ((p1 & 0x80) != 0) {
+                    // Last block
+                    packages.add(loading);
+                    loading = null;
+                }
+                return OK;
+            case 0xE2:
+                // STORE DATA, to the selected application
+                return OK;
+            case 0xE4:
+                return delete(data);
+            default:
+                return sw(0x6D00);
+        }
+    }
+
+    private byte[] select(byte[] aid, int p2) {
+        if (aid.length == 0 || Arrays.equals(aid, ISD)) {
+            selectedNext = 0;
+            return fci(ISD);
+        }
+        if (Arrays.equals(aid, FidesmoCard.FIDESMO_PLATFORM_AID.getBytes())) {
+            selectedNext = 0;
+            ByteArrayOutputStream platform = new ByteArrayOutputStream();
+            platform.write(0x45);
+            platform.write(cin.length);
+            platform.writeBytes(cin);
+            platform.write(0x42);
+            platform.write(3);
+            platform.writeBytes(new byte[]{(byte) (batchId >> 16), (byte) (batchId >> 8), (byte) batchId});
+            platform.writeBytes(OK);
+            return platform.toByteArray();
+        }
+        // Partial selection: first (P2=00) or next (P2=02) instance starting with the AID
+        int from = (p2 & 0x03) == 0x02 ? selectedNext : 0;
+        for (int i = from; i < instances.size(); i++) {
+            byte[] instance = instances.get(i);
+            if (instance.length >= aid.length && Arrays.equals(instance, 0, aid.length, aid, 0, aid.length)) {
+                selectedNext = i + 1;
+                return fci(instance);
+            }
+        }
+        selectedNext = instances.size();
+        return sw(0x6A82);
+    }
+
+    private static byte[] fci(byte[] aid) {
+        byte[] fci = new byte[4 + aid.length];
+        fci[0] = 0x6F;
+        fci[1] = (byte) (2 + aid.length);
+        fci[2] = (byte) 0x84;
+        fci[3] = (byte) aid.length;
+        System.arraycopy(aid, 0, fci, 4, aid.length);
+        return FidesmoCard.concat(fci, OK);
+    }
+
+    private byte[] getData(int tag) {
+        switch (tag) {
+            case 0x9F7F:
+                byte[] cplc = new byte[3 + 42];
+                cplc[0] = (byte) 0x9F;
+                cplc[1] = 0x7F;
+                cplc[2] = 0x2A;
+                System.arraycopy(CPLC, 0, cplc, 3, CPLC.length);
+                return FidesmoCard.concat(cplc, OK);
+            case 0x0045:
+                byte[] tlv = new byte[2 + cin.length];
+                tlv[0] = 0x45;
+                tlv[1] = (byte) cin.length;
+                System.arraycopy(cin, 0, tlv, 2, cin.length);
+                return FidesmoCard.concat(tlv, OK);
+            default:
+                return sw(0x6A88);
+        }
+    }
+
+    // INSTALL [for load] starts a LOAD; INSTALL [for install] creates an instance
+    private byte[] install(byte[] data, int p1) {
+        try {
+            if ((p1 & 0x02) != 0) {
+                loading = lv(data, 0);
+                return OK;
+            }
+            if ((p1 & 0x04) != 0) {
+                // Package, module and instance AID
+                int offset = 0;
+                for (int i = 0; i < 2; i++) {
+                    offset += 1 + (data[offset] & 0xFF);
+                }
+                byte[] instance = lv(data, offset);
+                for (byte[] existing : instances) {
+                    if (Arrays.equals(existing, instance)) {
+                        return sw(0x6985);
+                    }
+                }
+                instances.add(instance);
+                return OK;
+            }
+            // INSTALL [for make selectable], [for personalization] and others
+            return OK;
+        } catch (IndexOutOfBoundsException e) {
+            return sw(0x6A80);
+        }
+    }
+
+    private byte[] delete(byte[] data) {
+        if (data.length < 2 || data[0] != 0x4F) {
+            return sw(0x6A80);
+        }
+        byte[] aid = lv(data, 1);
+        boolean deleted = instances.removeIf(instance -> Arrays.equals(instance, aid))
+                | packages.removeIf(pkg -> Arrays.equals(pkg, aid));
+        return deleted ? FidesmoCard.concat(new byte[]{0x00}, OK) : sw(0x6A88);
+    }
+
+    private static byte[] lv(byte[] data, int offset) {
+        int length = data[offset] & 0xFF;
+        if (offset + 1 + length > data.length) {
+            throw new IndexOutOfBoundsException(offset + 1 + length);
+        }
+        return Arrays.copyOfRange(data, offset + 1, offset + 1 + length);
+    }
+
+    private static byte[] sw(int sw) {
+        return new byte[]{(byte) (sw >> 8), (byte) sw};
+    }
+}
@@ -0,0 +1,69 @@
+package com.fidesmo.fdsm;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.io.IOException;
+import java.net.URI;
+import java.util.concurrent.TimeUnit;
+
+// Delivery of a multi-batch service to a simulated card behind different readers, over HTTP
+// (sequential and pipelined) and WebSocket
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class SimulatedCardBenchmark {
+    @Param({"CONTACT", "NFC", "SLOW_USB"})
+    public SimulatedCard.Reader reader;
+
+    // Server and network time per request or message
+    @Param({"20"})
+    public long latency;
+
+    private StubApiServer server;
+    private FidesmoApiClient client;
+    private URI webSocket;
+
+    @Setup
+    public void setup() throws IOException {
+        server = new StubApiServer();
+        server.setBatches(4, 10);
+        server.setDelay(latency);
+        client = new FidesmoApiClient(server.getURL(), null, null);
+        webSocket = URI.create(server.getWebSocketURL("stub"));
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        client.close();
+        server.close();
+    }
+
+    private SimulatedCard card() {
+        SimulatedCard card = SimulatedCard.random(1);
+        card.setReader(reader);
+        return card;
+    }
+
+    @Benchmark
+    public boolean sequential() throws Exception {
+        return PipelinedDeliveryTest.deliver(client, card(), false).isSuccess();
+    }
+
+    @Benchmark
+    public boolean pipelined() throws Exception {
+        return PipelinedDeliveryTest.deliver(client, card(), true).isSuccess();
+    }
+
+    @Benchmark
+    public boolean webSocket() {
+        return new WsClient(webSocket, card(), null, ClientInfo.fdsm()).run().join().isSuccess();
+    }
+}
@@ -0,0 +1,72 @@
+package com.fidesmo.fdsm;
+
+import apdu4j.core.APDUBIBO;
+import apdu4j.core.HexUtils;
+import org.testng.annotations.Test;
+
+import java.time.Duration;
+import java.util.List;
+import java.util.Optional;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertTrue;
+
+public class SimulatedCardTest {
+    private static final byte[] CIN = HexUtils.hex2bin("3D5F8004132EDA");
+
+    private static String send(SimulatedCard card, String command) {
+        return HexUtils.bin2hex(card.transceive(HexUtils.hex2bin(command)));
+    }
+
+    @Test
+    public void testDetect() {
+        FidesmoCard card = FidesmoCard.detectOffline(new SimulatedCard(CIN, 140)).get();
+        assertEquals(card.getCIN(), CIN);
+        assertEquals(card.getBatchId(), 140);
+        assertEquals(FidesmoCard.detectPlatform(card.getCPLC()), Optional.of(FidesmoCard.ChipPlatform.JCOP4));
+    }
+
+    @Test
+    public void testInstallAndListApps() {
+        SimulatedCard card = new SimulatedCard(CIN, 140);
+        card.addApp("c0ffee00");
+        assertEquals(send(card, "80E602000C07A000000617010000000000"), "9000");
+        assertEquals(send(card, "80E800000401020304"), "9000");
+        assertEquals(send(card, "80E880010405060708"), "9000");
+        assertEquals(card.getPackages().size(), 1);
+        // Package, module and instance of a service provider
+        assertEquals(send(card, "80E60C002207A000000617010008A0000006170101010AA00000061701123456780100" + "02C90000"), "9000");
+        List<byte[]> apps = FidesmoCard.listApps(new APDUBIBO(card));
+        assertEquals(apps.size(), 2);
+        assertEquals(HexUtils.bin2hex(apps.get(0)), "C0FFEE00");
+        assertEquals(HexUtils.bin2hex(apps.get(1)), "12345678");
+
+        assertEquals(send(card, "80E400000C4F0AA0000006170112345678"), "009000");
+        assertEquals(FidesmoCard.listApps(new APDUBIBO(card)).size(), 1);
+        assertEquals(send(card, "80E400000C4F0AA0000006170112345678"), "6A88");
+        assertEquals(send(card, "80E8800100"), "6985");
+    }
+
+    @Test
+    public void testReaderLatency() {
+        SimulatedCard card = new SimulatedCard(CIN, 140);
+        card.setReader(SimulatedCard.Reader.NFC);
+        long start = System.nanoTime();
+        assertEquals(send(card, "00A4040000"), "6F0A8408A0000001510000009000");
+        Duration elapsed = Duration.ofNanos(System.nanoTime() - start);
+        assertEquals(card.getBusyTime(), SimulatedCard.Reader.NFC.latency(5, 14, 0));
+        assertTrue(elapsed.compareTo(card.getBusyTime()) >= 0);
+    }
+
+    @Test
+    public void testDelivery() throws Exception {
+        try (StubApiServer server = new StubApiServer();
+             FidesmoApiClient client = new FidesmoApiClient(server.getURL(), null, null)) {
+            server.setBatches(3, 4);
+            SimulatedCard card = SimulatedCard.random(1);
+            assertTrue(PipelinedDeliveryTest.deliver(client, card, true).isSuccess());
+            // The reset at the start of the session, then every command of the batches
+            assertEquals(card.getCommandCount(), 1 + 12);
+        }
+    }
+}
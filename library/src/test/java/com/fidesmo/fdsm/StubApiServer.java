@@ -0,0 +1,793 @@
+package com.fidesmo.fdsm;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ArrayNode;
+import com.fasterxml.jackson.databind.node.JsonNodeFactory;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import org.java_websocket.WebSocket;
+import org.java_websocket.drafts.Draft;
+import org.java_websocket.exceptions.InvalidDataException;
+import org.java_websocket.handshake.ClientHandshake;
+import org.java_websocket.handshake.ServerHandshakeBuilder;
+import org.java_websocket.server.WebSocketServer;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+// Stand-in for the Fidesmo API, for tests and load tests of the client side. Services run a
+// script of steps (by default one batch of one APDU) and complete; latency, failures and
+// "not ready yet" answers can be injected. Handlers run on virtual threads, so that thousands
+// of concurrent sessions with injected latency fit on a laptop.
+public class StubApiServer implements Closeable {
+    private final ObjectMapper mapper = new ObjectMapper();
+    private final HttpServer server;
+    private final ExecutorService executor = Executors.newVirtualThreadPerTaskExecutor();
+    private final Map<String, Session> sessions = new ConcurrentHashMap<>(); // By session and operation ID
+    private final Set<Integer> clientPorts = ConcurrentHashMap.newKeySet();
+    private final Map<String, AtomicInteger> requests = new ConcurrentHashMap<>();
+    private final AtomicInteger inFlight = new AtomicInteger();
+    private final AtomicInteger maxInFlight = new AtomicInteger();
+    private volatile long delay;
+    private final Map<String, Long> latencies = new ConcurrentHashMap<>(); // By path prefix
+    private final Map<String, AtomicInteger> failures = new ConcurrentHashMap<>();
+    private volatile int failureStatus;
+    private volatile String retryAfter;
+    private final Map<String, ErrorRate> errorRates = new ConcurrentHashMap<>(); // By path prefix
+    // Backend processing time before the next operation of a session can be fetched
+    private volatile long fetchDelay;
+    private volatile int notReadyPolls; // Fetches answered with 204 at the start of every step
+    private volatile boolean longPoll = true;
+    private final AtomicInteger held = new AtomicInteger(); // Long polls held until ready
+    private volatile long roundTrip;
+    private volatile int batches = 1;
+    private volatile int batchSize = 1;
+    private final Map<String, Script> scripts = new ConcurrentHashMap<>(); // By service ID
+    private final Map<String, JsonNode> recipes = new ConcurrentHashMap<>(); // By app and service ID
+    private final AtomicInteger completed = new AtomicInteger();
+    private final AtomicInteger webSocketConnections = new AtomicInteger();
+    private WebSocketDelivery webSocket;
+    private volatile boolean binaryFraming = true;
+    private volatile boolean multiplexing = true;
+    private volatile boolean resumable = true;
+    private volatile int dropAfter; // Batch of WebSocket deliveries after which the connection drops
+    private static final byte[] SELECT = {0x00, (byte) 0xA4, 0x04, 0x00, 0x00};
+    private static final Pattern RECIPE = Pattern.compile("apps/(\\w+)/services/([\\w-]+)/recipe");
+
+    // A step of a scripted delivery
+    public sealed interface Step permits Transceive, Form, Action {
+    }
+
+    // Batches of SELECT commands (00A4040000) for the card
+    public record Transceive(int batches, int batchSize) implements Step {
+    }
+
+    // User interaction with text fields
+    public record Form(List<String> fields) implements Step {
+    }
+
+    // An action for the user to confirm
+    public record Action(String name) implements Step {
+    }
+
+    public record Script(List<Step> steps, boolean success) {
+    }
+
+    private record ErrorRate(double rate, int status) {
+    }
+
+    private static final class Session {
+        final String id;
+        final Script script;
+        int step;
+        int batchesSent;
+        String operationId;
+        int channel; // Of a multiplexed WebSocket delivery
+        volatile WebSocket conn; // Of a WebSocket delivery, replaced when resumed
+        volatile Connection connection;
+        int sent; // Batches sent over WebSocket
+        int acknowledged; // Batches with responses received
+        boolean dropped;
+        final Set<String> accepted = ConcurrentHashMap.newKeySet(); // Operation results
+        volatile long readyAt;
+        int notReady; // 204 answers left before the step is ready
+
+        Session(String id, Script script) {
+            this.id = id;
+            this.script = script;
+        }
+
+        Step current() {
+            return step < script.steps().size() ? script.steps().get(step) : null;
+        }
+    }
+
+    public StubApiServer() throws IOException {
+        // Avoid Nagle delays between response headers and body
+        System.setProperty("sun.net.httpserver.nodelay", "true");
+        server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 0);
+        server.setExecutor(executor);
+        server.createContext("/", this::handle);
+        server.start();
+    }
+
+    public String getURL() {
+        return "http://localhost:" + server.getAddress().getPort() + "/";
+    }
+
+    // WebSocket delivery URL of a service, running the same script as deliveries over HTTP
+    public String getWebSocketURL(String serviceId) throws IOException {
+        return getWebSocketURL() + serviceId;
+    }
+
+    // WebSocket endpoint for multiplexed deliveries
+    public synchronized String getWebSocketURL() throws IOException {
+        if (webSocket == null) {
+            WebSocketDelivery ws = new WebSocketDelivery();
+            ws.start();
+            try {
+                if (!ws.started.await(10, TimeUnit.SECONDS)) {
+                    throw new IOException("WebSocket server did not start");
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException("Interrupted", e);
+            }
+            webSocket = ws;
+        }
+        return "ws://localhost:" + webSocket.getPort() + "/";
+    }
+
+    // Whether WebSocket deliveries agree to binary APDU frames when the client offers them
+    public void setBinaryFraming(boolean enabled) {
+        this.binaryFraming = enabled;
+    }
+
+    // Whether WebSocket connections carry many deliveries when the client asks for it
+    public void setMultiplexing(boolean enabled) {
+        this.multiplexing = enabled;
+    }
+
+    // Whether WebSocket deliveries can be resumed on a new connection
+    public void setResumable(boolean enabled) {
+        this.resumable = enabled;
+    }
+
+    // Drops the connection of every WebSocket delivery, once, when the responses to this batch
+    // arrive; they are not acknowledged, so a resumed delivery has to send them again. 0 for never.
+    public void setDropAfter(int batch) {
+        this.dropAfter = batch;
+    }
+
+    // Number of distinct client connections seen
+    public int getConnectionCount() {
+        return clientPorts.size();
+    }
+
+    // Delays every response, to keep requests in flight
+    public void setDelay(long millis) {
+        this.delay = millis;
+    }
+
+    // Delays responses to paths starting with prefix, in addition to the delay of all requests
+    public void setLatency(String prefix, long millis) {
+        latencies.put(prefix, millis);
+    }
+
+    // Fetch answers 204 until millis have passed since the previous step of the session
+    public void setFetchDelay(long millis) {
+        this.fetchDelay = millis;
+    }
+
+    // Fetch answers 204 this many times at the start of every step, including the final status
+    public void setNotReadyPolls(int polls) {
+        this.notReadyPolls = polls;
+    }
+
+    // Whether fetch requests are held when asked to with "Prefer: wait"
+    public void setLongPoll(boolean enabled) {
+        this.longPoll = enabled;
+    }
+
+    // Simulated network latency: half of it passes before the request body is read, the rest before the response
+    public void setRoundTrip(long millis) {
+        this.roundTrip = millis;
+    }
+
+    // Number of connector batches per session and APDU-s in each, for services without a script
+    public void setBatches(int batches, int batchSize) {
+        this.batches = batches;
+        this.batchSize = batchSize;
+    }
+
+    // Steps of deliveries of the service, and whether they end successfully
+    public void setScript(String serviceId, boolean success, Step... steps) {
+        scripts.put(serviceId, new Script(List.of(steps), success));
+    }
+
+    // The next count requests to path are answered with the given status
+    public void failNext(String path, int count, int status, String retryAfter) {
+        this.failureStatus = status;
+        this.retryAfter = retryAfter;
+        failures.put(path, new AtomicInteger(count));
+    }
+
+    // A random share of requests to paths starting with prefix are answered with the given status
+    public void setErrorRate(String prefix, double rate, int status) {
+        errorRates.put(prefix, new ErrorRate(rate, status));
+    }
+
+    // Number of WebSocket connections opened
+    public int getWebSocketConnectionCount() {
+        return webSocketConnections.get();
+    }
+
+    // Number of fetch requests held by long polling that were answered as soon as the step got ready
+    public int getHeldCount() {
+        return held.get();
+    }
+
+    // Most requests handled at the same time, showing which calls of a client overlap
+    public int getMaxInFlight() {
+        return maxInFlight.get();
+    }
+
+    // Number of requests received for a path
+    public int getRequestCount(String path) {
+        AtomicInteger count = requests.get(path);
+        return count == null ? 0 : count.get();
+    }
+
+    // Number of deliveries that have run to the end of their script
+    public int getCompletedCount() {
+        return completed.get();
+    }
+
+    // Recipe uploaded for a service
+    public JsonNode getRecipe(String appId, String serviceId) {
+        return recipes.get(appId + "/" + serviceId);
+    }
+
+    private void handle(HttpExchange exchange) throws IOException {
+        maxInFlight.accumulateAndGet(inFlight.incrementAndGet(), Math::max);
+        try {
+            serve(exchange);
+        } finally {
+            inFlight.decrementAndGet();
+        }
+    }
+
+    private void serve(HttpExchange exchange) throws IOException {
+        clientPorts.add(exchange.getRemoteAddress().getPort());
+        String path = exchange.getRequestURI().getPath().substring(1);
+        String method = exchange.getRequestMethod();
+        requests.computeIfAbsent(path, p -> new AtomicInteger()).incrementAndGet();
+        sleep(delay + latency(path));
+        AtomicInteger failing = failures.get(path);
+        if (failing != null && failing.getAndDecrement() > 0) {
+            if (retryAfter != null) {
+                exchange.getResponseHeaders().add("Retry-After", retryAfter);
+            }
+            respond(exchange, failureStatus);
+            return;
+        }
+        for (Map.Entry<String, ErrorRate> error : errorRates.entrySet()) {
+            if (path.startsWith(error.getKey()) && ThreadLocalRandom.current().nextDouble() < error.getValue().rate()) {
+                respond(exchange, error.getValue().status());
+                return;
+            }
+        }
+        sleep(roundTrip / 2);
+        JsonNode request = method.equals("POST") || method.equals("PUT") ? mapper.readTree(exchange.getRequestBody()) : null;
+        sleep(roundTrip - roundTrip / 2);
+
+        ObjectNode response = JsonNodeFactory.instance.objectNode();
+        if (path.matches("apps/\\w+")) {
+            // Catalog: "fresh" may be cached for a minute, "private" only by the user agent
+            // that asked, others must be revalidated
+            String etag = "\"" + path.hashCode() + "\"";
+            exchange.getResponseHeaders().add("ETag", etag);
+            if (path.equals("apps/fresh")) {
+                exchange.getResponseHeaders().add("Cache-Control", "max-age=60");
+            } else if (path.equals("apps/private")) {
+                exchange.getResponseHeaders().add("Cache-Control", "private, max-age=60");
+            } else {
+                exchange.getResponseHeaders().add("Cache-Control", "no-cache");
+                if (etag.equals(exchange.getRequestHeaders().getFirst("If-None-Match"))) {
+                    respond(exchange, 304);
+                    return;
+                }
+            }
+            response.put("appId", path.substring("apps/".length()));
+            response.putObject("name").put("en", "Stub app");
+        } else if (path.startsWith("devices/")) {
+            response.put("iin", "0011223344");
+            response.putObject("description").putObject("capabilities").put("platformVersion", 2);
+        } else if (path.matches("apps/\\w+/services")) {
+            ArrayNode services = JsonNodeFactory.instance.arrayNode().add("stub");
+            scripts.keySet().forEach(services::add);
+            send(exchange, services);
+            return;
+        } else if (path.matches("apps/\\w+/recipe-services")) {
+            ArrayNode services = JsonNodeFactory.instance.arrayNode();
+            String prefix = path.substring("apps/".length(), path.indexOf("/recipe-services")) + "/";
+            recipes.keySet().stream().filter(key -> key.startsWith(prefix)).forEach(key -> services.add(key.substring(prefix.length())));
+            send(exchange, services);
+            return;
+        } else if (RECIPE.matcher(path).matches()) {
+            Matcher recipe = RECIPE.matcher(path);
+            recipe.matches();
+            String key = recipe.group(1) + "/" + recipe.group(2);
+            switch (method) {
+                case "PUT" -> recipes.put(key, request);
+                case "DELETE" -> {
+                    respond(exchange, recipes.remove(key) == null ? 404 : 204);
+                    return;
+                }
+                default -> {
+                    if (!recipes.containsKey(key)) {
+                        respond(exchange, 404);
+                        return;
+                    }
+                    send(exchange, recipes.get(key));
+                    return;
+                }
+            }
+        } else if (path.matches("apps/\\w+/services/[\\w-]+")) {
+            response.putObject("description").put("title", "Stub service");
+        } else if (path.equals("service/deliver")) {
+            String sessionId = UUID.randomUUID().toString();
+            Session session = new Session(sessionId, script(request.path("serviceId").asText()));
+            sessions.put(sessionId, session);
+            synchronized (session) {
+                enter(session);
+            }
+            response.put("sessionId", sessionId);
+        } else if (path.equals("service/fetch")) {
+            Session session = sessions.get(request.get("sessionId").asText());
+            if (session == null) {
+                respond(exchange, 404);
+                return;
+            }
+            JsonNode result = request.get("operationResult");
+            if (result != null && !accept(session, result.path("operationId").asText())) {
+                respond(exchange, 400);
+                return;
+            }
+            if (!counted(session) || !awaitReady(exchange, session)) {
+                respond(exchange, 204);
+                return;
+            }
+            operation(session, response);
+        } else if (path.equals("connector/json")) {
+            Session session = sessions.get(request.get("uuid").asText());
+            if (session == null || !(session.current() instanceof Transceive transceive)) {
+                respond(exchange, 400);
+                return;
+            }
+            synchronized (session) {
+                // Responses to exactly the previous batch
+                if (request.get("responses").size() != (session.batchesSent == 0 ? 0 : transceive.batchSize())) {
+                    respond(exchange, 400);
+                    return;
+                }
+                ArrayNode commands = response.putArray("commands");
+                if (session.batchesSent++ < transceive.batches()) {
+                    for (int i = 0; i < transceive.batchSize(); i++) {
+                        commands.add("00A4040000");
+                    }
+                } else {
+                    advance(session);
+                }
+            }
+        } else if (!path.equals("service/error")) {
+            respond(exchange, 404);
+            return;
+        }
+        send(exchange, response);
+    }
+
+    private Script script(String serviceId) {
+        Script script = scripts.get(serviceId);
+        return script != null ? script : new Script(List.of(new Transceive(batches, batchSize)), true);
+    }
+
+    // Result of the current user operation moves the session on. Requests are retried with the
+    // same result, so results of earlier operations are ignored.
+    private boolean accept(Session session, String operationId) {
+        synchronized (session) {
+            if (session.accepted.contains(operationId)) {
+                return true;
+            }
+            if (session.current() == null || session.current() instanceof Transceive || !operationId.equals(session.operationId)) {
+                return false;
+            }
+            session.accepted.add(operationId);
+            advance(session);
+            return true;
+        }
+    }
+
+    // Next operation of the session, or its status when done
+    private void operation(Session session, ObjectNode response) {
+        synchronized (session) {
+            Step step = session.current();
+            if (step == null) {
+                response.put("completed", true);
+                response.putObject("status").put("success", session.script.success()).put("message", session.script.success() ? "OK" : "Failed");
+                return;
+            }
+            response.put("completed", false);
+            response.put("operationId", session.operationId);
+            switch (step) {
+                case Transceive transceive -> response.put("operationType", "transceive");
+                case Form form -> {
+                    response.put("operationType", "user-interaction");
+                    ArrayNode fields = response.putArray("fields");
+                    for (String field : form.fields()) {
+                        fields.addObject().put("id", field).put("label", field).put("type", "edit");
+                    }
+                }
+                case Action action -> {
+                    response.put("operationType", "action");
+                    response.putArray("actions").addObject().put("name", action.name()).put("description", action.name());
+                }
+            }
+        }
+    }
+
+    // To the next step of the script
+    private void advance(Session session) {
+        sessions.remove(session.operationId);
+        session.step++;
+        session.batchesSent = 0;
+        enter(session);
+    }
+
+    // The backend takes the fetch delay to get a step ready
+    private void enter(Session session) {
+        session.readyAt = System.currentTimeMillis() + fetchDelay;
+        session.notReady = notReadyPolls;
+        if (session.current() == null) {
+            completed.incrementAndGet();
+            session.operationId = null;
+        } else {
+            // Connector requests are addressed by operation ID
+            session.operationId = session.id + ":" + session.step;
+            sessions.put(session.operationId, session);
+        }
+    }
+
+    private void send(HttpExchange exchange, JsonNode response) throws IOException {
+        byte[] body = mapper.writeValueAsBytes(response);
+        exchange.getResponseHeaders().add("Content-Type", "application/json");
+        exchange.sendResponseHeaders(200, body.length);
+        try (OutputStream out = exchange.getResponseBody()) {
+            out.write(body);
+        }
+    }
+
+    private static void respond(HttpExchange exchange, int status) throws IOException {
+        exchange.sendResponseHeaders(status, -1);
+        exchange.close();
+    }
+
+    private long latency(String path) {
+        long total = 0;
+        for (Map.Entry<String, Long> latency : latencies.entrySet()) {
+            if (path.startsWith(latency.getKey())) {
+                total += latency.getValue();
+            }
+        }
+        return total;
+    }
+
+    private static void sleep(long millis) {
+        if (millis > 0) {
+            try {
+                Thread.sleep(millis);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    // Counts down the 204 answers of the current step
+    private static boolean counted(Session session) {
+        synchronized (session) {
+            if (session.notReady > 0) {
+                session.notReady--;
+                return false;
+            }
+            return true;
+        }
+    }
+
+    // Holds a long-poll request until the session is ready or the requested wait is over
+    private boolean awaitReady(HttpExchange exchange, Session session) {
+        String prefer = exchange.getRequestHeaders().getFirst("Prefer");
+        long remaining = session.readyAt - System.currentTimeMillis();
+        if (remaining <= 0) {
+            return true;
+        }
+        if (!longPoll || prefer == null || !prefer.startsWith("wait=")) {
+            return false;
+        }
+        long wait = TimeUnit.SECONDS.toMillis(Long.parseLong(prefer.substring("wait=".length())));
+        exchange.getResponseHeaders().add("Preference-Applied", prefer);
+        try {
+            Thread.sleep(Math.min(remaining, wait));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        if (remaining > wait) {
+            return false;
+        }
+        held.incrementAndGet();
+        return true;
+    }
+
+    @Override
+    public void close() {
+        server.stop(0);
+        executor.shutdownNow();
+        synchronized (this) {
+            if (webSocket != null) {
+                try {
+                    webSocket.stop(1000);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        }
+    }
+
+    // A WebSocket connection, carrying one delivery, or many on channels when multiplexed
+    private static final class Connection {
+        final boolean binary;
+        final boolean multiplexed;
+        final Map<Integer, Session> sessions = new ConcurrentHashMap<>(); // By channel, 0 when not multiplexed
+
+        Connection(boolean binary, boolean multiplexed) {
+            this.binary = binary;
+            this.multiplexed = multiplexed;
+        }
+    }
+
+    // Runs the transceive steps of a script over WebSocket, the only operations of that protocol
+    private final class WebSocketDelivery extends WebSocketServer {
+        final CountDownLatch started = new CountDownLatch(1);
+
+        WebSocketDelivery() {
+            super(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+        }
+
+        private boolean binary(ClientHandshake request) {
+            return binaryFraming && ApduFrame.BINARY.equals(request.getFieldValue(ApduFrame.HEADER));
+        }
+
+        private boolean multiplexed(ClientHandshake request) {
+            return multiplexing && request.hasFieldValue(WsMultiplexer.HEADER);
+        }
+
+        @Override
+        public ServerHandshakeBuilder onWebsocketHandshakeReceivedAsServer(WebSocket conn, Draft draft, ClientHandshake request) throws InvalidDataException {
+            ServerHandshakeBuilder response = super.onWebsocketHandshakeReceivedAsServer(conn, draft, request);
+            if (binary(request)) {
+                response.put(ApduFrame.HEADER, ApduFrame.BINARY);
+            }
+            if (multiplexed(request)) {
+                response.put(WsMultiplexer.HEADER, request.getFieldValue(WsMultiplexer.HEADER));
+            } else if (resumable && request.hasFieldValue(WsClient.RESUME_HEADER)) {
+                response.put(WsClient.RESUME_HEADER, "1");
+            }
+            return response;
+        }
+
+        @Override
+        public void onOpen(WebSocket conn, ClientHandshake handshake) {
+            webSocketConnections.incrementAndGet();
+            Connection connection = new Connection(binary(handshake), multiplexed(handshake));
+            conn.setAttachment(connection);
+            if (connection.multiplexed) {
+                return;
+            }
+            if (handshake.hasFieldValue(WsClient.RESUME_SESSION_HEADER)) {
+                resume(conn, connection, handshake);
+            } else {
+                start(conn, connection, 0, handshake.getResourceDescriptor());
+            }
+        }
+
+        // A delivery of the service named by the last segment of the path
+        private void start(WebSocket conn, Connection connection, int channel, String path) {
+            Session session = new Session(UUID.randomUUID().toString(), script(path.substring(path.lastIndexOf('/') + 1)));
+            session.channel = channel;
+            session.conn = conn;
+            session.connection = connection;
+            connection.sessions.put(channel, session);
+            if (channel == 0) {
+                sessions.put(session.id, session);
+            }
+            later(() -> {
+                send(session, JsonNodeFactory.instance.objectNode().put("type", "id").put("value", session.id));
+                next(session);
+            });
+        }
+
+        // Continues a delivery on a new connection: the client is told which responses arrived, and
+        // gets the last batch again if it never ran it
+        private void resume(WebSocket conn, Connection connection, ClientHandshake handshake) {
+            Session session = resumable ? sessions.get(handshake.getFieldValue(WsClient.RESUME_SESSION_HEADER)) : null;
+            if (session == null || session.channel != 0) {
+                conn.send(status("ERROR", "Unknown session").toString());
+                conn.close();
+                return;
+            }
+            int sequence = Integer.parseInt(handshake.getFieldValue(WsClient.RESUME_SEQUENCE_HEADER));
+            synchronized (session) {
+                session.conn = conn;
+                session.connection = connection;
+                connection.sessions.put(0, session);
+                send(session, JsonNodeFactory.instance.objectNode().put("type", "resumed").put("sequence", session.acknowledged));
+                if (sequence == session.acknowledged && session.sent > session.acknowledged) {
+                    batch(session, (Transceive) session.current());
+                }
+            }
+        }
+
+        @Override
+        public void onMessage(WebSocket conn, String message) {
+            Connection connection = conn.getAttachment();
+            try {
+                JsonNode node = mapper.readTree(message);
+                int channel = node.path("channel").asInt(0);
+                switch (node.path("type").asText()) {
+                    case "open" -> {
+                        if (connection.multiplexed && channel > 0 && !connection.sessions.containsKey(channel)) {
+                            start(conn, connection, channel, URI.create(node.path("uri").asText()).getPath());
+                        }
+                    }
+                    case "responses" -> responses(conn, connection, channel, node.path("responses").size());
+                    // Aborted by the client
+                    case "status" -> connection.sessions.remove(channel);
+                    default -> {
+                    }
+                }
+            } catch (IOException | IllegalArgumentException e) {
+                conn.close();
+            }
+        }
+
+        @Override
+        public void onMessage(WebSocket conn, ByteBuffer frame) {
+            Connection connection = conn.getAttachment();
+            try {
+                int channel = connection.multiplexed ? frame.getInt() : 0;
+                responses(conn, connection, channel, ApduFrame.read(frame, ApduFrame.RESPONSES).size());
+            } catch (IllegalArgumentException | BufferUnderflowException e) {
+                conn.close();
+            }
+        }
+
+        private void responses(WebSocket conn, Connection connection, int channel, int count) {
+            Session session = connection.sessions.get(channel);
+            if (session == null) {
+                return;
+            }
+            synchronized (session) {
+                if (!(session.current() instanceof Transceive transceive) || count != transceive.batchSize()
+                        || session.acknowledged == session.sent) {
+                    connection.sessions.remove(channel);
+                    sessions.remove(session.id);
+                    send(session, status("ERROR", "Unexpected responses"));
+                    return;
+                }
+                if (channel == 0 && session.sent == dropAfter && !session.dropped) {
+                    session.dropped = true;
+                    connection.sessions.remove(channel);
+                    conn.close();
+                    return;
+                }
+                session.acknowledged++;
+            }
+            later(() -> next(session));
+        }
+
+        // Injected latency without holding up the threads of the WebSocket server
+        private void later(Runnable task) {
+            long millis = delay;
+            if (millis > 0) {
+                CompletableFuture.runAsync(task, CompletableFuture.delayedExecutor(millis, TimeUnit.MILLISECONDS, executor));
+            } else {
+                task.run();
+            }
+        }
+
+        // Next batch, or the status when the script is done. Other steps are not part of the protocol.
+        private void next(Session session) {
+            synchronized (session) {
+                while (session.current() != null) {
+                    if (session.current() instanceof Transceive transceive && session.batchesSent < transceive.batches()) {
+                        session.batchesSent++;
+                        session.sent++;
+                        batch(session, transceive);
+                        return;
+                    }
+                    session.step++;
+                    session.batchesSent = 0;
+                }
+            }
+            completed.incrementAndGet();
+            session.connection.sessions.remove(session.channel);
+            sessions.remove(session.id);
+            boolean success = session.script.success();
+            send(session, status(success ? "OK" : "FAILED", success ? "OK" : "Failed"));
+        }
+
+        private void batch(Session session, Transceive transceive) {
+            Connection connection = session.connection;
+            if (connection.binary) {
+                ByteBuffer frame = ApduFrame.write(ApduFrame.COMMANDS, Collections.nCopies(transceive.batchSize(), SELECT));
+                if (connection.multiplexed) {
+                    frame = ByteBuffer.allocate(4 + frame.remaining()).putInt(session.channel).put(frame).flip();
+                }
+                session.conn.send(frame);
+                return;
+            }
+            ObjectNode message = JsonNodeFactory.instance.objectNode().put("type", "commands");
+            ArrayNode commands = message.putArray("commands");
+            for (int i = 0; i < transceive.batchSize(); i++) {
+                commands.add("00A4040000");
+            }
+            send(session, message);
+        }
+
+        private static ObjectNode status(String code, String message) {
+            return JsonNodeFactory.instance.objectNode().put("type", "status").put("code", code).put("message", message);
+        }
+
+        private static void send(Session session, ObjectNode message) {
+            if (session.channel > 0) {
+                message.put("channel", session.channel);
+            }
+            session.conn.send(message.toString());
+        }
+
+        @Override
+        public void onClose(WebSocket conn, int code, String reason, boolean remote) {
+        }
+
+        @Override
+        public void onError(WebSocket conn, Exception ex) {
+        }
+
+        @Override
+        public void onStart() {
+            started.countDown();
+        }
+    }
+}
@@ -0,0 +1,114 @@
+package com.fidesmo.fdsm;
+
+import com.fasterxml.jackson.databind.node.JsonNodeFactory;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import org.testng.annotations.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.net.URI;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.concurrent.CompletionException;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertNull;
+import static org.testng.Assert.assertThrows;
+import static org.testng.Assert.assertTrue;
+
+public class StubApiServerTest {
+    private static ServiceDeliverySession.DeliveryResult deliver(FidesmoApiClient client, String serviceId) {
+        return StubDeliveries.session(client, new StubDeliveries.SlowCard(0), serviceId).call();
+    }
+
+    @Test
+    public void testScriptedSteps() throws Exception {
+        try (StubApiServer server = new StubApiServer();
+             FidesmoApiClient client = new FidesmoApiClient(server.getURL(), null, null)) {
+            server.setScript("scripted", true,
+                    new StubApiServer.Transceive(2, 3),
+                    new StubApiServer.Form(List.of("name")),
+                    new StubApiServer.Action("confirm"),
+                    new StubApiServer.Transceive(1, 1));
+            server.setScript("failing", false, new StubApiServer.Action("confirm"));
+            assertTrue(deliver(client, "scripted").isSuccess());
+            assertFalse(deliver(client, "failing").isSuccess());
+            assertEquals(server.getCompletedCount(), 2);
+            // A connector request per batch, and one that ends the step
+            assertEquals(server.getRequestCount(FidesmoApiClient.CONNECTOR_URL), 3 + 2);
+        }
+    }
+
+    @Test
+    public void testNotReadyAndErrors() throws Exception {
+        try (StubApiServer server = new StubApiServer();
+             FidesmoApiClient client = new FidesmoApiClient(server.getURL(), null, null)) {
+            server.setLongPoll(false);
+            server.setNotReadyPolls(2);
+            assertTrue(deliver(client, "stub").isSuccess());
+            // Two 204 answers before the transceive operation and two before the status, each polled again
+            assertEquals(server.getRequestCount(FidesmoApiClient.SERVICE_FETCH_URL), 2 * (2 + 1));
+
+            server.setErrorRate("apps/", 1.0, 500);
+            assertThrows(IOException.class, () -> client.rpc(client.getURI(FidesmoApiClient.SERVICE_URL, "c0ffee00", "stub")));
+        }
+    }
+
+    @Test
+    public void testRecipes() throws Exception {
+        try (StubApiServer server = new StubApiServer();
+             FidesmoApiClient client = new FidesmoApiClient(server.getURL(), null, null)) {
+            URI recipe = client.getURI(FidesmoApiClient.SERVICE_RECIPE_URL, "c0ffee00", "install");
+            ObjectNode body = JsonNodeFactory.instance.objectNode().put("description", "Install");
+            client.put(recipe, body).close();
+            assertEquals(server.getRecipe("c0ffee00", "install"), body);
+            assertEquals(client.rpc(client.getURI(FidesmoApiClient.RECIPE_SERVICES_URL, "c0ffee00")).get(0).asText(), "install");
+            client.delete(recipe);
+            assertNull(server.getRecipe("c0ffee00", "install"));
+        }
+    }
+
+    @Test
+    public void testWebSocketDelivery() throws Exception {
+        try (StubApiServer server = new StubApiServer()) {
+            server.setDelay(10);
+            server.setScript("ws", true, new StubApiServer.Transceive(3, 2));
+            ByteArrayOutputStream recording = new ByteArrayOutputStream();
+            WsClient client = new WsClient(URI.create(server.getWebSocketURL("ws")), new StubDeliveries.SlowCard(0), null, ClientInfo.fdsm());
+            client.setRecorder(SessionRecorder.toStream(recording));
+            assertTrue(client.run().join().isSuccess());
+            // Binary frames are recorded as the equivalent JSON messages
+            assertTrue(recording.toString(StandardCharsets.UTF_8).contains("\\\"responses\\\":[\\\"9000\\\",\\\"9000\\\"]"));
+
+            // Falls back to JSON
+            server.setBinaryFraming(false);
+            client = new WsClient(URI.create(server.getWebSocketURL("ws")), new StubDeliveries.SlowCard(0), null, ClientInfo.fdsm());
+            assertTrue(client.run().join().isSuccess());
+            assertEquals(server.getCompletedCount(), 2);
+        }
+    }
+
+    @Test
+    public void testWebSocketResume() throws Exception {
+        try (StubApiServer server = new StubApiServer()) {
+            server.setScript("ws", true, new StubApiServer.Transceive(3, 2));
+            server.setDropAfter(2);
+            for (boolean binary : new boolean[]{true, false}) {
+                server.setBinaryFraming(binary);
+                StubDeliveries.SlowCard card = new StubDeliveries.SlowCard(0);
+                WsClient client = new WsClient(URI.create(server.getWebSocketURL("ws")), card, null, ClientInfo.fdsm());
+                assertTrue(client.run().join().isSuccess());
+                // Responses to the second batch sent again, the commands not run again
+                assertEquals(card.count.get(), 3 * 2);
+            }
+            assertEquals(server.getWebSocketConnectionCount(), 2 * 2);
+
+            // Without support from the server the delivery fails as before
+            server.setResumable(false);
+            WsClient client = new WsClient(URI.create(server.getWebSocketURL("ws")), new StubDeliveries.SlowCard(0), null, ClientInfo.fdsm());
+            assertThrows(CompletionException.class, () -> client.run().join());
+            assertEquals(server.getCompletedCount(), 2);
+        }
+    }
+}
@@ -0,0 +1,70 @@
+package com.fidesmo.fdsm;
+
+import apdu4j.core.BIBO;
+import apdu4j.core.HexUtils;
+
+import javax.security.auth.callback.Callback;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+// Fixtures for deliveries from StubApiServer: sessions of its "stub" service to a dummy card,
+// a card reader that takes a while for every APDU, and a user that enters nothing
+public final class StubDeliveries {
+    private StubDeliveries() {
+    }
+
+    // Card reader taking a while for every APDU
+    public static class SlowCard implements BIBO {
+        private static final byte[] SELECT = HexUtils.hex2bin("00A4040000"); // Sent by the stub API
+        private final long millis;
+        final AtomicInteger count = new AtomicInteger();
+
+        public SlowCard(long millis) {
+            this.millis = millis;
+        }
+
+        @Override
+        public byte[] transceive(byte[] command) {
+            if (Arrays.equals(command, SELECT)) {
+                count.incrementAndGet();
+            }
+            try {
+                Thread.sleep(millis);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            return new byte[]{(byte) 0x90, 0x00};
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+
+    public static class NoInputFormHandler implements FormHandler {
+        @Override
+        public Map<String, Field> processForm(List<Field> form) {
+            return Collections.emptyMap();
+        }
+
+        @Override
+        public void handle(Callback[] callbacks) {
+        }
+    }
+
+    // A session of a service of the stub app
+    public static ServiceDeliverySession session(FidesmoApiClient client, BIBO card, String serviceId) {
+        return ServiceDeliverySession.getInstance(() -> card, FidesmoCard.dummy(), client, "c0ffee00", serviceId, new NoInputFormHandler());
+    }
+
+    public static ServiceDeliverySession session(FidesmoApiClient client, BIBO card) {
+        return session(client, card, "stub");
+    }
+
+    public static ServiceDeliverySession.DeliveryResult deliver(FidesmoApiClient client, BIBO card) {
+        return session(client, card).call();
+    }
+}
@@ -0,0 +1,99 @@
+package com.fidesmo.fdsm;
+
+import apdu4j.core.BIBO;
+import apdu4j.core.BIBOException;
+import org.testng.annotations.Test;
+
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertTrue;
+
+public class WsMultiplexerTest {
+    // Card pulled out of the reader
+    static class RemovedCard implements BIBO {
+        @Override
+        public byte[] transceive(byte[] command) {
+            throw new BIBOException("Card removed");
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+
+    private static List<ServiceDeliverySession.DeliveryResult> deliver(StubApiServer server, List<BIBO> cards) throws Exception {
+        try (WsMultiplexer multiplexer = new WsMultiplexer(URI.create(server.getWebSocketURL()), null, ClientInfo.fdsm(), 4)) {
+            List<CompletableFuture<ServiceDeliverySession.DeliveryResult>> deliveries = new ArrayList<>();
+            for (BIBO card : cards) {
+                deliveries.add(multiplexer.deliver(URI.create(server.getWebSocketURL("ws")), card));
+            }
+            return deliveries.stream().map(CompletableFuture::join).toList();
+        }
+    }
+
+    private static List<BIBO> cards(int count) {
+        List<BIBO> cards = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            cards.add(new StubDeliveries.SlowCard(2));
+        }
+        return cards;
+    }
+
+    @Test
+    public void testOneConnection() throws Exception {
+        try (StubApiServer server = new StubApiServer()) {
+            server.setScript("ws", true, new StubApiServer.Transceive(3, 5));
+            assertTrue(deliver(server, cards(10)).stream().allMatch(ServiceDeliverySession.DeliveryResult::isSuccess));
+            server.setBinaryFraming(false);
+            assertTrue(deliver(server, cards(10)).stream().allMatch(ServiceDeliverySession.DeliveryResult::isSuccess));
+            assertEquals(server.getCompletedCount(), 20);
+            assertEquals(server.getWebSocketConnectionCount(), 2);
+        }
+    }
+
+    @Test
+    public void testFailingCardEndsOnlyItsDelivery() throws Exception {
+        try (StubApiServer server = new StubApiServer()) {
+            server.setScript("ws", true, new StubApiServer.Transceive(3, 5));
+            List<BIBO> cards = cards(5);
+            cards.add(2, new RemovedCard());
+            List<ServiceDeliverySession.DeliveryResult> results = deliver(server, cards);
+            assertFalse(results.get(2).isSuccess());
+            assertEquals(results.get(2).getMessage(), "Card removed");
+            assertEquals(results.stream().filter(ServiceDeliverySession.DeliveryResult::isSuccess).count(), 5);
+        }
+    }
+
+    @Test
+    public void testUnexpectedErrorEndsOnlyItsDelivery() throws Exception {
+        try (StubApiServer server = new StubApiServer()) {
+            server.setScript("ws", true, new StubApiServer.Transceive(3, 5));
+            List<BIBO> cards = cards(5);
+            cards.add(2, new StubDeliveries.SlowCard(0) {
+                @Override
+                public byte[] transceive(byte[] command) {
+                    throw new IllegalStateException("Reader driver failed");
+                }
+            });
+            List<ServiceDeliverySession.DeliveryResult> results = deliver(server, cards);
+            assertFalse(results.get(2).isSuccess());
+            assertEquals(results.get(2).getMessage(), "Reader driver failed");
+            assertEquals(results.stream().filter(ServiceDeliverySession.DeliveryResult::isSuccess).count(), 5);
+        }
+    }
+
+    @Test
+    public void testFallsBackToConnectionPerDelivery() throws Exception {
+        try (StubApiServer server = new StubApiServer()) {
+            server.setMultiplexing(false);
+            assertTrue(deliver(server, cards(3)).stream().allMatch(ServiceDeliverySession.DeliveryResult::isSuccess));
+            // The one that found out, and one per delivery
+            assertEquals(server.getWebSocketConnectionCount(), 1 + 3);
+        }
+    }
+}
@@ -46,6 +46,8 @@ abstract class CommandLineInterface {
     final static protected OptionSpec<String> OPT_READER = parser.accepts("reader", "Specify reader to use").withRequiredArg().describedAs("reader");
     final static protected OptionSpec<String> OPT_LANGUAGE = parser.accepts("language", "Specify client language (IETF language tag format)").withRequiredArg().describedAs("language");
     final static protected OptionSpec<Void> OPT_TRACE_API = parser.accepts("trace-api", "Trace Fidesmo API");
+    final static protected OptionSpec<File> OPT_TRACE_API_FILE = parser.accepts("trace-api-file", "Trace Fidesmo API to rotating log files").withRequiredArg().ofType(File.class).describedAs("log file");
+    final static protected OptionSpec<Void> OPT_API_METRICS = parser.accepts("api-metrics", "Show Fidesmo API latency and status statistics on exit");
     final static protected OptionSpec<Void> OPT_TRACE_APDU = parser.accepts("trace-apdu", "Trace APDU-s");
     final static protected OptionSpec<Void> OPT_VERBOSE = parser.accepts("verbose", "Be verbose");
 
@@ -55,6 +57,9 @@ abstract class CommandLineInterface {
     final static protected OptionSpec<String> OPT_APPLET = parser.accepts("applet", "Specify applet").requiredIf(OPT_STORE_DATA).withRequiredArg().describedAs("AID");
 
     final static protected OptionSpec<String> OPT_RUN = parser.accepts("run", "Run service").withRequiredArg().describedAs("appId/serviceId or URL");
+    final static protected OptionSpec<File> OPT_RECORD = parser.accepts("record", "Record the service delivery for offline replay").availableIf(OPT_RUN).withRequiredArg().ofType(File.class).describedAs("file");
+    final static protected OptionSpec<Void> OPT_ALL_READERS = parser.accepts("all-readers", "Run service on the cards in all readers at once").availableIf(OPT_RUN);
+    final static protected OptionSpec<String> OPT_MULTIPLEX = parser.accepts("multiplex", "Run WebSocket deliveries to all readers over one connection").availableIf(OPT_ALL_READERS).withRequiredArg().describedAs("ws URL");
     final static protected OptionSpec<String> OPT_FIELDS = parser.accepts("fields", "Service parameters").withRequiredArg().describedAs("field=value,...");
 
     final static protected OptionSpec<File> OPT_UPLOAD = parser.accepts("upload", "Upload CAP or recipe to Fidesmo").withRequiredArg().ofType(File.class).describedAs(".cap/.json file");
@@ -96,6 +101,9 @@ abstract class CommandLineInterface {
 
     protected static PrintStream apduTraceStream;
     protected static PrintStream apiTraceStream;
+    protected static ApiTraceWriter apiTraceWriter;
+    protected static ApiMetrics apiMetrics;
+    protected static SessionRecorder sessionRecorder;
     protected static boolean verbose = false;
     protected static boolean offline = false;
     protected static boolean ignoreImplicitBatching = false;
@@ -148,6 +156,28 @@ abstract class CommandLineInterface {
 
         // Set some variables
         apiTraceStream = args.has(OPT_TRACE_API) ? System.out : null;
+        if (args.has(OPT_TRACE_API_FILE)) {
+            // 5 files of 16MB at most
+            apiTraceWriter = ApiTraceWriter.forFile(args.valueOf(OPT_TRACE_API_FILE).toPath(), 16 * 1024 * 1024, 4, ApiTraceWriter.DEFAULT_CAPACITY, ApiTraceWriter.DropPolicy.DROP_NEWEST);
+        }
+        if (args.has(OPT_API_METRICS)) {
+            ApiMetrics metrics = new ApiMetrics();
+            // Commands end with System.exit()
+            Runtime.getRuntime().addShutdownHook(new Thread(() -> System.err.println("# API metrics:\n" + metrics)));
+            apiMetrics = metrics;
+        }
+        if (args.has(OPT_RECORD)) {
+            SessionRecorder recorder = SessionRecorder.toFile(args.valueOf(OPT_RECORD).toPath());
+            // Entries are written as they happen, closing completes a compressed file
+            Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+                try {
+                    recorder.close();
+                } catch (IOException e) {
+                    System.err.println("Could not complete recording: " + e.getMessage());
+                }
+            }));
+            sessionRecorder = recorder;
+        }
         apduTraceStream = args.has(OPT_TRACE_APDU) ? System.out : null;
         verbose = args.has(OPT_VERBOSE);
         offline = args.has(OPT_OFFLINE);
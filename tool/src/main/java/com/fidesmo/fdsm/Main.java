@@ -22,6 +22,8 @@
 package com.fidesmo.fdsm;
 
 import apdu4j.core.APDUBIBO;
+import apdu4j.core.BIBO;
+import apdu4j.core.BIBOException;
 import apdu4j.core.CancellationWaitingFuture;
 import apdu4j.core.HexBytes;
 import apdu4j.core.HexUtils;
@@ -54,14 +56,21 @@ import java.nio.file.NoSuchFileException;
 import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.security.NoSuchAlgorithmException;
+import java.time.Duration;
 import java.util.*;
 import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.RunnableFuture;
 import java.util.concurrent.ThreadLocalRandom;
+import java.util.function.Supplier;
 import java.util.stream.Collectors;
 import java.util.stream.StreamSupport;
 
 public class Main extends CommandLineInterface {
+    // Stale catalog entries are revalidated with the API, unchanged ones cost a 304
+    private static final int CATALOG_SIZE = 4096;
+    private static final Duration CATALOG_TTL = Duration.ofHours(1);
+
     public static void main(String[] argv) {
         System.setProperty("org.slf4j.simpleLogger.showThreadName", "true");
         System.setProperty("org.slf4j.simpleLogger.levelInBrackets", "true");
@@ -80,6 +89,10 @@ public class Main extends CommandLineInterface {
             optTimeout = Optional.ofNullable(args.valueOf(OPT_TIMEOUT));
             ignoreImplicitBatching = args.has(OPT_IGNORE_IMPLICIT_BATCHING);
 
+            // Card I/O of a reader keeps a carrier thread busy, allow one per reader
+            if (args.has(OPT_ALL_READERS) && System.getProperty("jdk.virtualThreadScheduler.parallelism") == null)
+                System.setProperty("jdk.virtualThreadScheduler.parallelism", "64");
+
             // Show useful stuff
             if (verbose && System.getenv(ENV_FIDESMO_DEBUG) == null)
                 System.setProperty("org.slf4j.simpleLogger.defaultLogLevel", "info");
@@ -97,8 +110,6 @@ public class Main extends CommandLineInterface {
             }
 
             if (args.has(OPT_STORE_APPS)) {
-                FidesmoApiClient client = getClient();
-
                 final String states;
                 // This is "hidden" from documentation, default to published
                 if (args.hasArgument(OPT_STORE_APPS) && "all".equals(args.valueOf(OPT_STORE_APPS))) {
@@ -107,13 +118,17 @@ public class Main extends CommandLineInterface {
                     states = "?states=published";
                 }
 
-                JsonNode apps = client.rpc(client.getURI(FidesmoApiClient.APPS_URL, states));
-                if (apps.size() > 0) {
+                final List<FidesmoApp> apps;
+                try (FileResponseCache catalog = openCatalog()) {
+                    FidesmoApiClient client = getCatalogClient(catalog);
                     List<byte[]> appids = new LinkedList<>();
-                    for (JsonNode appid : apps) {
+                    for (JsonNode appid : client.rpc(client.getURI(FidesmoApiClient.APPS_URL, states))) {
                         appids.add(HexUtils.hex2bin(appid.asText()));
                     }
-                    printApps(queryApps(client, appids, verbose), System.out, verbose);
+                    apps = queryApps(client, appids, verbose);
+                }
+                if (apps.size() > 0) {
+                    printApps(apps, System.out, verbose);
                     success();
                 } else {
                     fail("No apps in the appstore!?");
@@ -260,6 +275,16 @@ public class Main extends CommandLineInterface {
                 CardTerminals terminals = factory.terminals();
 
                 FidesmoApiClient client = getClient();
+                // The service is known before a card is found, get its description meanwhile
+                if (args.has(OPT_RUN)) {
+                    DeliveryUrl delivery = DeliveryUrl.parse(args.valueOf(OPT_RUN));
+                    if (!delivery.isWebSocket() && delivery.getAppId().isPresent()) {
+                        ServiceDeliverySession.prefetch(client, delivery.getAppId().get(), delivery.getService());
+                    }
+                }
+                if (args.has(OPT_ALL_READERS)) {
+                    runOnAllReaders(client, terminals);
+                }
                 // Locate a Fidesmo card, unless asked for a specific terminal
                 CardTerminal terminal = null;
                 if (args.has(OPT_READER)) {
@@ -289,7 +314,7 @@ public class Main extends CommandLineInterface {
                 }
                 Card card = terminal.connect("*");
                 Optional<byte[]> uid = getUID(card.getBasicChannel());
-                APDUBIBO bibo = new APDUBIBO(CardBIBO.wrap(card));
+                APDUBIBO bibo = new APDUBIBO(sessionRecorder == null ? CardBIBO.wrap(card) : sessionRecorder.wrap(CardBIBO.wrap(card)));
                 Optional<FidesmoCard> fidesmoMetadata = (args.has(OPT_OFFLINE) || args.has(OPT_IGNORE_IMPLICIT_BATCHING)) ? FidesmoCard.detectOffline(bibo) : FidesmoCard.detectOnline(bibo, client);
 
                 System.out.println("Using card in " + terminal.getName());
@@ -302,12 +327,11 @@ public class Main extends CommandLineInterface {
                         if (args.has(OPT_OFFLINE)) {
                             System.out.format("OS type: %s%n", FidesmoCard.detectPlatform(fidesmoCard.getCPLC()).map(ChipPlatform::toString).orElse("unknown"));
                         } else {
-                            JsonNode device = client.rpc(client.getURI(FidesmoApiClient.DEVICES_URL, HexUtils.bin2hex(fidesmoCard.getCIN()), fidesmoCard.getBatchId()));
-                            byte[] iin = HexUtils.decodeHexString_imp(device.get("iin").asText());
+                            DeviceInfo device = fidesmoCard.getDeviceInfo(client);
+                            byte[] iin = HexUtils.decodeHexString_imp(device.iin());
                             // Read capabilities
-                            JsonNode capabilities = device.get("description").get("capabilities");
-                            int platformVersion = capabilities.get("platformVersion").asInt();
-                            String platform = Optional.ofNullable(capabilities.get("osTypeVersionName")).map(JsonNode::asText).orElse("unknown");
+                            int platformVersion = device.platformVersion();
+                            String platform = device.osTypeVersionName().orElse("unknown");
                             if (verbose)
                                 System.out.format("IIN: %s%n", HexUtils.bin2hex(iin));
                             System.out.format("OS type: %s (platform v%d)%n", platform, platformVersion);
@@ -329,7 +353,9 @@ public class Main extends CommandLineInterface {
 
                     if (delivery.isWebSocket()) {
                         fidesmoMetadata.ifPresent(fidesmoCard -> fidesmoCard.selectEmpty(bibo));
-                        boolean success = WsClient.execute(new URI(delivery.getService()), bibo, auth, clientInfo()).join().isSuccess();
+                        WsClient wsClient = new WsClient(new URI(delivery.getService()), bibo, auth, clientInfo());
+                        wsClient.setRecorder(sessionRecorder);
+                        boolean success = wsClient.run().join().isSuccess();
                         if (!success) {
                             fail("Fail to run a script");
                         } else {
@@ -349,6 +375,8 @@ public class Main extends CommandLineInterface {
 
                         if (args.has(OPT_TIMEOUT))
                             cardSession.setTimeoutMinutes(args.valueOf(OPT_TIMEOUT));
+                        if (verbose)
+                            cardSession.setListener(Main::printPhase);
 
                         RunnableFuture<ServiceDeliverySession.DeliveryResult> serviceFuture = new CancellationWaitingFuture<>(cardSession);
                         ServiceDeliverySession.DeliveryResult result = ServiceDeliverySession.deliverService(serviceFuture);
@@ -367,7 +395,9 @@ public class Main extends CommandLineInterface {
                     fidesmoCard.ensureBatched(bibo, client, optTimeout, ignoreImplicitBatching, getCommandLineFormHandler());
                     List<byte[]> apps = FidesmoCard.listApps(bibo);
                     if (apps.size() > 0) {
-                        printApps(queryApps(client, apps, verbose), System.out, verbose);
+                        try (FileResponseCache catalog = openCatalog()) {
+                            printApps(queryApps(getCatalogClient(catalog), apps, verbose), System.out, verbose);
+                        }
                     } else {
                         success("No applications");
                     }
@@ -486,38 +516,101 @@ public class Main extends CommandLineInterface {
         }
     }
 
+    // Same service to the cards in all readers, each in its own session
+    private static void runOnAllReaders(FidesmoApiClient client, CardTerminals terminals) throws CardException, InterruptedException {
+        Map<String, Supplier<BIBO>> readers = new LinkedHashMap<>();
+        for (CardTerminal t : terminals.list(CardTerminals.State.CARD_PRESENT)) {
+            CardTerminal terminal = apduTraceStream == null ? t : LoggingCardTerminal.getInstance(t, apduTraceStream);
+            readers.put(t.getName(), () -> {
+                try {
+                    return CardBIBO.wrap(terminal.connect("*"));
+                } catch (CardException e) {
+                    throw new BIBOException(SCard.getExceptionMessage(e), e);
+                }
+            });
+        }
+        if (readers.isEmpty()) {
+            fail("No cards in readers");
+        }
+
+        MultiReaderDelivery delivery = new MultiReaderDelivery(client, DeliveryUrl.parse(args.valueOf(OPT_RUN)), getCommandLineFormHandler(), readers.size());
+        delivery.setAuthentication(auth);
+        if (offline || ignoreImplicitBatching)
+            delivery.setDetector(FidesmoCard::detectOffline);
+        if (args.has(OPT_TIMEOUT)) {
+            int timeout = args.valueOf(OPT_TIMEOUT);
+            delivery.setSessionSettings(session -> session.setTimeoutMinutes(timeout));
+        }
+
+        MultiReaderDelivery.Results results;
+        if (args.has(OPT_MULTIPLEX)) {
+            try (WsMultiplexer multiplexer = new WsMultiplexer(URI.create(args.valueOf(OPT_MULTIPLEX)), auth, clientInfo(), readers.size())) {
+                delivery.setMultiplexer(multiplexer);
+                results = delivery.deliver(readers);
+            }
+        } else {
+            results = delivery.deliver(readers);
+        }
+        results.getResults().forEach(System.out::println);
+        if (!results.isSuccess()) {
+            fail(String.format("Failed to run service on %d of %d cards", results.getResults().size() - results.getSuccessCount(), results.getResults().size()));
+        } else {
+            success();
+        }
+    }
+
     private static String printableCIN(byte[] cin) {
         return String.format("%s-%s", HexUtils.bin2hex(Arrays.copyOfRange(cin, 0, 3)), HexUtils.bin2hex(Arrays.copyOfRange(cin, 3, 7)));
     }
 
+    private static void printPhase(DeliveryEvent event) {
+        String apdus = event.apdus() == 0 ? "" : String.format(" (%d APDU-s, %d/%d bytes)", event.apdus(), event.bytesSent(), event.bytesReceived());
+        System.out.printf("# %s: %d ms%s%n", event.phase(), event.duration().toMillis(), apdus);
+    }
+
     private static List<FidesmoApp> queryApps(FidesmoApiClient client, List<byte[]> apps, boolean verbose) throws IOException {
-        List<FidesmoApp> result = new ArrayList<>();
-        // Construct list in one go
+        // Issue all queries up front, so that they run concurrently
+        List<CompletableFuture<FidesmoApp>> queries = new ArrayList<>();
         for (byte[] app : apps) {
-            JsonNode appDesc = client.rpc(client.getURI(FidesmoApiClient.APP_INFO_URL, HexUtils.bin2hex(app)));
-            // Multilanguague
             String appID = HexUtils.bin2hex(app);
-            String appName = FidesmoApiClient.lamei18n(appDesc.get("name"));
-            String appVendor = FidesmoApiClient.lamei18n(appDesc.get("organization").get("name"));
-            FidesmoApp fidesmoApp = new FidesmoApp(app, appName, appVendor);
+            CompletableFuture<FidesmoApp> appDesc = client.rpcAsync(client.getURI(FidesmoApiClient.APP_INFO_URL, appID)).thenApply(desc -> {
+                // Multilanguague
+                String appName = FidesmoApiClient.lamei18n(desc.get("name"));
+                String appVendor = FidesmoApiClient.lamei18n(desc.get("organization").get("name"));
+                return new FidesmoApp(app, appName, appVendor);
+            });
             // Fetch services
-            JsonNode services = client.rpc(client.getURI(FidesmoApiClient.APP_SERVICES_URL, appID));
-            if (!services.isEmpty()) {
-                for (JsonNode s : services) {
-                    if (verbose) {
-                        JsonNode service = client.rpc(client.getURI(FidesmoApiClient.SERVICE_URL, appID, s.asText()));
-                        JsonNode d = service.get("description").get("description");
-                        fidesmoApp.addService(new FidesmoService(s.asText(), FidesmoApiClient.lamei18n(d)));
-                    } else {
-                        fidesmoApp.addService(new FidesmoService(s.asText(), null));
-                    }
-                }
-            }
-            result.add(fidesmoApp);
+            CompletableFuture<List<FidesmoService>> services = client.rpcAsync(client.getURI(FidesmoApiClient.APP_SERVICES_URL, appID))
+                    .thenCompose(s -> queryServices(client, appID, s, verbose));
+            queries.add(appDesc.thenCombine(services, (fidesmoApp, list) -> {
+                list.forEach(fidesmoApp::addService);
+                return fidesmoApp;
+            }));
+        }
+        // Construct list in one go
+        List<FidesmoApp> result = new ArrayList<>();
+        for (CompletableFuture<FidesmoApp> query : queries) {
+            result.add(FidesmoApiClient.await(query));
         }
+        if (verbose)
+            System.out.println("# Catalog cache: " + client.getCacheStatistics());
         return result;
     }
 
+    private static CompletableFuture<List<FidesmoService>> queryServices(FidesmoApiClient client, String appID, JsonNode services, boolean verbose) {
+        List<CompletableFuture<FidesmoService>> result = new ArrayList<>();
+        for (JsonNode s : services) {
+            if (verbose) {
+                result.add(client.<ServiceDescription>rpcAsync(client.getURI(FidesmoApiClient.SERVICE_URL, appID, s.asText()), null, ServiceDescription.READER)
+                        .thenApply(service -> new FidesmoService(s.asText(), FidesmoApiClient.lamei18n(service.description()))));
+            } else {
+                result.add(CompletableFuture.completedFuture(new FidesmoService(s.asText(), null)));
+            }
+        }
+        return CompletableFuture.allOf(result.toArray(new CompletableFuture<?>[0]))
+                .thenApply(v -> result.stream().map(CompletableFuture::join).collect(Collectors.toList()));
+    }
+
     private static void printApps(List<FidesmoApp> apps, PrintStream out, boolean verbose) {
         // Display list in one go.
         out.println("#  appId - name and vendor");
@@ -536,7 +629,24 @@ public class Main extends CommandLineInterface {
     }
 
     private static FidesmoApiClient getClient() {
-        return new FidesmoApiClient(apiurl, auth, apiTraceStream, clientInfo());
+        FidesmoApiClient client = instrumented(new FidesmoApiClient(apiurl, auth, apiTraceStream, clientInfo()));
+        client.setRecorder(sessionRecorder);
+        return client;
+    }
+
+    // App listings are kept on disk between runs and only re-downloaded when changed
+    private static FileResponseCache openCatalog() {
+        return FileResponseCache.open(FileResponseCache.defaultDirectory().resolve("catalog.json"), CATALOG_SIZE, CATALOG_TTL);
+    }
+
+    // Only listings anyone can get are kept: with --auth the catalog is neither read nor written,
+    // as the listing may include apps only visible with those credentials
+    private static FidesmoApiClient getCatalogClient(FileResponseCache catalog) {
+        FidesmoApiClient client = getClient();
+        if (auth == null) {
+            client.setResponseCache(catalog);
+        }
+        return client;
     }
 
     private static FidesmoCard requireDevice(Optional<FidesmoCard> device) {
@@ -549,7 +659,7 @@ public class Main extends CommandLineInterface {
                 System.out.println("# Omitting online version check");
             return;
         }
-        FidesmoApiClient client = new FidesmoApiClient(apiurl, null, apiTraceStream, clientInfo());
+        FidesmoApiClient client = instrumented(new FidesmoApiClient(apiurl, null, apiTraceStream, clientInfo()));
         try {
             JsonNode v = client.rpc(new URI("https://api.fidesmo.com/fdsm-version"));
             // Convert both to numbers
@@ -608,7 +718,17 @@ public class Main extends CommandLineInterface {
         if (auth == null) {
             throw new IllegalArgumentException("Provide authentication either via --auth or $FIDESMO_AUTH");
         }
-        return AuthenticatedFidesmoApiClient.getInstance(apiurl, auth, apiTraceStream, clientInfo());
+        return instrumented(AuthenticatedFidesmoApiClient.getInstance(apiurl, auth, apiTraceStream, clientInfo()));
+    }
+
+    private static <T extends FidesmoApiClient> T instrumented(T client) {
+        if (apiTraceWriter != null) {
+            client.setTraceWriter(apiTraceWriter);
+        }
+        if (apiMetrics != null) {
+            client.setMetrics(apiMetrics);
+        }
+        return client;
     }
 
     private static String getAppId() {